@@ -7,13 +7,14 @@
  *
  */
 static final Set<String> readCommands = Set.of(
-	"MGet", "LLen", "LIndex", "Type", "VGet", "SMembers", "Cast", "Ping"
+	"MGet", "LLen", "LIndex", "Type", "VGet", "SMembers", "Cast", "Ping", "Ttl"
 );
 static final Set<String> allCommands = Set.of(
 	"MPut", "MDelete", "MGet", "VSet", "Cast",
 	"VDelete", "LPush", "LPop", "RPush", "RPop",
 	"LLen", "LIndex", "SAdd", "SRem", "Del",
-	"Type", "Batch", "VGet", "SMembers", "Ping"
+	"Type", "Batch", "VGet", "SMembers", "Ping",
+	"Expire", "Ttl", "Persist", "VSetEx"
 );
 
 static final Instant instant = Instant.now();
@@ -44,7 +45,11 @@ void main(String[] args) throws IOException {
 		"Type     : String name",
 		"Batch    : List<Command> commands",
 		"Cast     : int type, Command command",
-		"Ping     : String message"
+		"Ping     : String message",
+		"Expire   : String name, byte[] deadline",
+		"Ttl      : String name",
+		"Persist  : String name",
+		"VSetEx   : String name, byte[] value, byte[] deadline"
 	));
 
 	defineEnum(outputDir, "CommandType", allCommands);
@@ -62,7 +67,17 @@ void main(String[] args) throws IOException {
 		"SAdd     : String name, byte[] value",
 		"SRem     : String name, byte[] value",
 		"Del      : String name",
-		"Batch    : List<Command> commands"
+		"Batch    : List<Command> commands",
+		"VGet     : String name",
+		"LLen     : String name",
+		"LIndex   : String name, byte[] index",
+		"SMembers : String name",
+		"Type     : String name",
+		"Ping     : String message",
+		"Expire   : String name, byte[] deadline",
+		"Ttl      : String name",
+		"Persist  : String name",
+		"VSetEx   : String name, byte[] value, byte[] deadline"
 	));
 }
 
@@ -141,6 +156,7 @@ private static void defineSerde(
 	writer.println("import java.nio.ByteBuffer;");
 	writer.println("import java.io.IOException;");
 	writer.println("import java.nio.charset.StandardCharsets;");
+	writer.println("import java.util.ArrayList;");
 	writer.println("import java.util.List;");
 	for (String type : types) {
 		String className = type.split(":")[0].trim();
@@ -162,25 +178,73 @@ private static void defineSerde(
 
 	for (int i = 0; i < types.size(); i++) {
 		String className = types.get(i).split(":")[0].trim();
-		if (className.equals("Batch"))
-			continue;
 		writer.printf("\t\t\tcase %d -> deserialize%s(bufferedChannel);%n", i + 1, className);
 	}
 	writer.println("\t\t\tdefault -> null;");
 	writer.println("\t\t};");
 	writer.println("\t}");
 
-	writer.println("\tpublic static ByteBuffer serialize(Command command) {");
-	writer.println("\t\tif (command == null) return null;");
+	writer.println("\t/**");
+	writer.println("\t * Batches nested deeper than this are rejected, the frames of the binary protocol are untrusted.");
+	writer.println("\t */");
+	writer.println("\tpublic static final int MAX_BATCH_DEPTH = 8;");
+	writer.println("\t/**");
+	writer.println("\t * @return the command, null if the type is unknown, a length is out of the buffer or");
+	writer.println("\t * batches are nested deeper than {@link #MAX_BATCH_DEPTH}");
+	writer.println("\t */");
+	writer.println("\tpublic static Command deserialize(ByteBuffer byteBuffer) {");
+	writer.println("\t\treturn deserialize(byteBuffer, 0);");
+	writer.println("\t}");
+	writer.println("\tprivate static Command deserialize(ByteBuffer byteBuffer, int depth) {");
+	writer.println("\t\tif (byteBuffer.remaining() < Short.BYTES) return null;");
+	writer.println("\t\tshort type = byteBuffer.getShort();");
+	writer.println("\t\treturn switch (type) {");
+
+	for (int i = 0; i < types.size(); i++) {
+		String className = types.get(i).split(":")[0].trim();
+		String arguments = className.equals("Batch") ? "byteBuffer, depth" : "byteBuffer";
+		writer.printf("\t\t\tcase %d -> deserialize%s(%s);%n", i + 1, className, arguments);
+	}
+	writer.println("\t\t\tdefault -> null;");
+	writer.println("\t\t};");
+	writer.println("\t}");
+
+	writer.println("\t/**");
+	writer.println("\t * @return the bytes of the record of command, -1 if it has no record");
+	writer.println("\t */");
+	writer.println("\tpublic static int size(Command command) {");
+	writer.println("\t\tif (command == null) return -1;");
 	writer.println("\t\treturn switch (command) {");
 	for (String s : types) {
 		String className = s.split(":")[0].trim();
-		writer.printf("\t\t\tcase %s a -> serialize%s(a);%n", className, className);
+		writer.printf("\t\t\tcase %s a -> size%s(a);%n", className, className);
 	}
-	writer.println("\t\t\tdefault -> null;");
+	writer.println("\t\t\tdefault -> -1;");
 	writer.println("\t\t};");
 	writer.println("\t}");
 
+	writer.println("\t/**");
+	writer.println("\t * Writes the record of command into byteBuffer, which must have room for {@link #size} bytes.");
+	writer.println("\t * Nothing is allocated.");
+	writer.println("\t */");
+	writer.println("\tpublic static void serialize(Command command, ByteBuffer byteBuffer) {");
+	writer.println("\t\tswitch (command) {");
+	for (String s : types) {
+		String className = s.split(":")[0].trim();
+		writer.printf("\t\t\tcase %s a -> serialize%s(a, byteBuffer);%n", className, className);
+	}
+	writer.println("\t\t\tdefault -> throw new IllegalArgumentException(\"no record for \" + command);");
+	writer.println("\t\t}");
+	writer.println("\t}");
+
+	writer.println("\tpublic static ByteBuffer serialize(Command command) {");
+	writer.println("\t\tint size = size(command);");
+	writer.println("\t\tif (size < 0) return null;");
+	writer.println("\t\tByteBuffer byteBuffer = ByteBuffer.allocate(size);");
+	writer.println("\t\tserialize(command, byteBuffer);");
+	writer.println("\t\treturn byteBuffer.flip();");
+	writer.println("\t}");
+
 	for (String type : types) {
 		String className = type.split(":")[0].trim();
 		String fields = type.split(":")[1].trim();
@@ -189,38 +253,157 @@ private static void defineSerde(
 			deserializeBatch(writer);
 		} else {
 			serialize(writer, baseName, className, fields);
-			deserialize(writer, baseName, className, fields);
+			deserialize(writer, baseName, className, fields, "BufferedChannel", "bufferedChannel", " throws IOException");
+			deserialize(writer, baseName, className, fields, "ByteBuffer", "byteBuffer", "");
 		}
 	}
 
+	utf8(writer);
+
 	writer.println("}");
 	writer.close();
 
 }
 
+private static void utf8(PrintWriter writer) {
+
+	writer.println("""
+			private static int length(byte[] bytes) {
+				return bytes == null ? 0 : bytes.length;
+			}
+			/**
+			 * @return the length of string encoded in UTF-8, an unpaired surrogate is encoded as '?'
+			 */
+			private static int length(String string) {
+				if (string == null) return 0;
+				int length = string.length();
+				int bytes = length;
+				for (int i = 0; i < length; i++) {
+					char c = string.charAt(i);
+					if (c < 0x80) continue;
+					if (c < 0x800) {
+						bytes += 1;
+					}
+					else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+						bytes += 2;
+						i++;
+					}
+					else if (!Character.isSurrogate(c)) {
+						bytes += 2;
+					}
+				}
+				return bytes;
+			}
+			private static void put(ByteBuffer byteBuffer, byte[] bytes) {
+				byteBuffer.putInt(length(bytes));
+				if (bytes != null) byteBuffer.put(bytes);
+			}
+			/**
+			 * Puts string encoded in UTF-8 without the intermediate array of String.getBytes
+			 */
+			private static void put(ByteBuffer byteBuffer, String string) {
+				byteBuffer.putInt(length(string));
+				if (string == null) return;
+				int length = string.length();
+				for (int i = 0; i < length; i++) {
+					char c = string.charAt(i);
+					if (c < 0x80) {
+						byteBuffer.put((byte) c);
+					}
+					else if (c < 0x800) {
+						byteBuffer.put((byte) (0xC0 | c >> 6));
+						byteBuffer.put((byte) (0x80 | c & 0x3F));
+					}
+					else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+						int codePoint = Character.toCodePoint(c, string.charAt(++i));
+						byteBuffer.put((byte) (0xF0 | codePoint >> 18));
+						byteBuffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+						byteBuffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+						byteBuffer.put((byte) (0x80 | codePoint & 0x3F));
+					}
+					else if (Character.isSurrogate(c)) {
+						byteBuffer.put((byte) '?');
+					}
+					else {
+						byteBuffer.put((byte) (0xE0 | c >> 12));
+						byteBuffer.put((byte) (0x80 | c >> 6 & 0x3F));
+						byteBuffer.put((byte) (0x80 | c & 0x3F));
+					}
+				}
+			}
+		""");
+}
+
 private static void deserializeBatch(PrintWriter writer) {
-	// nothing
+
+	writer.println("""
+			private static Batch deserializeBatch(BufferedChannel bufferedChannel) throws IOException {
+				if (!bufferedChannel.hasRemaining()) return null;
+				int count = bufferedChannel.getInt();
+				if (!bufferedChannel.hasRemaining()) return null;
+				int length = bufferedChannel.getInt();
+				if (count < 0 || count > length / Short.BYTES) return null;
+				List<Command> commands = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					Command command = deserialize(bufferedChannel);
+					if (command == null) return null;
+					commands.add(command);
+				}
+				return new Batch(commands);
+			}
+			private static Batch deserializeBatch(ByteBuffer byteBuffer, int depth) {
+				if (depth >= MAX_BATCH_DEPTH) return null;
+				if (byteBuffer.remaining() < 2 * Integer.BYTES) return null;
+				int count = byteBuffer.getInt();
+				int length = byteBuffer.getInt();
+				if (count < 0 || length < 0 || length > byteBuffer.remaining() || count > length / Short.BYTES) return null;
+				List<Command> commands = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					Command command = deserialize(byteBuffer, depth + 1);
+					if (command == null) return null;
+					commands.add(command);
+				}
+				return new Batch(commands);
+			}
+		""");
 }
 
 private static void serializeBatch(PrintWriter writer) {
 
 	writer.println("""
-			private static ByteBuffer serializeBatch(Batch batch) {
-				if (batch == null) return null;
+			/**
+			 * A batch is a single record: [short type][int count][int length] followed by the
+			 * length bytes of the records of its count persisted commands.
+			 */
+			private static int sizeBatch(Batch batch) {
 				List<Command> commands = batch.commands();
-				if (commands == null) return null;
-				ByteBuffer[] byteBuffers = new ByteBuffer[commands.size()];
-				int capacity = 0;
+				if (commands == null) return -1;
+				return Short.BYTES + 2 * Integer.BYTES + commandsLength(commands);
+			}
+			private static int commandsLength(List<Command> commands) {
+				int length = 0;
 				for (int i = 0; i < commands.size(); i++) {
-					ByteBuffer buffer = serialize(commands.get(i));
-					byteBuffers[i] = buffer;
-					capacity += buffer.capacity();
+					Command command = commands.get(i);
+					if (command == null || !command.isPersisted()) continue;
+					length += size(command);
 				}
-				ByteBuffer byteBuffer = ByteBuffer.allocateDirect(capacity);
-				for (ByteBuffer buffer : byteBuffers) {
-					byteBuffer.put(buffer);
+				return length;
+			}
+			private static void serializeBatch(Batch batch, ByteBuffer byteBuffer) {
+				List<Command> commands = batch.commands();
+				int count = 0;
+				for (int i = 0; i < commands.size(); i++) {
+					Command command = commands.get(i);
+					if (command != null && command.isPersisted()) count++;
+				}
+				byteBuffer.putShort(type(batch));
+				byteBuffer.putInt(count);
+				byteBuffer.putInt(commandsLength(commands));
+				for (int i = 0; i < commands.size(); i++) {
+					Command command = commands.get(i);
+					if (command == null || !command.isPersisted()) continue;
+					serialize(command, byteBuffer);
 				}
-				return byteBuffer.flip();
 			}
 		""");
 
@@ -240,24 +423,29 @@ private static void typeMethod(List<String> types, PrintWriter writer) {
 }
 
 private static void deserialize(PrintWriter writer, String baseName, String className,
-	String fields) {
+	String fields, String sourceType, String source, String throwsClause) {
 	writer.printf(
-		"\tprivate static %s deserialize%s(BufferedChannel bufferedChannel) throws IOException {%n",
-		className, className);
-	writer.println("\t\tif (bufferedChannel == null) return null;");
+		"\tprivate static %s deserialize%s(%s %s)%s {%n",
+		className, className, sourceType, source, throwsClause);
+	writer.printf("\t\tif (%s == null) return null;%n", source);
 	String[] field = fields.split(",");
 	writer.println("\t\tbyte[] bytes;");
 	for (String typeField : field) {
 		String[] split = typeField.strip().split(" ");
 		String type = split[0].strip();
 		String name = split[1].strip();
-		writer.println("\t\tif (!bufferedChannel.hasRemaining()) return null;");
-		writer.printf("\t\tint %sLength = bufferedChannel.getInt();%n", name);
+		writer.printf("\t\tif (!%s.hasRemaining()) return null;%n", source);
+		writer.printf("\t\tint %sLength = %s.getInt();%n", name, source);
 		writer.printf("\t\t%s %s = null;%n", type, name);
-		writer.printf("\t\tif (%sLength > 0) {%n", name);
-		writer.println("\t\t\tif (!bufferedChannel.hasRemaining()) return null;");
+		if (sourceType.equals("ByteBuffer")) {
+			writer.printf("\t\tif (%sLength < 0 || %sLength > %s.remaining()) return null;%n", name, name, source);
+			writer.printf("\t\tif (%sLength > 0) {%n", name);
+		} else {
+			writer.printf("\t\tif (%sLength > 0) {%n", name);
+			writer.printf("\t\t\tif (!%s.hasRemaining()) return null;%n", source);
+		}
 		writer.printf("\t\t\tbytes = new byte[%sLength];\n", name);
-		writer.println("\t\t\tbufferedChannel.get(bytes);");
+		writer.printf("\t\t\t%s.get(bytes);%n", source);
 		if (type.equals("String"))
 			writer.printf("\t\t\t%s = new String(bytes, StandardCharsets.UTF_8);%n", name);
 		else if (type.equals("byte[]"))
@@ -279,46 +467,22 @@ private static void deserialize(PrintWriter writer, String baseName, String clas
 
 private static void serialize(PrintWriter writer, String baseName, String className,
 	String fields) {
-	writer.printf("\tprivate static ByteBuffer serialize%s(%s c) {%n", className, className);
-	writer.printf("\t\tshort type = type(c);%n");
 	String[] field = fields.split(",");
+	writer.printf("\tprivate static int size%s(%s c) {%n", className, className);
+	writer.print("\t\treturn Short.BYTES");
 	for (String typeField : field) {
-		String[] split = typeField.strip().split(" ");
-		String type = split[0].strip();
-		String name = split[1].strip();
-		writer.printf("\t\t%s %s = c.%s();%n", type, name, name);
-		writer.printf("\t\tint %sLength = %s == null ? 0 : %s.length", name, name, name);
-		if (type.equals("String"))
-			writer.println("();");
-		else if (type.equals("byte[]"))
-			writer.println(";");
-		writer.printf("\t\tint %sByteLength = Integer.BYTES + %sLength;%n", name, name);
+		String name = typeField.strip().split(" ")[1].strip();
+		writer.printf(" + Integer.BYTES + length(c.%s())", name);
 	}
-	writer.print("\t\tByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + ");
-
-	for (int i = 0; i < field.length; i++) {
-		String[] split = field[i].strip().split(" ");
-		String name = split[1].strip();
-		writer.printf("%sByteLength", name);
-		if (i + 1 < field.length) {
-			writer.print(" + ");
-		}
-	}
-	writer.println(");");
-	writer.println("\t\tbyteBuffer.putShort(type);");
+	writer.println(";");
+	writer.println("\t}");
 
-	for (String s : field) {
-		String[] split = s.strip().split(" ");
-		String type = split[0].strip();
-		String name = split[1].strip();
-		writer.printf("\t\tbyteBuffer.putInt(%sLength);%n", name);
-		writer.printf("\t\tif (%sLength > 0) byteBuffer.put(%s", name, name);
-		if (type.equals("String"))
-			writer.println(".getBytes(StandardCharsets.UTF_8));");
-		else if (type.equals("byte[]"))
-			writer.println(");");
+	writer.printf("\tprivate static void serialize%s(%s c, ByteBuffer byteBuffer) {%n", className, className);
+	writer.println("\t\tbyteBuffer.putShort(type(c));");
+	for (String typeField : field) {
+		String name = typeField.strip().split(" ")[1].strip();
+		writer.printf("\t\tput(byteBuffer, c.%s());%n", name);
 	}
-	writer.println("\t\treturn byteBuffer.flip();");
 	writer.println("\t}");
 }
 
@@ -0,0 +1,115 @@
+package dev.dstruct;
+
+import dev.dstruct.Result.EmptyResult;
+import dev.dstruct.Result.Error;
+import dev.dstruct.Result.Ok;
+import dev.dstruct.Result.Results;
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary length prefixed protocol, served by the {@link TcpServer} on its own port.
+ * <p>
+ * A request frame is {@code [int length][short opcode][int length][bytes]...}: after the frame
+ * length it is the same record written to the WAL by {@link Serde}, so the opcode is the command
+ * type id and it is decoded straight into a command, without scanning and parsing text.
+ * <p>
+ * A response frame is {@code [int length][byte tag][payload]}, where the length counts the tag
+ * and the payload:
+ * <pre>
+ *   OK, NOTHING  no payload
+ *   VALUE        the value bytes
+ *   RESULTS      the response frames of the batch results
+ *   ERROR        the UTF-8 message
+ * </pre>
+ * Integers are big endian.
+ */
+final class BinaryProtocol {
+
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	static final byte OK = 0;
+	static final byte NOTHING = 1;
+	static final byte VALUE = 2;
+	static final byte RESULTS = 3;
+	static final byte ERROR = 4;
+
+	private static final int HEADER_LENGTH = Integer.BYTES + Byte.BYTES;
+
+	private BinaryProtocol() {}
+
+	/**
+	 * Reads the length of the next frame without consuming it.
+	 *
+	 * @return the frame length, -1 if the length prefix is not complete yet
+	 * @throws IllegalStateException if the length is out of range, the stream can't be framed anymore
+	 */
+	static int frameLength(ByteBuffer buffer) {
+		if (buffer.remaining() < Integer.BYTES) {
+			return -1;
+		}
+		int length = buffer.getInt(buffer.position());
+		if (length < Short.BYTES || length > MAX_FRAME_LENGTH) {
+			throw new IllegalStateException("invalid frame length: " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * Decodes the body of a request frame, the frame length excluded.
+	 *
+	 * Lengths are checked against the frame and batches nested deeper than
+	 * {@link Serde#MAX_BATCH_DEPTH} are rejected, so a malformed frame is answered as invalid
+	 * instead of escaping to the reactor, which serves every other connection on its thread.
+	 *
+	 * @return the command, null if the opcode is unknown or the frame is malformed
+	 */
+	static Command decode(ByteBuffer frame) {
+		try {
+			return Serde.deserialize(frame);
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	static void encode(Result result, ResponseBuffer out) {
+		out.putInt(encodedLength(result) - Integer.BYTES);
+		switch (result) {
+			case EmptyResult emptyResult -> out.put(emptyResult == EmptyResult.OK ? OK : NOTHING);
+			case Ok(byte[] value) -> {
+				out.put(VALUE);
+				if (value != null) out.put(value);
+			}
+			case Error(String message) -> {
+				out.put(ERROR);
+				if (message != null) out.put(message.getBytes(StandardCharsets.UTF_8));
+			}
+			case Results(List<Result> results) -> {
+				out.put(RESULTS);
+				for (Result r : results) {
+					encode(r, out);
+				}
+			}
+		}
+	}
+
+	private static int encodedLength(Result result) {
+		return HEADER_LENGTH + switch (result) {
+			case EmptyResult ignore -> 0;
+			case Ok(byte[] value) -> value == null ? 0 : value.length;
+			case Error(String message) -> message == null ? 0 : message.getBytes(StandardCharsets.UTF_8).length;
+			case Results(List<Result> results) -> {
+				int length = 0;
+				for (Result r : results) {
+					length += encodedLength(r);
+				}
+				yield length;
+			}
+		};
+	}
+
+}
@@ -1,7 +1,13 @@
 package dev.dstruct;
 
+import dev.dstruct.Result.EmptyResult;
 import dev.dstruct.Result.Error;
+import dev.dstruct.Result.Results;
 import dev.dstruct.command.Command;
+import dev.dstruct.command.Command.Batch;
+import dev.dstruct.command.Command.Cast;
+import dev.dstruct.command.Command.Del;
+import dev.dstruct.command.Command.Expire;
 import dev.dstruct.inmemory.InMemoryStore;
 import dev.dstruct.logging.Log;
 import dev.dstruct.logging.LogFactory;
@@ -10,47 +16,135 @@ import dev.dstruct.util.Sink;
 import dev.dstruct.wal.WALStore;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static dev.dstruct.util.Binaries.fromBytesToLong;
 
 
 /**
- * DStruct is a single threaded in memory database that manages communication through commands.
+ * DStruct is an in memory database that manages communication through commands.
  * Command is a unique way to communicate. There are persistent command and read only command.
  *
  * Persistent commands are saved in a wal store (WAL write-ahead logging)
  * before being saved in memory.
  * At startup, DStruct reads a WAL store path and restores the in-memory data structures,
  * then the server is started.
+ * <p>
+ * The keyspace is split in shards, one per event loop. A command is routed to the shard
+ * owning {@code command.name()}, so every name is still managed by a single thread and sees its
+ * commands strictly in order, while independent names scale across cores.
+ * A {@link Batch} whose commands belong to more than one shard is executed while all the
+ * involved shards are parked on a barrier, see {@link #executeCrossShard}.
+ * <p>
+ * Names can have a deadline (EXPIRE, VSETEX). Expired names are deleted with a DEL command
+ * that is written to the WAL before the commands that find them expired, see {@link #expire},
+ * and by an active expiry cycle run periodically by each event loop, so the replay of the WAL
+ * doesn't depend on the time it runs at.
+ * <p>
+ * With {@code maxMemory} set, every shard gets an equal part of it as budget. Before a write
+ * that would go over the budget, names chosen by the eviction policy are deleted with DEL
+ * commands logged like the expired ones, see {@link #makeRoom}; the write is rejected if
+ * not enough memory can be freed.
+ * <p>
+ * A checkpoint writes a snapshot of every shard and truncates the WAL, so the restart only
+ * replays what was logged since. It runs while all the shards are parked on a barrier, like
+ * a cross shard batch, when the WAL grows over {@code checkpointWalBytes} or every
+ * {@code checkpointIntervalMs}, see {@link #checkpoint}. With {@code checkpointCompact} the
+ * snapshot is rebuilt from the log instead, without parking the shards, see {@link #compact}.
  */
 public class DStruct {
 
 	private static final Log log = LogFactory.create(DStruct.class);
 
-	private final EventLoop eventLoop;
+	private final EventLoop[] eventLoops;
+	private final InMemoryStore[] inMemoryStores;
 	private final Process tcpServer;
 	private final Options options;
 	private final WALStore walStore;
-	private final InMemoryStore inMemoryStore = new InMemoryStore();
+	private final Object crossShardLock = new Object();
+	private final long shardMemoryBudget;
+	/** Per shard, the commands of the current run rejected for lack of memory */
+	private final Set<Command>[] rejected;
+	/** Per shard, the WAL sequence of the current run, see {@link WALStore#whenDurable} */
+	private final long[] walSequences;
+	private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+	private volatile long lastCheckpoint = System.currentTimeMillis();
 
 	public DStruct() {
 		this(new Options());
 	}
 
+	@SuppressWarnings({"unchecked", "rawtypes"})
 	public DStruct(Options options) {
+		if (options.eventLoopCount < 1) {
+			throw new IllegalArgumentException("eventLoopCount must be greater than 0");
+		}
+		if (options.maxMemory < 0) {
+			throw new IllegalArgumentException("maxMemory must not be negative");
+		}
 		this.options = options;
-		this.eventLoop = new EventLoop(options.eventLoopThreadName);
-		this.tcpServer = options.port == 0 ? Process.NOOP : new TcpServer(options.port, this::executeAsync);
+		this.eventLoops = new EventLoop[options.eventLoopCount];
+		this.inMemoryStores = new InMemoryStore[options.eventLoopCount];
+		this.shardMemoryBudget = options.maxMemory / options.eventLoopCount;
+		this.rejected = new Set[options.eventLoopCount];
+		this.walSequences = new long[options.eventLoopCount];
+		for (int i = 0; i < eventLoops.length; i++) {
+			String name = eventLoops.length == 1
+				? options.eventLoopThreadName
+				: options.eventLoopThreadName + "-" + i;
+			int shard = i;
+			this.eventLoops[i] = new EventLoop(
+				name,
+				options.eventLoopCapacity,
+				options.eventLoopWaitStrategy,
+				options.eventLoopDrainLimit,
+				(commands, offset, length) -> writeAhead(shard, commands, offset, length),
+				shard == 0
+					? () -> {
+						expireCycle(shard);
+						checkpointIfDue();
+					}
+					: () -> expireCycle(shard),
+				options.expireCycleMs
+			);
+			this.inMemoryStores[i] = options.maxMemory == 0
+				? new InMemoryStore(options.storeOffHeap)
+				: new InMemoryStore(options.evictionPolicy, options.evictionSamples, options.storeOffHeap);
+			this.rejected[i] = Collections.newSetFromMap(new IdentityHashMap<>());
+		}
+		this.tcpServer = options.port == 0
+			? Process.NOOP
+			: new TcpServer(
+				options.port,
+				options.binaryPort,
+				this::executeAsync,
+				options.tcpMaxPipelinedRequests,
+				options.tcpReactorCount,
+				options.tcpMaxLineLength
+			);
 		this.walStore = new WALStore(
 			options.getDataDirectory(),
 			options.syncPolicy,
 			options.batchSize,
-			options.syncIntervalMs
+			options.syncIntervalMs,
+			options.walSegmentBytes,
+			options.walPreallocate
 		);
 	}
 
 	public void execute(Command command) {
-		eventLoop.offer(command, Sink.callback(c -> onCommand(c, false)));
+		executeAsync(command);
 	}
 
 	public Result executeSync(Command command) throws Exception {
@@ -59,27 +153,295 @@ public class DStruct {
 
 	public CompletableFuture<Result> executeAsync(Command dsCommand) {
 		CompletableFuture<Result> cf = new CompletableFuture<>();
-		eventLoop.offer(
+		if (eventLoops.length > 1 && nestedBatchSpansShards(dsCommand)) {
+			cf.complete(new Error("nested batch spans more than one shard"));
+			return cf;
+		}
+		if (dsCommand instanceof Batch batch && eventLoops.length > 1) {
+			BitSet shards = shardsOf(batch);
+			if (shards.cardinality() > 1) {
+				executeCrossShard(batch, shards, cf);
+				return cf;
+			}
+			int shard = shards.nextSetBit(0);
+			executeOnShard(dsCommand, shard < 0 ? 0 : shard, cf);
+			return cf;
+		}
+		executeOnShard(dsCommand, shardOf(dsCommand), cf);
+		return cf;
+	}
+
+	private void executeOnShard(Command dsCommand, int shard, CompletableFuture<Result> cf) {
+		boolean offered = eventLoops[shard].offer(
 			dsCommand,
 			Sink
 				.callback(command -> {
 					try {
-						cf.complete(onCommand(command, false));
+						completeWhenDurable(command, shard, onCommand(command, shard), cf);
 					}
 					catch (Exception e) {
 						cf.completeExceptionally(e);
 					}
-				}, cf::completeExceptionally)
+				}, e -> cf.complete(onError(e)))
 		);
-		return cf;
+		if (!offered) {
+			cf.completeExceptionally(new IllegalStateException("event loop is closed"));
+		}
+	}
+
+	/**
+	 * Executes a batch spanning more than one shard.
+	 * <p>
+	 * A barrier event is offered to every involved shard. When a shard reaches it, its thread
+	 * parks until the batch is done, so nobody else can touch its partition. The lowest involved
+	 * shard waits for all the others to park, then executes the whole batch in order and
+	 * releases them. The batch is written to the WAL by the owner at that point, when every
+	 * command that precedes it on the involved shards has already been written.
+	 * Barriers are offered under a global lock so every shard queue sees cross shard batches
+	 * in the same order, otherwise two batches could wait for each other forever.
+	 */
+	private void executeCrossShard(Batch batch, BitSet shards, CompletableFuture<Result> cf) {
+		int owner = shards.nextSetBit(0);
+		CompletableFuture<Result> executed = new CompletableFuture<>();
+		executeOnBarrier(shards, () -> {
+			Result result = onCrossShardBatch(batch, owner);
+			completeWhenDurable(batch, owner, result, cf);
+			return result;
+		}, executed);
+		// the batch didn't run
+		executed.whenComplete((result, e) -> {
+			if (e != null) cf.completeExceptionally(e);
+			else if (result instanceof Error) cf.complete(result);
+		});
+	}
+
+	/**
+	 * Completes cf with the result of a command once the WAL has made it durable: the event loop
+	 * goes on with the next commands meanwhile. Read only commands are completed right away.
+	 */
+	private void completeWhenDurable(Command command, int shard, Result result, CompletableFuture<Result> cf) {
+		if (!options.writeAHeadLogging || !command.isPersisted()) {
+			cf.complete(result);
+			return;
+		}
+		walStore.whenDurable(walSequences[shard], e -> cf.complete(e == null ? result : onError(e)));
+	}
+
+	/**
+	 * Runs action on the thread of the lowest shard while all the given shards are parked,
+	 * see {@link #executeCrossShard}. If a shard is closed, cf fails and the shards already
+	 * reached are released without running action.
+	 */
+	private void executeOnBarrier(BitSet shards, Supplier<Result> action, CompletableFuture<Result> cf) {
+		int owner = shards.nextSetBit(0);
+		CountDownLatch parked = new CountDownLatch(shards.cardinality() - 1);
+		CountDownLatch done = new CountDownLatch(1);
+		synchronized (crossShardLock) {
+			for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+				boolean offered;
+				if (shard == owner) {
+					offered = eventLoops[shard].offer(null, Sink.callback(command -> {
+						try {
+							parked.await();
+							if (!cf.isDone()) {
+								cf.complete(action.get());
+							}
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							cf.completeExceptionally(e);
+						}
+						catch (Exception e) {
+							cf.completeExceptionally(e);
+						}
+						finally {
+							done.countDown();
+						}
+					}, e -> {
+						cf.complete(onError(e));
+						done.countDown();
+					}));
+				}
+				else {
+					Runnable park = () -> {
+						parked.countDown();
+						try {
+							done.await();
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					};
+					offered = eventLoops[shard].offer(null, Sink.callback(command -> park.run(), e -> park.run()));
+				}
+				if (!offered) {
+					cf.completeExceptionally(new IllegalStateException("event loop is closed"));
+					while (parked.getCount() > 0) {
+						parked.countDown();
+					}
+					done.countDown();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Logs the persisted commands drained by an event loop before any of them is executed: they are
+	 * queued for the WAL writer, their replies wait for them to be durable, see {@link #completeWhenDurable}.
+	 * A null command is a cross shard barrier: the WAL is written up to it, the commands after it
+	 * are written once the barrier is released, so the WAL order matches the execution order.
+	 * <p>
+	 * The clock of the shard is fixed for the whole run and the names it touches are expired first,
+	 * then the memory for its writes is made, rejected commands are not written.
+	 */
+	private int writeAhead(int shard, Command[] commands, int offset, int length) {
+		if (commands[offset] == null) return 1;
+		int end = offset;
+		while (end < offset + length && commands[end] != null) end++;
+		long now = System.currentTimeMillis();
+		inMemoryStores[shard].advanceClock(now);
+		List<Command> expired = new ArrayList<>();
+		for (int i = offset; i < end; i++) {
+			commands[i] = expire(commands[i], now, expired);
+		}
+		if (!expired.isEmpty()) {
+			delete(expired);
+		}
+		Set<Command> rejected = this.rejected[shard];
+		rejected.clear();
+		if (options.maxMemory > 0) {
+			long reserved = 0;
+			for (int i = offset; i < end; i++) {
+				long growth = inMemoryStores[shard].estimateGrowth(commands[i]);
+				if (growth == 0) continue;
+				if (makeRoom(shard, reserved + growth)) {
+					reserved += growth;
+				}
+				else {
+					rejected.add(commands[i]);
+				}
+			}
+		}
+		if (options.writeAHeadLogging) {
+			if (rejected.isEmpty()) {
+				walSequences[shard] = walStore.save(commands, offset, end - offset);
+			}
+			else {
+				List<Command> admitted = new ArrayList<>(end - offset);
+				for (int i = offset; i < end; i++) {
+					if (!rejected.contains(commands[i])) admitted.add(commands[i]);
+				}
+				walSequences[shard] = walStore.save(admitted.toArray(Command[]::new), 0, admitted.size());
+			}
+		}
+		return end - offset;
+	}
+
+	/**
+	 * Evicts names of the shard until required more bytes fit in its budget.
+	 *
+	 * @return false if the eviction policy can't free enough memory
+	 */
+	private boolean makeRoom(int shard, long required) {
+		InMemoryStore store = inMemoryStores[shard];
+		long excess = store.usedMemory() + required - shardMemoryBudget;
+		if (excess <= 0) return true;
+		List<String> names = store.evictionCandidates(excess);
+		if (!names.isEmpty()) {
+			List<Command> deletes = new ArrayList<>(names.size());
+			for (String name : names) {
+				deletes.add(new Del(name));
+			}
+			delete(deletes);
+		}
+		return store.usedMemory() + required <= shardMemoryBudget;
 	}
 
-	private Result onCommand(Command command, boolean startup) {
+	/**
+	 * Lazy expiry of the names touched by a command, before it is logged and executed.
+	 * A DEL is added to expired for every name past its deadline, and an EXPIRE with a deadline
+	 * already passed is replaced by a DEL of its name, which answers the same. A VSETEX is left
+	 * as it is: a DEL would delete a name of another type, and answer NOTHING for an absent one,
+	 * its value is expired by the next command touching it or by the active expiry.
+	 *
+	 * @return the command to log and execute in place of the given one
+	 */
+	private Command expire(Command command, long now, List<Command> expired) {
+		switch (command) {
+			case Batch batch -> {
+				List<Command> commands = batch.commands();
+				if (commands == null) return batch;
+				List<Command> replaced = null;
+				for (int i = 0; i < commands.size(); i++) {
+					Command c = commands.get(i);
+					Command e = expire(c, now, expired);
+					if (e != c) {
+						if (replaced == null) replaced = new ArrayList<>(commands);
+						replaced.set(i, e);
+					}
+				}
+				return replaced == null ? batch : new Batch(replaced);
+			}
+			case Cast cast -> {
+				Command inner = expire(cast.command(), now, expired);
+				return inner == cast.command() ? cast : new Cast(cast.type(), inner);
+			}
+			default -> {}
+		}
+		String name = command.name();
+		if (name == null) return command;
+		if (inMemoryStores[shardOf(command)].isExpired(name, now)) {
+			Del del = new Del(name);
+			if (!expired.contains(del)) expired.add(del);
+		}
+		byte[] deadline = command instanceof Expire expire ? expire.deadline() : null;
+		// a malformed deadline is left to the store, which answers with an error
+		if (deadline != null && deadline.length == Long.BYTES && fromBytesToLong(deadline) <= now) {
+			return new Del(name);
+		}
+		return command;
+	}
+
+	/**
+	 * Deletes expired or evicted names, logging their DEL commands before executing them.
+	 */
+	private void delete(List<Command> deletes) {
+		if (options.writeAHeadLogging) {
+			walStore.save(deletes.toArray(Command[]::new), 0, deletes.size());
+		}
+		for (Command delete : deletes) {
+			onCommand(delete, shardOf(delete));
+		}
+	}
+
+	/**
+	 * Active expiry, run by the event loop of the shard between two batches.
+	 */
+	private void expireCycle(int shard) {
 		try {
-			if (options.writeAHeadLogging && !startup && command.isPersisted()) {
-				walStore.save(command);
+			Set<String> names = inMemoryStores[shard].expireCycle(
+				System.currentTimeMillis(),
+				options.expireCycleLimit
+			);
+			if (names.isEmpty()) return;
+			List<Command> deletes = new ArrayList<>(names.size());
+			for (String name : names) {
+				deletes.add(new Del(name));
 			}
-			return inMemoryStore.manageCommand(command);
+			delete(deletes);
+		}
+		catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+	private Result onCommand(Command command, int shard) {
+		if (!rejected[shard].isEmpty() && rejected[shard].remove(command)) {
+			return new Error("out of memory");
+		}
+		try {
+			return inMemoryStores[shard].manageCommand(command);
 		}
 		catch (Exception e) {
 			log.error(e);
@@ -87,23 +449,287 @@ public class DStruct {
 		}
 	}
 
+	private Result onError(Throwable throwable) {
+		log.error(throwable);
+		return new Error(throwable.getMessage());
+	}
+
+	private Result onCrossShardBatch(Batch batch, int owner) {
+		try {
+			long now = System.currentTimeMillis();
+			BitSet shards = shardsOf(batch);
+			for (int shard = shards.nextSetBit(0); shard >= 0; shard = shards.nextSetBit(shard + 1)) {
+				inMemoryStores[shard].advanceClock(now);
+			}
+			List<Command> expired = new ArrayList<>();
+			batch = (Batch) expire(batch, now, expired);
+			if (!expired.isEmpty()) {
+				delete(expired);
+			}
+			if (options.maxMemory > 0 && !makeRoom(batch)) {
+				return new Error("out of memory");
+			}
+			if (options.writeAHeadLogging) {
+				walSequences[owner] = walStore.save(batch);
+			}
+			List<Result> results = new ArrayList<>(batch.commands().size());
+			for (Command command : batch.commands()) {
+				results.add(inMemoryStores[shardOf(command)].manageCommand(command));
+			}
+			return new Results(results);
+		}
+		catch (Exception e) {
+			log.error(e);
+			return new Error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Checked by the first event loop between two batches. The checkpoint is started from
+	 * another thread: offering its barrier from the loop thread could wait on the loop's own
+	 * full queue forever.
+	 */
+	private void checkpointIfDue() {
+		if (!options.writeAHeadLogging || checkpointing.get()) return;
+		try {
+			boolean due = options.checkpointWalBytes > 0 && walStore.size() >= options.checkpointWalBytes
+				|| options.checkpointIntervalMs > 0
+				&& System.currentTimeMillis() - lastCheckpoint >= options.checkpointIntervalMs;
+			if (due) {
+				CompletableFuture.runAsync(options.checkpointCompact ? this::compact : this::checkpoint);
+			}
+		}
+		catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the data and truncates the WAL. Shards are parked only to rotate the
+	 * WAL and to take a view of their stores, the snapshot is written in the background while
+	 * they keep executing commands. The future completes once the snapshot is durable.
+	 * Only one checkpoint runs at a time, the others complete with an error.
+	 */
+	public CompletableFuture<Result> checkpoint() {
+		CompletableFuture<Result> cf = new CompletableFuture<>();
+		if (!options.writeAHeadLogging) {
+			cf.complete(new Error("WAL is disabled"));
+			return cf;
+		}
+		if (!checkpointing.compareAndSet(false, true)) {
+			cf.complete(new Error("checkpoint in progress"));
+			return cf;
+		}
+		BitSet shards = new BitSet(eventLoops.length);
+		shards.set(0, eventLoops.length);
+		CompletableFuture<Result> paused = new CompletableFuture<>();
+		executeOnBarrier(shards, () -> onCheckpoint(cf), paused);
+		paused.whenComplete((result, e) -> {
+			if (e != null) cf.completeExceptionally(e);
+			else if (result instanceof Error) cf.complete(result);
+		});
+		return cf.whenComplete((result, e) -> {
+			lastCheckpoint = System.currentTimeMillis();
+			checkpointing.set(false);
+		});
+	}
+
+	/**
+	 * Compacts the WAL without touching the shards: the log is sealed between two writes, then
+	 * the snapshot and the sealed segments are replayed into a scratch store, in the background,
+	 * and its data replaces them as the new snapshot. What is left is what rebuilds the current
+	 * data: the last value of a name, the entries of a map, the names not deleted. The scratch
+	 * store needs as much memory as the data. It shares the single run of {@link #checkpoint}.
+	 */
+	public CompletableFuture<Result> compact() {
+		CompletableFuture<Result> cf = new CompletableFuture<>();
+		if (!options.writeAHeadLogging) {
+			cf.complete(new Error("WAL is disabled"));
+			return cf;
+		}
+		if (!checkpointing.compareAndSet(false, true)) {
+			cf.complete(new Error("checkpoint in progress"));
+			return cf;
+		}
+		Thread.ofPlatform().name("dstruct-compaction").start(() -> {
+			try {
+				Instant start = Instant.now();
+				long segment = walStore.rotate();
+				try (InMemoryStore scratch = new InMemoryStore(options.storeOffHeap)) {
+					walStore.read(segment, scratch::manageCommand);
+					walStore.writeSnapshot(segment, scratch.beginSnapshot());
+				}
+				log.info("Compaction done in: " + Duration.between(start, Instant.now()));
+				cf.complete(EmptyResult.OK);
+			}
+			catch (Exception e) {
+				log.error(e);
+				cf.complete(new Error(e.getMessage()));
+			}
+		});
+		return cf.whenComplete((result, e) -> {
+			lastCheckpoint = System.currentTimeMillis();
+			checkpointing.set(false);
+		});
+	}
+
+	/**
+	 * Runs on the barrier: rotates the WAL, takes a view of every store, then hands them to
+	 * the thread writing the snapshot, which completes cf.
+	 */
+	private Result onCheckpoint(CompletableFuture<Result> cf) {
+		try {
+			Instant start = Instant.now();
+			long segment = walStore.rotate();
+			List<Consumer<Consumer<Command>>> views = new ArrayList<>(inMemoryStores.length);
+			for (InMemoryStore store : inMemoryStores) {
+				views.add(store.beginSnapshot());
+			}
+			log.info("Checkpoint paused the shards for: " + Duration.between(start, Instant.now()));
+			Thread.ofPlatform().name("dstruct-snapshot").start(() -> {
+				try {
+					walStore.writeSnapshot(segment, out -> views.forEach(view -> view.accept(out)));
+					log.info("Checkpoint done in: " + Duration.between(start, Instant.now()));
+					cf.complete(EmptyResult.OK);
+				}
+				catch (Exception e) {
+					log.error(e);
+					cf.complete(new Error(e.getMessage()));
+				}
+			});
+			return EmptyResult.OK;
+		}
+		catch (Exception e) {
+			log.error(e);
+			return new Error(e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes room for a cross shard batch on every shard it writes to.
+	 */
+	private boolean makeRoom(Batch batch) {
+		long[] growth = new long[inMemoryStores.length];
+		for (Command command : batch.commands()) {
+			int shard = shardOf(command);
+			growth[shard] += inMemoryStores[shard].estimateGrowth(command);
+		}
+		for (int shard = 0; shard < growth.length; shard++) {
+			if (growth[shard] > 0 && !makeRoom(shard, growth[shard])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int shardOf(Command command) {
+		if (eventLoops.length == 1) return 0;
+		if (command instanceof Cast cast) return shardOf(cast.command());
+		// a batch on a single shard, like the replayed ones
+		if (command instanceof Batch batch) {
+			return batch.commands() == null || batch.commands().isEmpty() ? 0 : shardOf(batch.commands().getFirst());
+		}
+		String name = command.name();
+		if (name == null) return 0;
+		return Math.floorMod(name.hashCode(), eventLoops.length);
+	}
+
+	/**
+	 * Whether a batch nested in the command spans more than one shard: only a top level batch
+	 * runs across shards, a nested one is executed by the store of its first command.
+	 */
+	private boolean nestedBatchSpansShards(Command command) {
+		if (command instanceof Batch batch) {
+			return batch.commands() != null && batch.commands().stream().anyMatch(this::spansShards);
+		}
+		return spansShards(command);
+	}
+
+	private boolean spansShards(Command command) {
+		if (command instanceof Cast cast) return spansShards(cast.command());
+		if (!(command instanceof Batch batch) || batch.commands() == null) return false;
+		int first = -1;
+		for (Command inner : batch.commands()) {
+			int shard = shardOf(inner);
+			if (spansShards(inner) || first >= 0 && shard != first) return true;
+			first = shard;
+		}
+		return false;
+	}
+
+	private BitSet shardsOf(Batch batch) {
+		BitSet shards = new BitSet(eventLoops.length);
+		if (batch.commands() != null) {
+			for (Command command : batch.commands()) {
+				shards.set(shardOf(command));
+			}
+		}
+		return shards;
+	}
+
+	/**
+	 * Approximate memory used by the data, in bytes, 0 if {@code maxMemory} is not set.
+	 */
+	public long usedMemory() {
+		long used = 0;
+		for (InMemoryStore store : inMemoryStores) {
+			used += store.usedMemory();
+		}
+		return used;
+	}
+
+	/**
+	 * Number of names evicted since the start, the ones deleted by the WAL replay excluded.
+	 */
+	public long evictedKeys() {
+		long evicted = 0;
+		for (InMemoryStore store : inMemoryStores) {
+			evicted += store.evictedKeys();
+		}
+		return evicted;
+	}
+
+	/**
+	 * Sync latency and unsynced bytes of the WAL.
+	 */
+	public WALStore.SyncStats walSyncStats() {
+		return walStore.syncStats();
+	}
+
 	public void start() throws Exception {
 		Instant now = Instant.now();
-		eventLoop.start();
-		walStore.start(dsCommand -> onCommand(dsCommand, true));
+		// replayed before the loops start, their expiry cycle must not run meanwhile
+		try (Replayer replayer = new Replayer(
+			eventLoops.length,
+			options.eventLoopCapacity,
+			options.eventLoopWaitStrategy,
+			this::shardOf,
+			this::onCommand
+		)) {
+			walStore.start(replayer);
+		}
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.start();
+		}
 		tcpServer.start();
 		log.info("Server started in: " + Duration.between(now, Instant.now()));
 	}
 
 	public void stop() {
 		try (
-			var a1 = eventLoop;
 			var a2 = tcpServer;
 			var a3 = walStore
-		) {}
+		) {
+			for (EventLoop eventLoop : eventLoops) {
+				eventLoop.close();
+			}
+		}
 		catch (Exception e) {
 			log.error(e);
 		}
+		for (InMemoryStore store : inMemoryStores) {
+			store.close();
+		}
 	}
 
 }
@@ -1,71 +1,192 @@
 package dev.dstruct;
 
 import dev.dstruct.command.Command;
+import dev.dstruct.logging.Log;
+import dev.dstruct.logging.LogFactory;
 import dev.dstruct.util.Process;
 import dev.dstruct.util.Sink;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * Basic implementation of event loop with a single thread.
+ * Events are exchanged through a bounded {@link RingBuffer}.
+ * <p>
+ * The loop drains every ready event at once, up to {@code drainLimit}, and hands them
+ * to the {@link BatchListener} before running any callback. This is where the drained events are
+ * written to the WAL with a single group commit.
+ * <p>
+ * An optional periodic task runs on the loop thread too, between two batches, every
+ * {@code tickIntervalMs}: this is where the active expiry of the shard runs.
+ * <p>
+ * Once closed, the events left in the ring are drained and their callbacks receive an error,
+ * so no caller waits for a command that will never run.
  */
 class EventLoop implements Process {
 
-	record Event(
-		Command command,
-		Sink<Command> callback
-	) {}
+	static final int DEFAULT_CAPACITY = 1 << 16;
+	static final int DEFAULT_DRAIN_LIMIT = 1024;
+
+	private static final Log log = LogFactory.create(EventLoop.class);
+
+	/**
+	 * Called by the loop thread with the drained events, before their callbacks.
+	 * It returns how many events, starting from offset, can be handed to their callbacks now;
+	 * it is called again for the remaining ones once those callbacks are done.
+	 * If it throws, the callbacks of all the remaining events receive the error instead of the command.
+	 */
+	@FunctionalInterface
+	interface BatchListener {
+		int beforeBatch(Command[] commands, int offset, int length) throws Exception;
+
+		BatchListener NOOP = (commands, offset, length) -> length;
+	}
 
 	private final AtomicBoolean running = new AtomicBoolean(true);
 	private final ExecutorService executor;
-	private final LinkedBlockingDeque<Event> events;
+	private final RingBuffer events;
+	private final BatchListener batchListener;
+	private final Runnable tick;
+	private final long tickIntervalNanos;
+	private final Command[] commands;
+	private final Sink<Command>[] callbacks;
 
 	EventLoop(String name) {
-		this(name, Integer.MAX_VALUE);
+		this(name, DEFAULT_CAPACITY, WaitStrategy.PARK, DEFAULT_DRAIN_LIMIT, BatchListener.NOOP);
+	}
+
+	EventLoop(String name, int capacity, WaitStrategy waitStrategy, int drainLimit, BatchListener batchListener) {
+		this(name, capacity, waitStrategy, drainLimit, batchListener, null, 0);
 	}
 
-	EventLoop(String name, int capacity) {
+	/**
+	 * @param tick periodic task run by the loop thread, null for none
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	EventLoop(
+		String name,
+		int capacity,
+		WaitStrategy waitStrategy,
+		int drainLimit,
+		BatchListener batchListener,
+		Runnable tick,
+		long tickIntervalMs
+	) {
+		if (drainLimit < 1) {
+			throw new IllegalArgumentException("drainLimit must be greater than 0");
+		}
+		if (tick != null && tickIntervalMs < 1) {
+			throw new IllegalArgumentException("tickIntervalMs must be greater than 0");
+		}
 		this.executor = Executors.newSingleThreadExecutor(
 			Thread
 				.ofPlatform()
 				.name(name)
 				.factory()
 		);
-		this.events = new LinkedBlockingDeque<>(capacity);
+		this.events = new RingBuffer(capacity, waitStrategy);
+		this.batchListener = batchListener;
+		this.tick = tick;
+		this.tickIntervalNanos = tick == null ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(tickIntervalMs);
+		this.commands = new Command[Math.min(drainLimit, capacity)];
+		this.callbacks = new Sink[commands.length];
 	}
 
-	public void offer(Command command, Sink<Command> sink) {
-		events.offer(new Event(command, sink));
+	/**
+	 * Offers a command to the loop, waiting while the loop is full.
+	 *
+	 * @return false if the loop has been closed
+	 */
+	public boolean offer(Command command, Sink<Command> sink) {
+		return events.offer(command, sink);
 	}
 
 	public void start() {
 		this.executor.execute(() -> {
+			long nextTick = System.nanoTime() + tickIntervalNanos;
 			while (running.get()) {
+				long timeout = tick == null ? Long.MAX_VALUE : nextTick - System.nanoTime();
+				int size = events.drain(commands, callbacks, commands.length, timeout);
+				if (size > 0) {
+					onEvents(size);
+				}
+				if (tick != null && System.nanoTime() - nextTick >= 0) {
+					tick.run();
+					nextTick = System.nanoTime() + tickIntervalNanos;
+				}
+			}
+			failPending();
+		});
+	}
+
+	/**
+	 * Fails the callbacks of the events left in the closed ring.
+	 */
+	private void failPending() {
+		IllegalStateException closed = new IllegalStateException("event loop is closed");
+		int size;
+		while ((size = events.drainClosed(commands, callbacks, commands.length)) > 0) {
+			for (int i = 0; i < size; i++) {
+				Sink<Command> callback = callbacks[i];
+				if (callback == null) continue;
 				try {
-					Event event = events.take();
+					callback.error(closed);
+				}
+				catch (RuntimeException e) {
+					log.error(e);
+				}
+			}
+			Arrays.fill(commands, 0, size, null);
+			Arrays.fill(callbacks, 0, size, null);
+		}
+	}
 
-					if (event.callback == null) {
+	private void onEvents(int size) {
+		try {
+			int offset = 0;
+			while (offset < size) {
+				int length = size - offset;
+				Exception error = null;
+				try {
+					length = Math.clamp(batchListener.beforeBatch(commands, offset, length), 1, length);
+				}
+				catch (Exception e) {
+					error = e;
+				}
+				for (int i = offset; i < offset + length; i++) {
+					Sink<Command> callback = callbacks[i];
+					if (callback == null) {
 						continue;
 					}
+					if (error == null) {
+						callback.next(commands[i]);
+					}
 					else {
-						event.callback.next(event.command());
+						callback.error(error);
 					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					break;
 				}
-
+				offset += length;
 			}
-		});
+		}
+		finally {
+			Arrays.fill(commands, 0, size, null);
+			Arrays.fill(callbacks, 0, size, null);
+		}
 	}
 
 	@Override
 	public void close() {
+		// closes the ring first, so the loop sees it closed when it stops and fails what is left
+		events.close();
 		running.set(false);
-		executor.shutdown();
+		// interrupts a loop parked on a cross shard barrier, whose other shards may be closed already,
+		// then waits for the command in progress, the store may be closed next
+		executor.shutdownNow();
+		executor.close();
 	}
 
 }
@@ -1,30 +1,71 @@
 package dev.dstruct;
 
+import dev.dstruct.inmemory.EvictionPolicy;
+import dev.dstruct.parser.Scanner;
 import dev.dstruct.util.Config;
 import dev.dstruct.wal.SyncPolicy;
+import dev.dstruct.wal.WALStore;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 class Options {
 
 	int port = 4242;
+	int binaryPort = 0;
+	int tcpMaxPipelinedRequests = TcpServer.DEFAULT_MAX_PIPELINED_REQUESTS;
+	int tcpReactorCount = 1;
+	int tcpMaxLineLength = Scanner.DEFAULT_MAX_LINE_LENGTH;
 	String eventLoopThreadName = "dstruct-event-loop";
+	int eventLoopCount = 1;
+	int eventLoopCapacity = EventLoop.DEFAULT_CAPACITY;
+	WaitStrategy eventLoopWaitStrategy = WaitStrategy.PARK;
+	int eventLoopDrainLimit = EventLoop.DEFAULT_DRAIN_LIMIT;
+	long expireCycleMs = 100;
+	int expireCycleLimit = 1000;
+	long maxMemory = 0;
+	EvictionPolicy evictionPolicy = EvictionPolicy.NO_EVICTION;
+	int evictionSamples = 5;
+	boolean storeOffHeap = false;
 	boolean writeAHeadLogging = true;
 	String dataDirectory;
 	SyncPolicy syncPolicy = SyncPolicy.BATCHED;
 	int batchSize = 100;
 	long syncIntervalMs = 1000;
+	long walSegmentBytes = WALStore.DEFAULT_SEGMENT_BYTES;
+	boolean walPreallocate = true;
+	long checkpointWalBytes = 64 * 1024 * 1024;
+	long checkpointIntervalMs = 0;
+	boolean checkpointCompact = false;
 
 	@Override
 	public String toString() {
 		return "Options{" +
 			"tcpPort=" + port +
+			", binaryPort=" + binaryPort +
+			", tcpMaxPipelinedRequests=" + tcpMaxPipelinedRequests +
+			", tcpReactorCount=" + tcpReactorCount +
+			", tcpMaxLineLength=" + tcpMaxLineLength +
 			", eventLoopThreadName='" + eventLoopThreadName + '\'' +
+			", eventLoopCount=" + eventLoopCount +
+			", eventLoopCapacity=" + eventLoopCapacity +
+			", eventLoopWaitStrategy=" + eventLoopWaitStrategy +
+			", eventLoopDrainLimit=" + eventLoopDrainLimit +
+			", expireCycleMs=" + expireCycleMs +
+			", expireCycleLimit=" + expireCycleLimit +
+			", maxMemory=" + maxMemory +
+			", evictionPolicy=" + evictionPolicy +
+			", evictionSamples=" + evictionSamples +
+			", storeOffHeap=" + storeOffHeap +
 			", writeAHeadLogging=" + writeAHeadLogging +
 			", dataDirectory='" + dataDirectory + '\'' +
 			", syncPolicy=" + syncPolicy +
 			", batchSize=" + batchSize +
 			", syncIntervalMs=" + syncIntervalMs +
+			", walSegmentBytes=" + walSegmentBytes +
+			", walPreallocate=" + walPreallocate +
+			", checkpointWalBytes=" + checkpointWalBytes +
+			", checkpointIntervalMs=" + checkpointIntervalMs +
+			", checkpointCompact=" + checkpointCompact +
 			'}';
 	}
 
@@ -45,12 +86,100 @@ class Options {
 				options.port
 			);
 
+		options.binaryPort =
+			Config.resolveInt(
+				"dstruct.binary.port",
+				options.binaryPort
+			);
+
+		options.tcpMaxPipelinedRequests =
+			Config.resolveInt(
+				"dstruct.tcp.max.pipelined.requests",
+				options.tcpMaxPipelinedRequests
+			);
+
+		options.tcpReactorCount =
+			Config.resolveInt(
+				"dstruct.tcp.reactor.count",
+				options.tcpReactorCount
+			);
+
+		options.tcpMaxLineLength =
+			Config.resolveInt(
+				"dstruct.tcp.max.line.length",
+				options.tcpMaxLineLength
+			);
+
 		options.eventLoopThreadName =
 			Config.resolve(
 				"dstruct.event.loop.thread.name",
 				options.eventLoopThreadName
 			);
 
+		options.eventLoopCount =
+			Config.resolveInt(
+				"dstruct.event.loop.count",
+				options.eventLoopCount
+			);
+
+		options.eventLoopCapacity =
+			Config.resolveInt(
+				"dstruct.event.loop.capacity",
+				options.eventLoopCapacity
+			);
+
+		String waitStrategy =
+			Config.resolve(
+				"dstruct.event.loop.wait.strategy",
+				options.eventLoopWaitStrategy.name()
+			);
+
+		options.eventLoopWaitStrategy = WaitStrategy.valueOf(waitStrategy.toUpperCase());
+
+		options.eventLoopDrainLimit =
+			Config.resolveInt(
+				"dstruct.event.loop.drain.limit",
+				options.eventLoopDrainLimit
+			);
+
+		options.expireCycleMs =
+			Config.resolveLong(
+				"dstruct.expire.cycle.ms",
+				options.expireCycleMs
+			);
+
+		options.expireCycleLimit =
+			Config.resolveInt(
+				"dstruct.expire.cycle.limit",
+				options.expireCycleLimit
+			);
+
+		options.maxMemory =
+			Config.resolveLong(
+				"dstruct.max.memory",
+				options.maxMemory
+			);
+
+		String evictionPolicy =
+			Config.resolve(
+				"dstruct.eviction.policy",
+				options.evictionPolicy.name()
+			);
+
+		options.evictionPolicy = EvictionPolicy.valueOf(evictionPolicy.toUpperCase());
+
+		options.evictionSamples =
+			Config.resolveInt(
+				"dstruct.eviction.samples",
+				options.evictionSamples
+			);
+
+		options.storeOffHeap =
+			Config.resolveBoolean(
+				"dstruct.store.off.heap",
+				options.storeOffHeap
+			);
+
 		options.writeAHeadLogging =
 			Config.resolveBoolean(
 				"dstruct.wal.enabled",
@@ -83,6 +212,36 @@ class Options {
 				options.syncIntervalMs
 			);
 
+		options.walSegmentBytes =
+			Config.resolveLong(
+				"dstruct.wal.segment.bytes",
+				options.walSegmentBytes
+			);
+
+		options.walPreallocate =
+			Config.resolveBoolean(
+				"dstruct.wal.preallocate",
+				options.walPreallocate
+			);
+
+		options.checkpointWalBytes =
+			Config.resolveLong(
+				"dstruct.checkpoint.wal.bytes",
+				options.checkpointWalBytes
+			);
+
+		options.checkpointIntervalMs =
+			Config.resolveLong(
+				"dstruct.checkpoint.interval.ms",
+				options.checkpointIntervalMs
+			);
+
+		options.checkpointCompact =
+			Config.resolveBoolean(
+				"dstruct.checkpoint.compact",
+				options.checkpointCompact
+			);
+
 		return options;
 	}
 
@@ -0,0 +1,399 @@
+package dev.dstruct;
+
+import dev.dstruct.Result.EmptyResult;
+import dev.dstruct.Result.Error;
+import dev.dstruct.Result.Ok;
+import dev.dstruct.Result.Results;
+import dev.dstruct.command.Command;
+import dev.dstruct.logging.Log;
+import dev.dstruct.logging.LogFactory;
+import dev.dstruct.parser.ParseException;
+import dev.dstruct.parser.Parser;
+import dev.dstruct.parser.Scanner;
+import dev.dstruct.util.Process;
+import dev.dstruct.util.ReqRes;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * I/O reactor of the {@link TcpServer}: a thread with its own selector that reads, parses
+ * and writes the connections assigned to it by the acceptor.
+ * <p>
+ * Requests are pipelined: a connection keeps being read while its previous commands are still
+ * executing, every parsed command gets a slot in the connection response queue and responses
+ * are written in request order as soon as the head of the queue is completed.
+ * When a connection has {@code maxPipelinedRequests} responses pending, it is not read anymore
+ * until some of them are written.
+ * <p>
+ * A connection speaks either the text protocol or the {@link BinaryProtocol}, according to
+ * the port it was accepted on.
+ */
+class Reactor implements Process {
+
+	private static final Log log = LogFactory.create(Reactor.class);
+
+	private final ReqRes reqRes;
+	private final int maxPipelinedRequests;
+	private final int maxLineLength;
+	private final Selector selector;
+	private final ExecutorService executor;
+	private final AtomicBoolean running = new AtomicBoolean(true);
+
+	enum Protocol { TEXT, BINARY }
+
+	private static final int BINARY_BUFFER_SIZE = 8192;
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] OK = EmptyResult.OK.name().getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NOTHING = EmptyResult.NOTHING.name().getBytes(StandardCharsets.UTF_8);
+
+	private final LinkedBlockingDeque<Connection> acceptedConnections = new LinkedBlockingDeque<>();
+	private final LinkedBlockingDeque<SelectionKey> completedResponses = new LinkedBlockingDeque<>();
+
+	Reactor(String name, ReqRes reqRes, int maxPipelinedRequests, int maxLineLength) throws IOException {
+		this.reqRes = reqRes;
+		this.maxPipelinedRequests = maxPipelinedRequests;
+		this.maxLineLength = maxLineLength;
+		this.selector = Selector.open();
+		this.executor = Executors.newSingleThreadExecutor(
+			Thread
+				.ofPlatform()
+				.name(name)
+				.factory()
+		);
+	}
+
+	/**
+	 * Hands a connection accepted by another thread to this reactor.
+	 */
+	void register(SocketChannel channel, Protocol protocol) {
+		acceptedConnections.offer(new Connection(channel, protocol, maxLineLength));
+		selector.wakeup();
+	}
+
+	@Override
+	public void start() {
+		executor.execute(this::reactorLoop);
+	}
+
+	private void reactorLoop() {
+		try {
+			while (running.get()) {
+				processAcceptedChannels();
+				processPendingResponses();
+				if (selector.select() == 0) continue;
+				Set<SelectionKey> selectedKeys = selector.selectedKeys();
+				Iterator<SelectionKey> iterator = selectedKeys.iterator();
+
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isReadable()) {
+						handleRead(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						handleWrite(key);
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			cleanup();
+		}
+	}
+
+	private void processAcceptedChannels() {
+		Connection connection;
+		while ((connection = acceptedConnections.poll()) != null) {
+			try {
+				connection.channel.configureBlocking(false);
+				connection.channel.register(selector, SelectionKey.OP_READ, connection);
+			}
+			catch (IOException e) {
+				log.error(e);
+				try {
+					connection.channel.close();
+				}
+				catch (IOException ignore) {}
+			}
+		}
+	}
+
+	private void enqueueResponse(SelectionKey key, PendingResponse response, Result result) {
+		response.result = result;
+		if (!key.isValid()) {
+			return;
+		}
+
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (!channel.isOpen() || !channel.isConnected()) {
+			return;
+		}
+		completedResponses.offer(key);
+		selector.wakeup();
+	}
+
+	private void processPendingResponses() {
+		SelectionKey key;
+		while ((key = completedResponses.poll()) != null) {
+			if (key.isValid()) {
+				SocketChannel channel = (SocketChannel) key.channel();
+				if (channel.isOpen() && channel.isConnected()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+	}
+
+	private void handleWrite(SelectionKey key) {
+		SocketChannel clientChannel = (SocketChannel) key.channel();
+
+		try {
+
+			if (!key.isValid() || !clientChannel.isOpen() || !clientChannel.isConnected()) {
+				closeChannel(key);
+				return;
+			}
+
+			Connection connection = (Connection) key.attachment();
+			while (!connection.responses.isEmpty() && connection.responses.peek().result != null) {
+				Result result = connection.responses.poll().result;
+				if (connection.protocol == Protocol.BINARY) {
+					BinaryProtocol.encode(result, connection.outgoing);
+				}
+				else {
+					encodeText(result, connection.outgoing);
+				}
+			}
+
+			int interestOps = key.interestOps();
+			if (connection.outgoing.writeTo(clientChannel)) {
+				// written all completed responses, next ones will ask for OP_WRITE again
+				interestOps &= ~SelectionKey.OP_WRITE;
+			}
+			if (connection.responses.size() < maxPipelinedRequests) {
+				interestOps |= SelectionKey.OP_READ;
+			}
+			key.interestOps(interestOps);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeChannel(key);
+		}
+	}
+
+	private void handleRead(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			SocketChannel channel = (SocketChannel)key.channel();
+			if (!channel.isOpen() || !channel.isConnected()) {
+				closeChannel(key);
+				return;
+			}
+			boolean open = connection.protocol == Protocol.BINARY
+				? readFrames(key, connection)
+				: readLines(key, connection);
+			if (!open) {
+				closeChannel(key);
+				return;
+			}
+			if (connection.responses.size() >= maxPipelinedRequests) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+		}
+		catch (IOException e) {
+			// usually a connection reset by the client
+			log.debug(e);
+			closeChannel(key);
+		}
+	}
+
+	private void submit(SelectionKey key, Connection connection, Command command) {
+		PendingResponse response = new PendingResponse();
+		connection.responses.add(response);
+		reqRes
+			.apply(command)
+			.orTimeout(30, TimeUnit.SECONDS)
+			.whenComplete((result, throwable) -> {
+				if (throwable != null) {
+					enqueueResponse(key, response, new Error(throwable.getMessage()));
+				}
+				else {
+					enqueueResponse(key, response, result);
+				}
+			});
+	}
+
+	private void respond(SelectionKey key, Connection connection, Result result) {
+		PendingResponse response = new PendingResponse();
+		connection.responses.add(response);
+		enqueueResponse(key, response, result);
+	}
+
+	/**
+	 * Reads the available bytes and submits every complete frame, a partial frame stays
+	 * in the connection buffer until the next read.
+	 *
+	 * @return false if the connection has been closed by the client or can't be framed anymore
+	 */
+	private boolean readFrames(SelectionKey key, Connection connection) throws IOException {
+		ByteBuffer in = connection.in;
+		try {
+			if (connection.channel.read(in) < 0) {
+				return false;
+			}
+			in.flip();
+			int length;
+			while ((length = BinaryProtocol.frameLength(in)) >= 0) {
+				int frameEnd = in.position() + Integer.BYTES + length;
+				if (frameEnd > in.limit()) {
+					break;
+				}
+				Command command = BinaryProtocol.decode(in.slice(in.position() + Integer.BYTES, length));
+				in.position(frameEnd);
+				if (command == null) {
+					respond(key, connection, new Error("Invalid binary frame"));
+				}
+				else {
+					submit(key, connection, command);
+				}
+			}
+			in.compact();
+			if (length > 0 && Integer.BYTES + length > in.capacity()) {
+				connection.in = ByteBuffer.allocate(Integer.BYTES + length).put(in.flip());
+			}
+			return true;
+		}
+		catch (IllegalStateException e) {
+			log.error(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the available bytes and submits the command of every complete line, a partial line
+	 * stays in the connection scanner until the next read. A malformed line is answered with
+	 * an error in its place.
+	 *
+	 * @return false if the connection has been closed by the client
+	 */
+	private boolean readLines(SelectionKey key, Connection connection) throws IOException {
+		Scanner scanner = connection.scanner;
+		if (scanner.read(connection.channel) < 0) {
+			return false;
+		}
+		scanner.parse();
+		Parser parser = new Parser(scanner.getTokens());
+		while (true) {
+			Command command;
+			try {
+				command = parser.next();
+			}
+			catch (ParseException parseException) {
+				respond(key, connection, new Error(parseException.getMessage()));
+				continue;
+			}
+			if (command == null) {
+				return true;
+			}
+			submit(key, connection, command);
+		}
+	}
+
+	/**
+	 * Text response: the value followed by CRLF, the results of a batch one after the other
+	 * followed by a final CRLF.
+	 */
+	private static void encodeText(Result result, ResponseBuffer out) {
+		switch (result) {
+			case EmptyResult emptyResult -> out.put(emptyResult == EmptyResult.OK ? OK : NOTHING);
+			case Ok(byte[] value) -> {
+				if (value != null) out.put(value);
+			}
+			case Error(String message) -> out.put(message.getBytes(StandardCharsets.UTF_8));
+			case Results(List<Result> results) -> {
+				for (Result r : results) {
+					encodeText(r, out);
+				}
+			}
+		}
+		out.put(CRLF);
+	}
+
+	private void closeChannel(SelectionKey key) {
+		try {
+			key.channel().close();
+			key.cancel();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void cleanup() {
+		try {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void close() {
+		running.set(false);
+		selector.wakeup();
+		executor.shutdown();
+	}
+
+	/**
+	 * State of a client connection, owned by the reactor thread.
+	 * Responses are queued in request order, outgoing holds the buffers of the responses
+	 * already taken from the queue but not completely written yet.
+	 * Text connections keep a partial line in their scanner, binary connections keep a partial
+	 * frame in {@code in}, until the rest of it is read.
+	 */
+	private static final class Connection {
+		private final SocketChannel channel;
+		private final Protocol protocol;
+		private final ArrayDeque<PendingResponse> responses = new ArrayDeque<>();
+		private final ResponseBuffer outgoing = new ResponseBuffer();
+		private final Scanner scanner;
+		private ByteBuffer in;
+
+		private Connection(SocketChannel channel, Protocol protocol, int maxLineLength) {
+			this.channel = channel;
+			this.protocol = protocol;
+			this.scanner = protocol == Protocol.TEXT ? new Scanner(Scanner.DEFAULT_BUFFER_SIZE, maxLineLength) : null;
+			this.in = protocol == Protocol.BINARY ? ByteBuffer.allocate(BINARY_BUFFER_SIZE) : null;
+		}
+	}
+
+	/**
+	 * Slot of a pipelined request, completed by the event loop thread.
+	 */
+	private static final class PendingResponse {
+		private volatile Result result;
+	}
+
+}
@@ -0,0 +1,137 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Command.Batch;
+import dev.dstruct.util.Sink;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Applies the commands read from the WAL at startup, one worker thread per shard.
+ * <p>
+ * The thread reading the WAL only decodes the records and hands every command to the worker
+ * of its shard through a {@link RingBuffer}: commands on different names are independent, so
+ * the shards are rebuilt in parallel, each by a single thread, and they are the partitions the
+ * event loops take over once the replay is done. The commands of a shard are applied in the
+ * order they were logged.
+ * <p>
+ * A batch spanning more than one shard is an ordering barrier: the reading thread waits for
+ * every worker to apply what precedes it, then applies the batch itself.
+ */
+final class Replayer implements Consumer<Command>, AutoCloseable {
+
+	private static final int DRAIN_LIMIT = 1024;
+
+	private final RingBuffer[] rings;
+	private final Thread[] workers;
+	private final ToIntFunction<Command> shardOf;
+	private final ObjIntConsumer<Command> apply;
+
+	/**
+	 * @param shardOf the shard of a command
+	 * @param apply applies a command to a shard, it must not throw
+	 */
+	Replayer(
+		int shards,
+		int capacity,
+		WaitStrategy waitStrategy,
+		ToIntFunction<Command> shardOf,
+		ObjIntConsumer<Command> apply
+	) {
+		this.rings = new RingBuffer[shards];
+		this.workers = new Thread[shards];
+		this.shardOf = shardOf;
+		this.apply = apply;
+		for (int shard = 0; shard < shards; shard++) {
+			RingBuffer ring = new RingBuffer(capacity, waitStrategy);
+			int index = shard;
+			rings[shard] = ring;
+			workers[shard] = Thread
+				.ofPlatform()
+				.name("dstruct-replay-" + shard)
+				.start(() -> work(ring, index));
+		}
+	}
+
+	@Override
+	public void accept(Command command) {
+		if (command instanceof Batch batch && rings.length > 1 && spansShards(batch)) {
+			barrier();
+			for (Command c : batch.commands()) {
+				apply.accept(c, shardOf.applyAsInt(c));
+			}
+		}
+		else {
+			rings[shardOf.applyAsInt(command)].offer(command, null);
+		}
+	}
+
+	/**
+	 * Waits for every command handed to the workers to be applied.
+	 */
+	void barrier() {
+		CountDownLatch applied = new CountDownLatch(rings.length);
+		Sink<Command> countDown = Sink.callback(command -> applied.countDown());
+		for (RingBuffer ring : rings) {
+			ring.offer(null, countDown);
+		}
+		try {
+			applied.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("replay interrupted", e);
+		}
+	}
+
+	/**
+	 * Waits for the pending commands, then stops the workers.
+	 */
+	@Override
+	public void close() {
+		barrier();
+		for (RingBuffer ring : rings) {
+			ring.close();
+		}
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("replay interrupted", e);
+		}
+	}
+
+	private boolean spansShards(Batch batch) {
+		if (batch.commands() == null || batch.commands().isEmpty()) return false;
+		int first = shardOf.applyAsInt(batch.commands().getFirst());
+		for (Command command : batch.commands()) {
+			if (shardOf.applyAsInt(command) != first) return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void work(RingBuffer ring, int shard) {
+		Command[] commands = new Command[DRAIN_LIMIT];
+		Sink<Command>[] callbacks = new Sink[DRAIN_LIMIT];
+		int size;
+		while ((size = ring.drain(commands, callbacks, DRAIN_LIMIT)) > 0) {
+			for (int i = 0; i < size; i++) {
+				if (commands[i] == null) {
+					callbacks[i].next(null);
+				}
+				else {
+					apply.accept(commands[i], shard);
+				}
+				commands[i] = null;
+				callbacks[i] = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package dev.dstruct;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Write path of a connection, owned by its {@link Reactor}.
+ * <p>
+ * Small pieces of the responses (lengths, tags, CRLF, short values) are copied into a direct
+ * buffer allocated once per connection. Values of {@code LARGE_VALUE} bytes or more are not
+ * copied: their arrays are wrapped and queued between the pooled segments, then everything is
+ * sent with one gathering write.
+ * <p>
+ * A partial write keeps the position of every segment, the rest is sent on the next
+ * {@link #writeTo} call. The pooled buffer is reused once all its segments have been written;
+ * until then, small pieces that don't fit in it go to a heap buffer.
+ */
+final class ResponseBuffer {
+
+	static final int DEFAULT_POOLED_SIZE = 4096;
+	static final int LARGE_VALUE = 1024;
+
+	private final ByteBuffer pooled;
+	private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+	private ByteBuffer[] gather = new ByteBuffer[16];
+	private ByteBuffer current;
+	private int segmentStart;
+
+	ResponseBuffer() {
+		this(DEFAULT_POOLED_SIZE);
+	}
+
+	ResponseBuffer(int pooledSize) {
+		this.pooled = ByteBuffer.allocateDirect(pooledSize);
+		this.current = pooled;
+	}
+
+	void put(byte value) {
+		ensureRemaining(Byte.BYTES);
+		current.put(value);
+	}
+
+	void putInt(int value) {
+		ensureRemaining(Integer.BYTES);
+		current.putInt(value);
+	}
+
+	void put(byte[] value) {
+		if (value.length >= LARGE_VALUE) {
+			seal();
+			segments.add(ByteBuffer.wrap(value));
+			return;
+		}
+		ensureRemaining(value.length);
+		current.put(value);
+	}
+
+	boolean isEmpty() {
+		return segments.isEmpty() && current.position() == segmentStart;
+	}
+
+	/**
+	 * Writes as much as the channel accepts.
+	 *
+	 * @return true if everything has been written
+	 */
+	boolean writeTo(GatheringByteChannel channel) throws IOException {
+		seal();
+		if (!segments.isEmpty()) {
+			if (gather.length < segments.size()) {
+				gather = new ByteBuffer[Math.max(segments.size(), gather.length * 2)];
+			}
+			int size = 0;
+			for (ByteBuffer segment : segments) {
+				gather[size++] = segment;
+			}
+			channel.write(gather, 0, size);
+			while (!segments.isEmpty() && !segments.peek().hasRemaining()) {
+				segments.poll();
+			}
+			Arrays.fill(gather, 0, size, null);
+		}
+		if (segments.isEmpty()) {
+			pooled.clear();
+			current = pooled;
+			segmentStart = 0;
+			return true;
+		}
+		return false;
+	}
+
+	private void ensureRemaining(int length) {
+		if (current.remaining() >= length) {
+			return;
+		}
+		seal();
+		current = ByteBuffer.allocate(Math.max(length, pooled.capacity()));
+		segmentStart = 0;
+	}
+
+	private void seal() {
+		if (current.position() > segmentStart) {
+			segments.add(current.slice(segmentStart, current.position() - segmentStart));
+			segmentStart = current.position();
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.util.Sink;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pre-allocated multi producer single consumer ring buffer of events.
+ * <p>
+ * An event is a command with its callback, stored in two parallel arrays, so offering
+ * a command does not allocate anything: slots are reused once the consumer moves on.
+ * <p>
+ * Producers claim a sequence with a CAS on {@code claimed}, write the slot and publish it
+ * by storing the sequence in {@code available}. The consumer drains slots in sequence order
+ * and frees them by advancing {@code consumed}, once per drained batch.
+ * A producer that finds the ring full waits until the consumer frees a slot, so the capacity
+ * is a real bound and a slow event loop pushes back on its producers.
+ * <pre>
+ *   consumed        claimed
+ *      |               |
+ *  [ free | event | event | free | free ]
+ * </pre>
+ * Capacity must be a power of two, a sequence is mapped to its slot with {@code seq & mask}.
+ * <p>
+ * Closing races with producers that passed the closed check already: a producer reads
+ * {@code closed} again after claiming its slot, while the consumer reads {@code claimed}
+ * after closing. One of them sees the other, so either the consumer drains the event with
+ * {@link #drainClosed}, or the producer publishes an empty slot and reports the ring as closed.
+ */
+final class RingBuffer {
+
+	private static final VarHandle AVAILABLE = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle CLAIMED;
+
+	static {
+		try {
+			CLAIMED = MethodHandles
+				.lookup()
+				.findVarHandle(RingBuffer.class, "claimed", long.class);
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final int mask;
+	private final Command[] commands;
+	private final Sink<Command>[] callbacks;
+	private final long[] available;
+	private final WaitStrategy waitStrategy;
+
+	private volatile long claimed = -1;
+	private volatile long consumed = -1;
+	private volatile Thread parkedConsumer;
+	private volatile boolean closed = false;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	RingBuffer(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		this.mask = capacity - 1;
+		this.commands = new Command[capacity];
+		this.callbacks = new Sink[capacity];
+		this.available = new long[capacity];
+		this.waitStrategy = waitStrategy;
+		Arrays.fill(available, -1);
+	}
+
+	/**
+	 * Publishes an event, waiting while the ring is full.
+	 *
+	 * @return false if the ring has been closed
+	 */
+	boolean offer(Command command, Sink<Command> callback) {
+		long seq;
+		int counter = 0;
+		while (true) {
+			if (closed) return false;
+			long current = claimed;
+			seq = current + 1;
+			if (seq - available.length > consumed) {
+				counter = waitStrategy.idle(counter);
+			}
+			else if (CLAIMED.compareAndSet(this, current, seq)) {
+				break;
+			}
+		}
+		int index = (int) seq & mask;
+		boolean open = !closed;
+		if (open) {
+			commands[index] = command;
+			callbacks[index] = callback;
+		}
+		AVAILABLE.setVolatile(available, index, seq);
+		Thread consumer = parkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+		return open;
+	}
+
+	/**
+	 * Waits for the next event, then moves every event already published, up to limit,
+	 * into the given arrays. Slots are freed all at once, before the events are handled.
+	 *
+	 * @return the number of events moved, 0 if the ring has been closed
+	 */
+	int drain(Command[] commands, Sink<Command>[] callbacks, int limit) {
+		return drain(commands, callbacks, limit, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #drain(Command[], Sink[], int)}, waiting at most timeoutNanos for the next event.
+	 *
+	 * @return the number of events moved, 0 if the ring has been closed or the timeout elapsed
+	 */
+	int drain(Command[] commands, Sink<Command>[] callbacks, int limit, long timeoutNanos) {
+		long next = consumed + 1;
+		int index = (int) next & mask;
+		int counter = 0;
+		long deadline = timeoutNanos == Long.MAX_VALUE ? 0 : System.nanoTime() + timeoutNanos;
+		while ((long) AVAILABLE.getAcquire(available, index) != next) {
+			if (closed) return 0;
+			long remaining = Long.MAX_VALUE;
+			if (timeoutNanos != Long.MAX_VALUE && (remaining = deadline - System.nanoTime()) <= 0) {
+				return 0;
+			}
+			if (waitStrategy.parkConsumer(counter)) {
+				park(index, next, remaining);
+			}
+			else {
+				counter = waitStrategy.idle(counter);
+			}
+		}
+		int size = 0;
+		long seq = next;
+		do {
+			size = move(index, commands, callbacks, size);
+			index = (int) ++seq & mask;
+		} while (size < limit && (long) AVAILABLE.getAcquire(available, index) == seq);
+		consumed = seq - 1;
+		return size;
+	}
+
+	/**
+	 * Moves the events left in a closed ring, up to limit, into the given arrays, waiting for
+	 * the producers that claimed a slot before seeing the ring closed to publish it.
+	 *
+	 * @return the number of events moved, 0 once every claimed slot has been drained
+	 */
+	int drainClosed(Command[] commands, Sink<Command>[] callbacks, int limit) {
+		if (!closed) {
+			throw new IllegalStateException("ring is not closed");
+		}
+		int size = 0;
+		int counter = 0;
+		long seq = consumed + 1;
+		while (size < limit && seq <= claimed) {
+			int index = (int) seq & mask;
+			if ((long) AVAILABLE.getAcquire(available, index) != seq) {
+				counter = waitStrategy.idle(counter);
+				continue;
+			}
+			size = move(index, commands, callbacks, size);
+			seq++;
+		}
+		consumed = seq - 1;
+		return size;
+	}
+
+	int capacity() {
+		return available.length;
+	}
+
+	void close() {
+		closed = true;
+		Thread consumer = parkedConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Moves the event of a published slot at size, skipping the empty slot of a producer
+	 * that found the ring closed. An event has a command, a callback or both.
+	 *
+	 * @return the new size
+	 */
+	private int move(int index, Command[] commands, Sink<Command>[] callbacks, int size) {
+		Command command = this.commands[index];
+		Sink<Command> callback = this.callbacks[index];
+		if (command == null && callback == null) {
+			return size;
+		}
+		commands[size] = command;
+		callbacks[size] = callback;
+		this.commands[index] = null;
+		this.callbacks[index] = null;
+		return size + 1;
+	}
+
+	private void park(int index, long next, long nanos) {
+		parkedConsumer = Thread.currentThread();
+		if ((long) AVAILABLE.getVolatile(available, index) != next && !closed) {
+			if (nanos == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			}
+			else {
+				LockSupport.parkNanos(this, nanos);
+			}
+		}
+		parkedConsumer = null;
+	}
+
+}
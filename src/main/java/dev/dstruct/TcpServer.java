@@ -1,50 +1,50 @@
 package dev.dstruct;
 
-import dev.dstruct.Result.EmptyResult;
-import dev.dstruct.Result.Error;
-import dev.dstruct.Result.Ok;
-import dev.dstruct.Result.Results;
-import dev.dstruct.command.Command;
-import dev.dstruct.command.Command.Batch;
 import dev.dstruct.logging.Log;
 import dev.dstruct.logging.LogFactory;
-import dev.dstruct.parser.ParseException;
-import dev.dstruct.parser.Parser;
 import dev.dstruct.parser.Scanner;
-import dev.dstruct.parser.Token;
 import dev.dstruct.util.Process;
 import dev.dstruct.util.ReqRes;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Tcp server that manages request and response as simple text.
- * It is a single thread server, it manages connections by ServerSocketChannel.
+ * It manages connections by ServerSocketChannel.
  * ServerSocketChannel under the hood is a gateway between java an os file descriptor.
+ * <p>
+ * An acceptor thread accepts the connections and assigns them round robin to a pool of
+ * {@link Reactor}s. Each reactor owns a selector and reads, parses and writes its own
+ * connections, then submits the commands to the event loops through {@link ReqRes}.
+ * <p>
+ * When a binary port is configured, the acceptor also listens on it and its connections
+ * speak the {@link BinaryProtocol} instead of text.
  *
  */
 public class TcpServer implements Process {
 
 	private static final Log log = LogFactory.create(TcpServer.class);
 
+	static final int DEFAULT_MAX_PIPELINED_REQUESTS = 4096;
+
 	private final int port;
-	private Selector selector;
-	private ServerSocketChannel serverChannel;
+	private final int binaryPort;
 	private final ReqRes reqRes;
+	private final int maxPipelinedRequests;
+	private final int maxLineLength;
+	private final Reactor[] reactors;
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+	private Selector acceptSelector;
 	private final ExecutorService tcpServerExecutor = Executors.newSingleThreadExecutor(
 		Thread
 			.ofPlatform()
@@ -52,219 +52,104 @@ public class TcpServer implements Process {
 			.factory()
 	);
 
-	private final LinkedBlockingDeque<PendingResponse> pendingResponses = new LinkedBlockingDeque<>();
-
 	public TcpServer(int port, ReqRes reqRes) {
+		this(port, 0, reqRes, DEFAULT_MAX_PIPELINED_REQUESTS, 1, Scanner.DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * @param binaryPort port of the binary protocol, 0 to disable it
+	 * @param maxLineLength longest line of the text protocol, a longer one is answered with an error
+	 */
+	public TcpServer(int port, int binaryPort, ReqRes reqRes, int maxPipelinedRequests, int reactorCount, int maxLineLength) {
 		if (port < 1024 || port > 65535) {
 			throw new IllegalArgumentException("port is out of range (1024-65535)");
 		}
+		if (binaryPort != 0 && (binaryPort < 1024 || binaryPort > 65535 || binaryPort == port)) {
+			throw new IllegalArgumentException("binaryPort is out of range (1024-65535) or equal to port");
+		}
+		if (maxPipelinedRequests < 1) {
+			throw new IllegalArgumentException("maxPipelinedRequests must be greater than 0");
+		}
+		if (reactorCount < 1) {
+			throw new IllegalArgumentException("reactorCount must be greater than 0");
+		}
+		if (maxLineLength < 1) {
+			throw new IllegalArgumentException("maxLineLength must be greater than 0");
+		}
 		this.port = port;
+		this.binaryPort = binaryPort;
 		this.reqRes = reqRes;
+		this.maxPipelinedRequests = maxPipelinedRequests;
+		this.maxLineLength = maxLineLength;
+		this.reactors = new Reactor[reactorCount];
 	}
 
-	private void enqueueResponse(SelectionKey key, Result result) {
-		if (!key.isValid()) {
-			return;
+	public void start() throws IOException {
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor("dstruct-tcp-reactor-" + i, reqRes, maxPipelinedRequests, maxLineLength);
+			reactors[i].start();
 		}
-
-		SocketChannel channel = (SocketChannel) key.channel();
-		if (!channel.isOpen() || !channel.isConnected()) {
-			return;
-		}
-		pendingResponses.offer(new PendingResponse(key, result));
-		selector.wakeup();
-	}
-
-	private void processPendingResponses() {
-		PendingResponse response;
-		while ((response = pendingResponses.poll()) != null) {
-			SelectionKey key = response.key;
-
-			if (key.isValid()) {
-				SocketChannel channel = (SocketChannel) key.channel();
-				if (channel.isOpen() && channel.isConnected()) {
-					key.attach(response.result);
-					key.interestOps(SelectionKey.OP_WRITE);
-				}
-			}
+		this.acceptSelector = Selector.open();
+		listen(port, Reactor.Protocol.TEXT);
+		if (binaryPort != 0) {
+			listen(binaryPort, Reactor.Protocol.BINARY);
 		}
+		tcpServerExecutor.execute(this::acceptLoop);
+		log.info("Server started at port: " + port
+			+ (binaryPort != 0 ? ", binary port: " + binaryPort : "")
+			+ " with " + reactors.length + " reactors");
 	}
 
-	public void start() {
-		tcpServerExecutor.execute(this::tcpLoop);
+	private void listen(int port, Reactor.Protocol protocol) throws IOException {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannels.add(serverChannel);
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT, protocol);
 	}
 
-	private void tcpLoop() {
-		try {
-			this.selector = Selector.open();
-			this.serverChannel = ServerSocketChannel.open();
-			this.serverChannel.bind(new InetSocketAddress(port));
-			this.serverChannel.configureBlocking(false);
-			this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-			log.info("Server started at port: " + port);
-
-			while (serverChannel.isOpen() && selector.isOpen()) {
-				processPendingResponses();
-				if (selector.select() == 0) continue;
-				Set<SelectionKey> selectedKeys = selector.selectedKeys();
-				Iterator<SelectionKey> iterator = selectedKeys.iterator();
-
+	private void acceptLoop() {
+		int next = 0;
+		while (acceptSelector.isOpen()) {
+			try {
+				acceptSelector.select();
+				Iterator<SelectionKey> iterator = acceptSelector.selectedKeys().iterator();
 				while (iterator.hasNext()) {
 					SelectionKey key = iterator.next();
 					iterator.remove();
-
-					if (!key.isValid()) {
+					SocketChannel clientChannel = ((ServerSocketChannel) key.channel()).accept();
+					if (clientChannel == null) {
 						continue;
 					}
-
-					if (key.isAcceptable()) {
-						handleAccept(key);
-					} else if (key.isReadable()) {
-						handleRead(key);
-					} else if (key.isWritable()) {
-						handleWrite(key);
-					}
+					reactors[next].register(clientChannel, (Reactor.Protocol) key.attachment());
+					next = (next + 1) % reactors.length;
 				}
 			}
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} finally {
-			cleanup();
-		}
-	}
-
-	private void handleAccept(SelectionKey key) throws IOException {
-		ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
-		SocketChannel clientChannel = serverChannel.accept();
-
-		if (clientChannel != null) {
-			clientChannel.configureBlocking(false);
-			clientChannel.register(selector, SelectionKey.OP_READ);
-		}
-	}
-
-	private void handleWrite(SelectionKey key) {
-		SocketChannel clientChannel = (SocketChannel) key.channel();
-
-		try {
-
-			if (!key.isValid() || !clientChannel.isOpen() || !clientChannel.isConnected()) {
-				closeChannel(key);
-				return;
-			}
-
-			Result result = (Result)key.attachment();
-			ByteBuffer[] response = toResponseBuffer(result);
-			clientChannel.write(response);
-			key.attach(null);
-			key.interestOps(SelectionKey.OP_READ);
-		} catch (IOException e) {
-			e.printStackTrace();
-			closeChannel(key);
-		}
-	}
-
-	private void handleRead(SelectionKey key) {
-		try {
-			SocketChannel channel = (SocketChannel)key.channel();
-			if (!channel.isOpen() || !channel.isConnected()) {
-				closeChannel(key);
-				return;
-			}
-			Command command = readCommand(channel);
-			if (command != null) {
-				key.interestOps(0);
-				reqRes
-					.apply(command)
-					.orTimeout(30, TimeUnit.SECONDS)
-					.whenComplete((result, throwable) -> {
-						if (throwable != null) {
-							enqueueResponse(key, new Error(throwable.getMessage()));
-						}
-						else {
-							enqueueResponse(key, result);
-						}
-					});
+			catch (ClosedSelectorException e) {
+				break;
 			}
-			else {
-				closeChannel(key);
+			catch (IOException e) {
+				log.error(e);
 			}
 		}
-		catch (ParseException parseException) {
-			enqueueResponse(key, new Error(parseException.getMessage()));
-		}
-	}
-
-	private Command readCommand(SocketChannel client) {
-		Scanner scanner = new Scanner(client);
-		scanner.parse();
-		List<Token> tokens = scanner.getTokens();
-		Parser parser = new Parser(tokens);
-		parser.parse();
-		List<Command> commands = parser.getCommands();
-		if (commands.size() > 1) {
-			return new Batch(commands);
-		} else if (commands.size() == 1) {
-			return commands.getFirst();
-		} else {
-			return null;
-		}
 	}
 
-	private ByteBuffer[] toResponseBuffer(Result result) {
-		ByteBuffer[] arr = new ByteBuffer[2];
-		arr[0] = switch (result) {
-			case EmptyResult emptyResult -> ByteBuffer.wrap(emptyResult.name().getBytes(StandardCharsets.UTF_8));
-			case Ok(byte[] value) -> ByteBuffer.wrap(value);
-			case Error(String message) -> ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
-			case Results(List<Result> results) -> {
-				List<ByteBuffer> byteBuffers = new ArrayList<>(results.size());
-				int size = 0;
-				for (Result r : results) {
-					ByteBuffer[] responseBuffers = toResponseBuffer(r);
-					for (ByteBuffer responseBuffer : responseBuffers) {
-						size += responseBuffer.capacity();
-						byteBuffers.add(responseBuffer);
-					}
-				}
-				ByteBuffer res = ByteBuffer.allocateDirect(size);
-				for (ByteBuffer byteBuffer : byteBuffers) {
-					res.put(byteBuffer);
+	@Override
+	public void close() throws IOException {
+		try {
+			if (this.acceptSelector != null) {
+				for (ServerSocketChannel serverChannel : serverChannels) {
+					serverChannel.close();
 				}
-				yield res.flip();
+				acceptSelector.close();
 			}
-		};
-		arr[1] = ByteBuffer.allocateDirect(2).put((byte)'\r').put((byte)'\n').flip();
-		return arr;
-
-	}
-
-	private void closeChannel(SelectionKey key) {
-		try {
-			key.channel().close();
-			key.cancel();
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
-	}
-
-	private void cleanup() {
-		try {
-			if (selector != null) selector.close();
-			if (serverChannel != null) serverChannel.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		finally {
+			tcpServerExecutor.shutdown();
+			for (Reactor reactor : reactors) {
+				if (reactor != null) reactor.close();
+			}
 		}
 	}
 
-	@Override
-	public void close() throws IOException {
-		if (this.selector != null) selector.close();
-		if (this.serverChannel != null) serverChannel.close();
-		tcpServerExecutor.shutdown();
-	}
-
-	record PendingResponse(SelectionKey key, Result result) { }
-
 }
@@ -0,0 +1,60 @@
+package dev.dstruct;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on the {@link RingBuffer} when there is nothing to consume,
+ * or when a producer finds the ring full.
+ */
+enum WaitStrategy {
+	/**
+	 * Spin on the cpu - lowest latency, burns one core per event loop
+	 * Use for: dedicated machines with more cores than event loops
+	 */
+	BUSY_SPIN,
+
+	/**
+	 * Spin for a while, then yield the cpu to other threads - low latency, high cpu usage
+	 * Use for: latency sensitive workloads on shared machines
+	 */
+	YIELD,
+
+	/**
+	 * Spin for a while, then park the thread until a producer wakes it up - highest latency, idle cpu
+	 * Use for: most workloads
+	 */
+	PARK;
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 200;
+	private static final long PARK_NANOS = 1_000;
+
+	/**
+	 * Waits once and returns the counter to use for the next call,
+	 * the counter should be reset to 0 when the wait is over.
+	 */
+	int idle(int counter) {
+		switch (this) {
+			case BUSY_SPIN -> Thread.onSpinWait();
+			case YIELD -> {
+				if (counter < SPIN_TRIES) Thread.onSpinWait();
+				else Thread.yield();
+			}
+			case PARK -> {
+				if (counter < SPIN_TRIES) Thread.onSpinWait();
+				else if (counter < YIELD_TRIES) Thread.yield();
+				else LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+		return counter == Integer.MAX_VALUE ? counter : counter + 1;
+	}
+
+	/**
+	 * Returns true if a waiting consumer should be parked until a producer unparks it,
+	 * instead of polling with {@link #idle(int)}.
+	 */
+	boolean parkConsumer(int counter) {
+		return this == PARK && counter >= YIELD_TRIES;
+	}
+
+}
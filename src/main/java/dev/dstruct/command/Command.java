@@ -1,7 +1,7 @@
 package dev.dstruct.command;
 import java.util.List;
 
-/* generated at 2025-10-30T13:52:51.817190Z */
+/* generated at 2026-10-16T20:14:51.912805540Z */
 public sealed interface Command {
 	default String name() {return "";}
 	default boolean isPersisted() { return true; }
@@ -26,6 +26,10 @@ public sealed interface Command {
 		R visitBatchCommand(Batch command);
 		R visitCastCommand(Cast command);
 		R visitPingCommand(Ping command);
+		R visitExpireCommand(Expire command);
+		R visitTtlCommand(Ttl command);
+		R visitPersistCommand(Persist command);
+		R visitVSetExCommand(VSetEx command);
 	}
 	record MPut(String name, byte[] key, byte[] value) implements Command {
 		@Override
@@ -179,5 +183,33 @@ public sealed interface Command {
 			return false;
 		}
 	}
+	record Expire(String name, byte[] deadline) implements Command {
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+		  return visitor.visitExpireCommand(this);
+		}
+	}
+	record Ttl(String name) implements Command {
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+		  return visitor.visitTtlCommand(this);
+		}
+		@Override
+		public boolean isPersisted() {
+			return false;
+		}
+	}
+	record Persist(String name) implements Command {
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+		  return visitor.visitPersistCommand(this);
+		}
+	}
+	record VSetEx(String name, byte[] value, byte[] deadline) implements Command {
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+		  return visitor.visitVSetExCommand(this);
+		}
+	}
 	<R> R accept(Visitor<R> visitor);
 }
@@ -1,6 +1,6 @@
 package dev.dstruct.command;
 
-/* generated at 2025-10-30T13:52:51.817190Z */
+/* generated at 2026-10-16T20:14:51.912805540Z */
 public enum CommandType {
 	SADD,
 	VSET,
@@ -21,7 +21,11 @@ public enum CommandType {
 	CAST,
 	LINDEX,
 	MPUT,
-	BATCH;
+	BATCH,
+	EXPIRE,
+	TTL,
+	PERSIST,
+	VSETEX;
 
 	public static CommandType ivalueOf(String name) {
 		for (CommandType value : values()) {
@@ -4,6 +4,7 @@ import dev.dstruct.wal.BufferedChannel;
 import java.nio.ByteBuffer;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import dev.dstruct.command.Command.MPut;
 import dev.dstruct.command.Command.MDelete;
@@ -18,8 +19,18 @@ import dev.dstruct.command.Command.SAdd;
 import dev.dstruct.command.Command.SRem;
 import dev.dstruct.command.Command.Del;
 import dev.dstruct.command.Command.Batch;
+import dev.dstruct.command.Command.VGet;
+import dev.dstruct.command.Command.LLen;
+import dev.dstruct.command.Command.LIndex;
+import dev.dstruct.command.Command.SMembers;
+import dev.dstruct.command.Command.Type;
+import dev.dstruct.command.Command.Ping;
+import dev.dstruct.command.Command.Expire;
+import dev.dstruct.command.Command.Ttl;
+import dev.dstruct.command.Command.Persist;
+import dev.dstruct.command.Command.VSetEx;
 
-/* generated at 2025-10-30T13:52:51.817190Z */
+/* generated at 2026-10-16T20:59:31.020056690Z */
 public final class Serde {
 
 	public static short type(Command command) {
@@ -37,6 +48,16 @@ public final class Serde {
 			case SRem ignore -> 11;
 			case Del ignore -> 12;
 			case Batch ignore -> 13;
+			case VGet ignore -> 14;
+			case LLen ignore -> 15;
+			case LIndex ignore -> 16;
+			case SMembers ignore -> 17;
+			case Type ignore -> 18;
+			case Ping ignore -> 19;
+			case Expire ignore -> 20;
+			case Ttl ignore -> 21;
+			case Persist ignore -> 22;
+			case VSetEx ignore -> 23;
 			default -> -1;
 		};
 	}
@@ -56,49 +77,141 @@ public final class Serde {
 			case 10 -> deserializeSAdd(bufferedChannel);
 			case 11 -> deserializeSRem(bufferedChannel);
 			case 12 -> deserializeDel(bufferedChannel);
+			case 13 -> deserializeBatch(bufferedChannel);
+			case 14 -> deserializeVGet(bufferedChannel);
+			case 15 -> deserializeLLen(bufferedChannel);
+			case 16 -> deserializeLIndex(bufferedChannel);
+			case 17 -> deserializeSMembers(bufferedChannel);
+			case 18 -> deserializeType(bufferedChannel);
+			case 19 -> deserializePing(bufferedChannel);
+			case 20 -> deserializeExpire(bufferedChannel);
+			case 21 -> deserializeTtl(bufferedChannel);
+			case 22 -> deserializePersist(bufferedChannel);
+			case 23 -> deserializeVSetEx(bufferedChannel);
 			default -> null;
 		};
 	}
-	public static ByteBuffer serialize(Command command) {
-		if (command == null) return null;
-		return switch (command) {
-			case MPut a -> serializeMPut(a);
-			case MDelete a -> serializeMDelete(a);
-			case MGet a -> serializeMGet(a);
-			case VSet a -> serializeVSet(a);
-			case VDelete a -> serializeVDelete(a);
-			case LPush a -> serializeLPush(a);
-			case LPop a -> serializeLPop(a);
-			case RPush a -> serializeRPush(a);
-			case RPop a -> serializeRPop(a);
-			case SAdd a -> serializeSAdd(a);
-			case SRem a -> serializeSRem(a);
-			case Del a -> serializeDel(a);
-			case Batch a -> serializeBatch(a);
+	/**
+	 * Batches nested deeper than this are rejected, the frames of the binary protocol are untrusted.
+	 */
+	public static final int MAX_BATCH_DEPTH = 8;
+	/**
+	 * @return the command, null if the type is unknown, a length is out of the buffer or
+	 * batches are nested deeper than {@link #MAX_BATCH_DEPTH}
+	 */
+	public static Command deserialize(ByteBuffer byteBuffer) {
+		return deserialize(byteBuffer, 0);
+	}
+	private static Command deserialize(ByteBuffer byteBuffer, int depth) {
+		if (byteBuffer.remaining() < Short.BYTES) return null;
+		short type = byteBuffer.getShort();
+		return switch (type) {
+			case 1 -> deserializeMPut(byteBuffer);
+			case 2 -> deserializeMDelete(byteBuffer);
+			case 3 -> deserializeMGet(byteBuffer);
+			case 4 -> deserializeVSet(byteBuffer);
+			case 5 -> deserializeVDelete(byteBuffer);
+			case 6 -> deserializeLPush(byteBuffer);
+			case 7 -> deserializeLPop(byteBuffer);
+			case 8 -> deserializeRPush(byteBuffer);
+			case 9 -> deserializeRPop(byteBuffer);
+			case 10 -> deserializeSAdd(byteBuffer);
+			case 11 -> deserializeSRem(byteBuffer);
+			case 12 -> deserializeDel(byteBuffer);
+			case 13 -> deserializeBatch(byteBuffer, depth);
+			case 14 -> deserializeVGet(byteBuffer);
+			case 15 -> deserializeLLen(byteBuffer);
+			case 16 -> deserializeLIndex(byteBuffer);
+			case 17 -> deserializeSMembers(byteBuffer);
+			case 18 -> deserializeType(byteBuffer);
+			case 19 -> deserializePing(byteBuffer);
+			case 20 -> deserializeExpire(byteBuffer);
+			case 21 -> deserializeTtl(byteBuffer);
+			case 22 -> deserializePersist(byteBuffer);
+			case 23 -> deserializeVSetEx(byteBuffer);
 			default -> null;
 		};
 	}
-	private static ByteBuffer serializeMPut(MPut c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] key = c.key();
-		int keyLength = key == null ? 0 : key.length;
-		int keyByteLength = Integer.BYTES + keyLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + keyByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(keyLength);
-		if (keyLength > 0) byteBuffer.put(key);
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
+	/**
+	 * @return the bytes of the record of command, -1 if it has no record
+	 */
+	public static int size(Command command) {
+		if (command == null) return -1;
+		return switch (command) {
+			case MPut a -> sizeMPut(a);
+			case MDelete a -> sizeMDelete(a);
+			case MGet a -> sizeMGet(a);
+			case VSet a -> sizeVSet(a);
+			case VDelete a -> sizeVDelete(a);
+			case LPush a -> sizeLPush(a);
+			case LPop a -> sizeLPop(a);
+			case RPush a -> sizeRPush(a);
+			case RPop a -> sizeRPop(a);
+			case SAdd a -> sizeSAdd(a);
+			case SRem a -> sizeSRem(a);
+			case Del a -> sizeDel(a);
+			case Batch a -> sizeBatch(a);
+			case VGet a -> sizeVGet(a);
+			case LLen a -> sizeLLen(a);
+			case LIndex a -> sizeLIndex(a);
+			case SMembers a -> sizeSMembers(a);
+			case Type a -> sizeType(a);
+			case Ping a -> sizePing(a);
+			case Expire a -> sizeExpire(a);
+			case Ttl a -> sizeTtl(a);
+			case Persist a -> sizePersist(a);
+			case VSetEx a -> sizeVSetEx(a);
+			default -> -1;
+		};
+	}
+	/**
+	 * Writes the record of command into byteBuffer, which must have room for {@link #size} bytes.
+	 * Nothing is allocated.
+	 */
+	public static void serialize(Command command, ByteBuffer byteBuffer) {
+		switch (command) {
+			case MPut a -> serializeMPut(a, byteBuffer);
+			case MDelete a -> serializeMDelete(a, byteBuffer);
+			case MGet a -> serializeMGet(a, byteBuffer);
+			case VSet a -> serializeVSet(a, byteBuffer);
+			case VDelete a -> serializeVDelete(a, byteBuffer);
+			case LPush a -> serializeLPush(a, byteBuffer);
+			case LPop a -> serializeLPop(a, byteBuffer);
+			case RPush a -> serializeRPush(a, byteBuffer);
+			case RPop a -> serializeRPop(a, byteBuffer);
+			case SAdd a -> serializeSAdd(a, byteBuffer);
+			case SRem a -> serializeSRem(a, byteBuffer);
+			case Del a -> serializeDel(a, byteBuffer);
+			case Batch a -> serializeBatch(a, byteBuffer);
+			case VGet a -> serializeVGet(a, byteBuffer);
+			case LLen a -> serializeLLen(a, byteBuffer);
+			case LIndex a -> serializeLIndex(a, byteBuffer);
+			case SMembers a -> serializeSMembers(a, byteBuffer);
+			case Type a -> serializeType(a, byteBuffer);
+			case Ping a -> serializePing(a, byteBuffer);
+			case Expire a -> serializeExpire(a, byteBuffer);
+			case Ttl a -> serializeTtl(a, byteBuffer);
+			case Persist a -> serializePersist(a, byteBuffer);
+			case VSetEx a -> serializeVSetEx(a, byteBuffer);
+			default -> throw new IllegalArgumentException("no record for " + command);
+		}
+	}
+	public static ByteBuffer serialize(Command command) {
+		int size = size(command);
+		if (size < 0) return null;
+		ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+		serialize(command, byteBuffer);
 		return byteBuffer.flip();
 	}
+	private static int sizeMPut(MPut c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.key()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeMPut(MPut c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.key());
+		put(byteBuffer, c.value());
+	}
 	private static MPut deserializeMPut(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
 		byte[] bytes;
@@ -131,21 +244,45 @@ public final class Serde {
 		}
 		return new MPut(name, key, value);
 	}
-	private static ByteBuffer serializeMDelete(MDelete c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] key = c.key();
-		int keyLength = key == null ? 0 : key.length;
-		int keyByteLength = Integer.BYTES + keyLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + keyByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(keyLength);
-		if (keyLength > 0) byteBuffer.put(key);
-		return byteBuffer.flip();
+	private static MPut deserializeMPut(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int keyLength = byteBuffer.getInt();
+		byte[] key = null;
+		if (keyLength < 0 || keyLength > byteBuffer.remaining()) return null;
+		if (keyLength > 0) {
+			bytes = new byte[keyLength];
+			byteBuffer.get(bytes);
+			key = bytes;
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new MPut(name, key, value);
+	}
+	private static int sizeMDelete(MDelete c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.key());
+	}
+	private static void serializeMDelete(MDelete c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.key());
 	}
 	private static MDelete deserializeMDelete(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -170,21 +307,36 @@ public final class Serde {
 		}
 		return new MDelete(name, key);
 	}
-	private static ByteBuffer serializeMGet(MGet c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] key = c.key();
-		int keyLength = key == null ? 0 : key.length;
-		int keyByteLength = Integer.BYTES + keyLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + keyByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(keyLength);
-		if (keyLength > 0) byteBuffer.put(key);
-		return byteBuffer.flip();
+	private static MDelete deserializeMDelete(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int keyLength = byteBuffer.getInt();
+		byte[] key = null;
+		if (keyLength < 0 || keyLength > byteBuffer.remaining()) return null;
+		if (keyLength > 0) {
+			bytes = new byte[keyLength];
+			byteBuffer.get(bytes);
+			key = bytes;
+		}
+		return new MDelete(name, key);
+	}
+	private static int sizeMGet(MGet c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.key());
+	}
+	private static void serializeMGet(MGet c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.key());
 	}
 	private static MGet deserializeMGet(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -209,21 +361,36 @@ public final class Serde {
 		}
 		return new MGet(name, key);
 	}
-	private static ByteBuffer serializeVSet(VSet c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
-		return byteBuffer.flip();
+	private static MGet deserializeMGet(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int keyLength = byteBuffer.getInt();
+		byte[] key = null;
+		if (keyLength < 0 || keyLength > byteBuffer.remaining()) return null;
+		if (keyLength > 0) {
+			bytes = new byte[keyLength];
+			byteBuffer.get(bytes);
+			key = bytes;
+		}
+		return new MGet(name, key);
+	}
+	private static int sizeVSet(VSet c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeVSet(VSet c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
 	}
 	private static VSet deserializeVSet(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -248,16 +415,35 @@ public final class Serde {
 		}
 		return new VSet(name, value);
 	}
-	private static ByteBuffer serializeVDelete(VDelete c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		return byteBuffer.flip();
+	private static VSet deserializeVSet(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new VSet(name, value);
+	}
+	private static int sizeVDelete(VDelete c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeVDelete(VDelete c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
 	}
 	private static VDelete deserializeVDelete(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -273,21 +459,27 @@ public final class Serde {
 		}
 		return new VDelete(name);
 	}
-	private static ByteBuffer serializeLPush(LPush c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
-		return byteBuffer.flip();
+	private static VDelete deserializeVDelete(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new VDelete(name);
+	}
+	private static int sizeLPush(LPush c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeLPush(LPush c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
 	}
 	private static LPush deserializeLPush(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -312,16 +504,35 @@ public final class Serde {
 		}
 		return new LPush(name, value);
 	}
-	private static ByteBuffer serializeLPop(LPop c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		return byteBuffer.flip();
+	private static LPush deserializeLPush(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new LPush(name, value);
+	}
+	private static int sizeLPop(LPop c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeLPop(LPop c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
 	}
 	private static LPop deserializeLPop(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -337,21 +548,27 @@ public final class Serde {
 		}
 		return new LPop(name);
 	}
-	private static ByteBuffer serializeRPush(RPush c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
-		return byteBuffer.flip();
+	private static LPop deserializeLPop(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new LPop(name);
+	}
+	private static int sizeRPush(RPush c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeRPush(RPush c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
 	}
 	private static RPush deserializeRPush(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -376,16 +593,35 @@ public final class Serde {
 		}
 		return new RPush(name, value);
 	}
-	private static ByteBuffer serializeRPop(RPop c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		return byteBuffer.flip();
+	private static RPush deserializeRPush(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new RPush(name, value);
+	}
+	private static int sizeRPop(RPop c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeRPop(RPop c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
 	}
 	private static RPop deserializeRPop(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -401,21 +637,27 @@ public final class Serde {
 		}
 		return new RPop(name);
 	}
-	private static ByteBuffer serializeSAdd(SAdd c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
-		return byteBuffer.flip();
+	private static RPop deserializeRPop(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new RPop(name);
+	}
+	private static int sizeSAdd(SAdd c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeSAdd(SAdd c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
 	}
 	private static SAdd deserializeSAdd(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -440,21 +682,36 @@ public final class Serde {
 		}
 		return new SAdd(name, value);
 	}
-	private static ByteBuffer serializeSRem(SRem c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		byte[] value = c.value();
-		int valueLength = value == null ? 0 : value.length;
-		int valueByteLength = Integer.BYTES + valueLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength + valueByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		byteBuffer.putInt(valueLength);
-		if (valueLength > 0) byteBuffer.put(value);
-		return byteBuffer.flip();
+	private static SAdd deserializeSAdd(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new SAdd(name, value);
+	}
+	private static int sizeSRem(SRem c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value());
+	}
+	private static void serializeSRem(SRem c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
 	}
 	private static SRem deserializeSRem(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -479,16 +736,35 @@ public final class Serde {
 		}
 		return new SRem(name, value);
 	}
-	private static ByteBuffer serializeDel(Del c) {
-		short type = type(c);
-		String name = c.name();
-		int nameLength = name == null ? 0 : name.length();
-		int nameByteLength = Integer.BYTES + nameLength;
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Short.BYTES + nameByteLength);
-		byteBuffer.putShort(type);
-		byteBuffer.putInt(nameLength);
-		if (nameLength > 0) byteBuffer.put(name.getBytes(StandardCharsets.UTF_8));
-		return byteBuffer.flip();
+	private static SRem deserializeSRem(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		return new SRem(name, value);
+	}
+	private static int sizeDel(Del c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeDel(Del c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
 	}
 	private static Del deserializeDel(BufferedChannel bufferedChannel) throws IOException {
 		if (bufferedChannel == null) return null;
@@ -504,22 +780,572 @@ public final class Serde {
 		}
 		return new Del(name);
 	}
-	private static ByteBuffer serializeBatch(Batch batch) {
-		if (batch == null) return null;
+	private static Del deserializeDel(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Del(name);
+	}
+	/**
+	 * A batch is a single record: [short type][int count][int length] followed by the
+	 * length bytes of the records of its count persisted commands.
+	 */
+	private static int sizeBatch(Batch batch) {
 		List<Command> commands = batch.commands();
-		if (commands == null) return null;
-		ByteBuffer[] byteBuffers = new ByteBuffer[commands.size()];
-		int capacity = 0;
+		if (commands == null) return -1;
+		return Short.BYTES + 2 * Integer.BYTES + commandsLength(commands);
+	}
+	private static int commandsLength(List<Command> commands) {
+		int length = 0;
 		for (int i = 0; i < commands.size(); i++) {
-			ByteBuffer buffer = serialize(commands.get(i));
-			byteBuffers[i] = buffer;
-			capacity += buffer.capacity();
+			Command command = commands.get(i);
+			if (command == null || !command.isPersisted()) continue;
+			length += size(command);
 		}
-		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(capacity);
-		for (ByteBuffer buffer : byteBuffers) {
-			byteBuffer.put(buffer);
+		return length;
+	}
+	private static void serializeBatch(Batch batch, ByteBuffer byteBuffer) {
+		List<Command> commands = batch.commands();
+		int count = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			Command command = commands.get(i);
+			if (command != null && command.isPersisted()) count++;
+		}
+		byteBuffer.putShort(type(batch));
+		byteBuffer.putInt(count);
+		byteBuffer.putInt(commandsLength(commands));
+		for (int i = 0; i < commands.size(); i++) {
+			Command command = commands.get(i);
+			if (command == null || !command.isPersisted()) continue;
+			serialize(command, byteBuffer);
+		}
+	}
+
+	private static Batch deserializeBatch(BufferedChannel bufferedChannel) throws IOException {
+		if (!bufferedChannel.hasRemaining()) return null;
+		int count = bufferedChannel.getInt();
+		if (!bufferedChannel.hasRemaining()) return null;
+		int length = bufferedChannel.getInt();
+		if (count < 0 || count > length / Short.BYTES) return null;
+		List<Command> commands = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Command command = deserialize(bufferedChannel);
+			if (command == null) return null;
+			commands.add(command);
+		}
+		return new Batch(commands);
+	}
+	private static Batch deserializeBatch(ByteBuffer byteBuffer, int depth) {
+		if (depth >= MAX_BATCH_DEPTH) return null;
+		if (byteBuffer.remaining() < 2 * Integer.BYTES) return null;
+		int count = byteBuffer.getInt();
+		int length = byteBuffer.getInt();
+		if (count < 0 || length < 0 || length > byteBuffer.remaining() || count > length / Short.BYTES) return null;
+		List<Command> commands = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Command command = deserialize(byteBuffer, depth + 1);
+			if (command == null) return null;
+			commands.add(command);
+		}
+		return new Batch(commands);
+	}
+
+	private static int sizeVGet(VGet c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeVGet(VGet c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static VGet deserializeVGet(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new VGet(name);
+	}
+	private static VGet deserializeVGet(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new VGet(name);
+	}
+	private static int sizeLLen(LLen c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeLLen(LLen c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static LLen deserializeLLen(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new LLen(name);
+	}
+	private static LLen deserializeLLen(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new LLen(name);
+	}
+	private static int sizeLIndex(LIndex c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.index());
+	}
+	private static void serializeLIndex(LIndex c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.index());
+	}
+	private static LIndex deserializeLIndex(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!bufferedChannel.hasRemaining()) return null;
+		int indexLength = bufferedChannel.getInt();
+		byte[] index = null;
+		if (indexLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[indexLength];
+			bufferedChannel.get(bytes);
+			index = bytes;
+		}
+		return new LIndex(name, index);
+	}
+	private static LIndex deserializeLIndex(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int indexLength = byteBuffer.getInt();
+		byte[] index = null;
+		if (indexLength < 0 || indexLength > byteBuffer.remaining()) return null;
+		if (indexLength > 0) {
+			bytes = new byte[indexLength];
+			byteBuffer.get(bytes);
+			index = bytes;
+		}
+		return new LIndex(name, index);
+	}
+	private static int sizeSMembers(SMembers c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeSMembers(SMembers c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static SMembers deserializeSMembers(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new SMembers(name);
+	}
+	private static SMembers deserializeSMembers(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new SMembers(name);
+	}
+	private static int sizeType(Type c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeType(Type c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static Type deserializeType(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Type(name);
+	}
+	private static Type deserializeType(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Type(name);
+	}
+	private static int sizePing(Ping c) {
+		return Short.BYTES + Integer.BYTES + length(c.message());
+	}
+	private static void serializePing(Ping c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.message());
+	}
+	private static Ping deserializePing(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int messageLength = bufferedChannel.getInt();
+		String message = null;
+		if (messageLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[messageLength];
+			bufferedChannel.get(bytes);
+			message = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Ping(message);
+	}
+	private static Ping deserializePing(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int messageLength = byteBuffer.getInt();
+		String message = null;
+		if (messageLength < 0 || messageLength > byteBuffer.remaining()) return null;
+		if (messageLength > 0) {
+			bytes = new byte[messageLength];
+			byteBuffer.get(bytes);
+			message = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Ping(message);
+	}
+	private static int sizeExpire(Expire c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.deadline());
+	}
+	private static void serializeExpire(Expire c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.deadline());
+	}
+	private static Expire deserializeExpire(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!bufferedChannel.hasRemaining()) return null;
+		int deadlineLength = bufferedChannel.getInt();
+		byte[] deadline = null;
+		if (deadlineLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[deadlineLength];
+			bufferedChannel.get(bytes);
+			deadline = bytes;
+		}
+		return new Expire(name, deadline);
+	}
+	private static Expire deserializeExpire(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int deadlineLength = byteBuffer.getInt();
+		byte[] deadline = null;
+		if (deadlineLength < 0 || deadlineLength > byteBuffer.remaining()) return null;
+		if (deadlineLength > 0) {
+			bytes = new byte[deadlineLength];
+			byteBuffer.get(bytes);
+			deadline = bytes;
+		}
+		return new Expire(name, deadline);
+	}
+	private static int sizeTtl(Ttl c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializeTtl(Ttl c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static Ttl deserializeTtl(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Ttl(name);
+	}
+	private static Ttl deserializeTtl(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Ttl(name);
+	}
+	private static int sizePersist(Persist c) {
+		return Short.BYTES + Integer.BYTES + length(c.name());
+	}
+	private static void serializePersist(Persist c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+	}
+	private static Persist deserializePersist(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Persist(name);
+	}
+	private static Persist deserializePersist(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return new Persist(name);
+	}
+	private static int sizeVSetEx(VSetEx c) {
+		return Short.BYTES + Integer.BYTES + length(c.name()) + Integer.BYTES + length(c.value()) + Integer.BYTES + length(c.deadline());
+	}
+	private static void serializeVSetEx(VSetEx c, ByteBuffer byteBuffer) {
+		byteBuffer.putShort(type(c));
+		put(byteBuffer, c.name());
+		put(byteBuffer, c.value());
+		put(byteBuffer, c.deadline());
+	}
+	private static VSetEx deserializeVSetEx(BufferedChannel bufferedChannel) throws IOException {
+		if (bufferedChannel == null) return null;
+		byte[] bytes;
+		if (!bufferedChannel.hasRemaining()) return null;
+		int nameLength = bufferedChannel.getInt();
+		String name = null;
+		if (nameLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[nameLength];
+			bufferedChannel.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!bufferedChannel.hasRemaining()) return null;
+		int valueLength = bufferedChannel.getInt();
+		byte[] value = null;
+		if (valueLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[valueLength];
+			bufferedChannel.get(bytes);
+			value = bytes;
+		}
+		if (!bufferedChannel.hasRemaining()) return null;
+		int deadlineLength = bufferedChannel.getInt();
+		byte[] deadline = null;
+		if (deadlineLength > 0) {
+			if (!bufferedChannel.hasRemaining()) return null;
+			bytes = new byte[deadlineLength];
+			bufferedChannel.get(bytes);
+			deadline = bytes;
+		}
+		return new VSetEx(name, value, deadline);
+	}
+	private static VSetEx deserializeVSetEx(ByteBuffer byteBuffer) {
+		if (byteBuffer == null) return null;
+		byte[] bytes;
+		if (!byteBuffer.hasRemaining()) return null;
+		int nameLength = byteBuffer.getInt();
+		String name = null;
+		if (nameLength < 0 || nameLength > byteBuffer.remaining()) return null;
+		if (nameLength > 0) {
+			bytes = new byte[nameLength];
+			byteBuffer.get(bytes);
+			name = new String(bytes, StandardCharsets.UTF_8);
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int valueLength = byteBuffer.getInt();
+		byte[] value = null;
+		if (valueLength < 0 || valueLength > byteBuffer.remaining()) return null;
+		if (valueLength > 0) {
+			bytes = new byte[valueLength];
+			byteBuffer.get(bytes);
+			value = bytes;
+		}
+		if (!byteBuffer.hasRemaining()) return null;
+		int deadlineLength = byteBuffer.getInt();
+		byte[] deadline = null;
+		if (deadlineLength < 0 || deadlineLength > byteBuffer.remaining()) return null;
+		if (deadlineLength > 0) {
+			bytes = new byte[deadlineLength];
+			byteBuffer.get(bytes);
+			deadline = bytes;
+		}
+		return new VSetEx(name, value, deadline);
+	}
+	private static int length(byte[] bytes) {
+		return bytes == null ? 0 : bytes.length;
+	}
+	/**
+	 * @return the length of string encoded in UTF-8, an unpaired surrogate is encoded as '?'
+	 */
+	private static int length(String string) {
+		if (string == null) return 0;
+		int length = string.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) continue;
+			if (c < 0x800) {
+				bytes += 1;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				bytes += 2;
+				i++;
+			}
+			else if (!Character.isSurrogate(c)) {
+				bytes += 2;
+			}
+		}
+		return bytes;
+	}
+	private static void put(ByteBuffer byteBuffer, byte[] bytes) {
+		byteBuffer.putInt(length(bytes));
+		if (bytes != null) byteBuffer.put(bytes);
+	}
+	/**
+	 * Puts string encoded in UTF-8 without the intermediate array of String.getBytes
+	 */
+	private static void put(ByteBuffer byteBuffer, String string) {
+		byteBuffer.putInt(length(string));
+		if (string == null) return;
+		int length = string.length();
+		for (int i = 0; i < length; i++) {
+			char c = string.charAt(i);
+			if (c < 0x80) {
+				byteBuffer.put((byte) c);
+			}
+			else if (c < 0x800) {
+				byteBuffer.put((byte) (0xC0 | c >> 6));
+				byteBuffer.put((byte) (0x80 | c & 0x3F));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, string.charAt(++i));
+				byteBuffer.put((byte) (0xF0 | codePoint >> 18));
+				byteBuffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+				byteBuffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+				byteBuffer.put((byte) (0x80 | codePoint & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) {
+				byteBuffer.put((byte) '?');
+			}
+			else {
+				byteBuffer.put((byte) (0xE0 | c >> 12));
+				byteBuffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				byteBuffer.put((byte) (0x80 | c & 0x3F));
+			}
 		}
-		return byteBuffer.flip();
 	}
 
 }
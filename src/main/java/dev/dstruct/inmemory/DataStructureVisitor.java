@@ -9,6 +9,7 @@ import dev.dstruct.command.Command;
 import dev.dstruct.command.Command.Batch;
 import dev.dstruct.command.Command.Cast;
 import dev.dstruct.command.Command.Del;
+import dev.dstruct.command.Command.Expire;
 import dev.dstruct.command.Command.LIndex;
 import dev.dstruct.command.Command.LLen;
 import dev.dstruct.command.Command.LPop;
@@ -16,49 +17,192 @@ import dev.dstruct.command.Command.LPush;
 import dev.dstruct.command.Command.MDelete;
 import dev.dstruct.command.Command.MGet;
 import dev.dstruct.command.Command.MPut;
+import dev.dstruct.command.Command.Persist;
 import dev.dstruct.command.Command.Ping;
 import dev.dstruct.command.Command.RPop;
 import dev.dstruct.command.Command.RPush;
 import dev.dstruct.command.Command.SAdd;
 import dev.dstruct.command.Command.SMembers;
 import dev.dstruct.command.Command.SRem;
+import dev.dstruct.command.Command.Ttl;
 import dev.dstruct.command.Command.Type;
 import dev.dstruct.command.Command.VDelete;
 import dev.dstruct.command.Command.VGet;
 import dev.dstruct.command.Command.VSet;
+import dev.dstruct.command.Command.VSetEx;
 import dev.dstruct.command.Command.Visitor;
-import java.util.ArrayDeque;
+import dev.dstruct.inmemory.Keyspace.Entry;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
+import java.util.function.Consumer;
 
-import static dev.dstruct.inmemory.KeyFactory.newKey;
+import static dev.dstruct.inmemory.MemoryTracker.sizeOf;
+import static dev.dstruct.inmemory.MemoryTracker.sizeOfEntry;
+import static dev.dstruct.inmemory.MemoryTracker.sizeOfKey;
 import static dev.dstruct.util.Binaries.fromBytesToBoolean;
 import static dev.dstruct.util.Binaries.fromBytesToDouble;
 import static dev.dstruct.util.Binaries.fromBytesToInt;
+import static dev.dstruct.util.Binaries.fromBytesToLong;
 import static dev.dstruct.util.Binaries.toBytes;
 
 class DataStructureVisitor implements Visitor<Result> {
 
 	enum KeyType {
-		MAP, SET, DEQUE, VALUE, NOTHING
+		MAP, SET, DEQUE, VALUE
 	}
 
-	private final Map<String, Set<Key>> setStore = new HashMap<>();
-	private final Map<String, Map<Key, byte[]>> mapStore = new HashMap<>();
-	private final Map<String, ArrayDeque<byte[]>> dequeStore = new HashMap<>();
-	private final Map<String, byte[]> valueStore = new HashMap<>();
-	private final Map<String, KeyType> keyTypeMap = new HashMap<>();
+	private final Keyspace keyspace = new Keyspace();
+	private final TimerWheel timerWheel = new TimerWheel(System.currentTimeMillis());
+	private final MemoryTracker memory;
+	/** The allocator of the values off heap, null on the heap */
+	private final SlabAllocator slabs;
+	private SnapshotView snapshotView;
+	private long now = 0;
 
-	private boolean notValidType(String name, KeyType keyType) {
-		KeyType kt = keyTypeMap.getOrDefault(name, KeyType.NOTHING);
-		return kt != keyType && kt != KeyType.NOTHING;
+	DataStructureVisitor() {
+		this(new MemoryTracker(), null);
+	}
+
+	DataStructureVisitor(MemoryTracker memory, SlabAllocator slabs) {
+		this.memory = memory;
+		this.slabs = slabs;
+	}
+
+	/**
+	 * Executes a command, recording the access to its name for the eviction policy.
+	 */
+	Result execute(Command command) {
+		if (snapshotView != null && slabs != null) {
+			snapshotFinished();
+		}
+		Result result = command.accept(this);
+		if (!(command instanceof Batch || command instanceof Cast)) {
+			memory.touch(command.name(), now);
+		}
+		return result;
+	}
+
+	/**
+	 * Sets the time, in epoch millis, seen by the next commands.
+	 */
+	void advanceClock(long now) {
+		this.now = now;
+	}
+
+	boolean isExpired(String name, long now) {
+		Entry entry = keyspace.get(name);
+		return entry != null && entry.hasDeadline() && entry.deadline <= now;
+	}
+
+	/**
+	 * Active expiry: hands to expired the names due on the elapsed slots of the timer wheel,
+	 * at most limit of them. Names are not deleted here.
+	 */
+	void expireCycle(long now, int limit, Consumer<String> expired) {
+		timerWheel.advance(now, limit, this::deadlineOf, expired);
+	}
+
+	private Long deadlineOf(String name) {
+		Entry entry = keyspace.get(name);
+		return entry == null || !entry.hasDeadline() ? null : entry.deadline;
+	}
+
+	/**
+	 * Upper bound of the memory a command adds, 0 if it doesn't add any.
+	 */
+	long estimateGrowth(Command command) {
+		if (!memory.isEnabled()) return 0;
+		return switch (command) {
+			case VSet(String name, byte[] value) ->
+				newName(name, 0) + sizeOf(value);
+			case VSetEx(String name, byte[] value, byte[] ignore) ->
+				newName(name, 0) + sizeOf(value);
+			case MPut(String name, byte[] key, byte[] value) ->
+				newName(name, MemoryTracker.MAP) + sizeOfEntry(key, value);
+			case SAdd(String name, byte[] value) ->
+				newName(name, MemoryTracker.SET) + sizeOfKey(value);
+			case LPush(String name, byte[] value) ->
+				newName(name, MemoryTracker.DEQUE) + MemoryTracker.DEQUE_SLOT + sizeOf(value);
+			case RPush(String name, byte[] value) ->
+				newName(name, MemoryTracker.DEQUE) + MemoryTracker.DEQUE_SLOT + sizeOf(value);
+			case Batch(List<Command> commands) -> {
+				long growth = 0;
+				for (Command c : commands) {
+					growth += estimateGrowth(c);
+				}
+				yield growth;
+			}
+			case Cast(int ignore, Command c) -> estimateGrowth(c);
+			default -> 0;
+		};
+	}
+
+	private long newName(String name, int structure) {
+		if (name == null || keyspace.get(name) != null) return 0;
+		return MemoryTracker.sizeOfName(name) + structure;
+	}
+
+	long usedMemory() {
+		return memory.usedMemory();
+	}
+
+	long evictedKeys() {
+		return memory.evictedKeys();
+	}
+
+	/**
+	 * @see MemoryTracker#evictionCandidates
+	 */
+	List<String> evictionCandidates(long bytes) {
+		return memory.evictionCandidates(bytes, now);
+	}
+
+	/**
+	 * Takes a view of the store to serialize in the background, see {@link SnapshotView}.
+	 * The store must not change meanwhile.
+	 */
+	SnapshotView beginSnapshot() {
+		if (snapshotView != null) {
+			snapshotFinished();
+		}
+		snapshotView = new SnapshotView(keyspace, slabs);
+		if (slabs != null) {
+			// the values freed while the view is read are kept until it is finished
+			slabs.retain();
+		}
+		return snapshotView;
+	}
+
+	/**
+	 * Frees the values of the store off heap, it must not be used anymore.
+	 */
+	void close() {
+		if (slabs != null) {
+			slabs.close();
+		}
+	}
+
+	/**
+	 * Write barrier of the maps, sets and deques, called before changing them in place.
+	 */
+	private void beforeWrite(String name, Object structure) {
+		if (snapshotView == null || snapshotFinished()) return;
+		snapshotView.beforeWrite(name, structure);
+	}
+
+	/**
+	 * Forgets the snapshot view once the background thread is done with it.
+	 *
+	 * @return true if it is finished
+	 */
+	private boolean snapshotFinished() {
+		if (!snapshotView.isFinished()) return false;
+		snapshotView = null;
+		if (slabs != null) {
+			slabs.release();
+		}
+		return true;
 	}
 
 	@Override
@@ -68,11 +212,18 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command.key(), "command.key is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
 
-		if (notValidType(command.name(), KeyType.MAP)) return new Error("type key mismatch");
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.MAP);
+		if (entry.type != KeyType.MAP) return new Error("type key mismatch");
 
-		mapStore
-			.computeIfAbsent(command.name(), this::newMapStore)
-			.put(newKey(command.key()), command.value());
+		KeyTable map = entry.structure == null ? newMap(entry) : (KeyTable) entry.structure;
+		beforeWrite(command.name(), map);
+		byte[] previous = map.put(command.key(), command.value());
+		memory.account(
+			command.name(),
+			previous == null
+				? sizeOfEntry(command.key(), command.value())
+				: sizeOf(command.value()) - sizeOf(previous)
+		);
 
 		return EmptyResult.OK;
 	}
@@ -83,10 +234,15 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.key(), "command.key is null");
 
-		if (notValidType(command.name(), KeyType.MAP)) return new Error("type key mismatch");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.MAP) return new Error("type key mismatch");
 
-		Map<Key, byte[]> map = mapStore.get(command.name());
-		if (map == null || map.remove(newKey(command.key())) == null) return EmptyResult.NOTHING;
+		KeyTable map = (KeyTable) entry.structure;
+		if (!map.contains(command.key())) return EmptyResult.NOTHING;
+		beforeWrite(command.name(), map);
+		byte[] removed = map.remove(command.key());
+		memory.account(command.name(), -sizeOfEntry(command.key(), removed));
 		return EmptyResult.OK;
 	}
 
@@ -96,15 +252,13 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.key(), "command.key is null");
 
-		if (notValidType(command.name(), KeyType.MAP)) return new Error("type key mismatch");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.MAP) return new Error("type key mismatch");
 
-		Map<Key, byte[]> map = mapStore.get(command.name());
-		if (map != null) {
-			byte[] bytes = map.get(newKey(command.key()));
-			if (bytes == null) return EmptyResult.NOTHING;
-			return new Ok(bytes);
-		}
-		return EmptyResult.NOTHING;
+		byte[] bytes = ((KeyTable) entry.structure).get(command.key());
+		if (bytes == null) return EmptyResult.NOTHING;
+		return new Ok(bytes);
 	}
 
 	@Override
@@ -113,11 +267,27 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
 
-		if (notValidType(command.name(), KeyType.VALUE)) return new Error("type key mismatch");
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.VALUE);
+		if (entry.type != KeyType.VALUE) return new Error("type key mismatch");
 
-		if (valueStore.put(command.name(), command.value()) == null) {
-			keyTypeMap.put(command.name(), KeyType.VALUE);
-		}
+		putValue(entry, command.value());
+		clearDeadline(entry);
+
+		return EmptyResult.OK;
+	}
+
+	@Override
+	public Result visitVSetExCommand(VSetEx command) {
+		Objects.requireNonNull(command, "command is null");
+		Objects.requireNonNull(command.name(), "command.name is null");
+		Objects.requireNonNull(command.value(), "command.value is null");
+		Objects.requireNonNull(command.deadline(), "command.deadline is null");
+
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.VALUE);
+		if (entry.type != KeyType.VALUE) return new Error("type key mismatch");
+
+		putValue(entry, command.value());
+		setDeadline(entry, fromBytesToLong(command.deadline()));
 
 		return EmptyResult.OK;
 	}
@@ -126,22 +296,19 @@ class DataStructureVisitor implements Visitor<Result> {
 	public Result visitVDeleteCommand(VDelete command) {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
-		if (notValidType(command.name(), KeyType.VALUE)) return new Error("type key mismatch");
-		if (valueStore.remove(command.name()) == null) return EmptyResult.NOTHING;
-		keyTypeMap.remove(command.name());
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.VALUE) return new Error("type key mismatch");
+		delete(command.name());
 		return EmptyResult.OK;
 	}
 
 	@Override
 	public Result visitVGetCommand(VGet command) {
-		if (notValidType(command.name(), KeyType.VALUE)) return new Error("type key mismatch");
-		byte[] bytes = valueStore.get(command.name());
-		if (bytes == null) {
-			return EmptyResult.NOTHING;
-		}
-		else {
-			return new Ok(bytes);
-		}
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.VALUE) return new Error("type key mismatch");
+		return new Ok(slabs == null ? (byte[]) entry.structure : slabs.read(entry.handle));
 	}
 
 	@Override
@@ -149,23 +316,26 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		dequeStore
-			.computeIfAbsent(command.name(), this::newDeque)
-			.push(command.value());
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.DEQUE);
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		ValueDeque deque = entry.structure == null ? newDeque(entry) : (ValueDeque) entry.structure;
+		beforeWrite(command.name(), deque);
+		deque.addFirst(command.value());
+		memory.account(command.name(), MemoryTracker.DEQUE_SLOT + sizeOf(command.value()));
 		return EmptyResult.OK;
 	}
 
-
-
 	@Override
 	public Result visitLPopCommand(LPop command) {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		Deque<byte[]> deque = dequeStore.get(command.name());
-		if (deque == null || deque.isEmpty()) return EmptyResult.NOTHING;
-		else return new Ok(deque.poll());
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		ValueDeque deque = (ValueDeque) entry.structure;
+		if (deque.isEmpty()) return EmptyResult.NOTHING;
+		beforeWrite(command.name(), deque);
+		return new Ok(popped(command.name(), deque.pollFirst()));
 	}
 
 	@Override
@@ -173,10 +343,12 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		dequeStore
-			.computeIfAbsent(command.name(), this::newDeque)
-			.offer(command.value());
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.DEQUE);
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		ValueDeque deque = entry.structure == null ? newDeque(entry) : (ValueDeque) entry.structure;
+		beforeWrite(command.name(), deque);
+		deque.addLast(command.value());
+		memory.account(command.name(), MemoryTracker.DEQUE_SLOT + sizeOf(command.value()));
 		return EmptyResult.OK;
 	}
 
@@ -184,20 +356,23 @@ class DataStructureVisitor implements Visitor<Result> {
 	public Result visitRPopCommand(RPop command) {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		Deque<byte[]> deque = dequeStore.get(command.name());
-		if (deque == null || deque.isEmpty()) return EmptyResult.NOTHING;
-		else return new Ok(deque.pollLast());
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		ValueDeque deque = (ValueDeque) entry.structure;
+		if (deque.isEmpty()) return EmptyResult.NOTHING;
+		beforeWrite(command.name(), deque);
+		return new Ok(popped(command.name(), deque.pollLast()));
 	}
 
 	@Override
 	public Result visitLLenCommand(LLen command) {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		Deque<byte[]> deque = dequeStore.get(command.name());
-		if (deque == null) return EmptyResult.NOTHING;
-		else return new Ok(toBytes(deque.size()));
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		return new Ok(toBytes(((ValueDeque) entry.structure).size()));
 	}
 
 	@Override
@@ -205,28 +380,19 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.index(), "command.index is null");
-		if (notValidType(command.name(), KeyType.DEQUE)) return new Error("type key mismatch");
-		Deque<byte[]> deque = dequeStore.get(command.name());
-		if (deque == null || deque.isEmpty()) return EmptyResult.NOTHING;
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.DEQUE) return new Error("type key mismatch");
+		ValueDeque deque = (ValueDeque) entry.structure;
+		if (deque.isEmpty()) return EmptyResult.NOTHING;
 		int index = fromBytesToInt(command.index());
-		Iterator<byte[]> iterator;
 		if (index < 0) {
 			index += deque.size();
-			iterator = deque.descendingIterator();
-		}
-		else {
-			iterator = deque.iterator();
-		}
-
-		while (iterator.hasNext() && (index--) > 0) {
-			iterator.next();
-		}
-		if (index == -1 && iterator.hasNext()) {
-			return new Ok(iterator.next());
-		}
-		else {
-			return EmptyResult.NOTHING;
+			// counted from the last value
+			index = deque.size() - 1 - index;
 		}
+		if (index >= deque.size()) return EmptyResult.NOTHING;
+		return new Ok(deque.get(index));
 	}
 
 	@Override
@@ -234,10 +400,13 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
-		if (notValidType(command.name(), KeyType.SET)) return new Error("type key mismatch");
-		setStore
-			.computeIfAbsent(command.name(), this::newSet)
-			.add(newKey(command.value()));
+		Entry entry = keyspace.getOrCreate(command.name(), KeyType.SET);
+		if (entry.type != KeyType.SET) return new Error("type key mismatch");
+		KeyTable set = entry.structure == null ? newSet(entry) : (KeyTable) entry.structure;
+		if (set.contains(command.value())) return EmptyResult.OK;
+		beforeWrite(command.name(), set);
+		set.add(command.value());
+		memory.account(command.name(), sizeOfKey(command.value()));
 		return EmptyResult.OK;
 	}
 
@@ -246,9 +415,14 @@ class DataStructureVisitor implements Visitor<Result> {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
 		Objects.requireNonNull(command.value(), "command.value is null");
-		if (notValidType(command.name(), KeyType.SET)) return new Error("type key mismatch");
-		Set<Key> set = setStore.get(command.name());
-		if (set == null || !set.remove(newKey(command.value()))) return EmptyResult.NOTHING;
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.SET) return new Error("type key mismatch");
+		KeyTable set = (KeyTable) entry.structure;
+		if (!set.contains(command.value())) return EmptyResult.NOTHING;
+		beforeWrite(command.name(), set);
+		set.remove(command.value());
+		memory.account(command.name(), -sizeOfKey(command.value()));
 		return EmptyResult.OK;
 	}
 
@@ -256,41 +430,61 @@ class DataStructureVisitor implements Visitor<Result> {
 	public Result visitSMembersCommand(SMembers command) {
 		Objects.requireNonNull(command, "command is null");
 		Objects.requireNonNull(command.name(), "command.name is null");
-		if (notValidType(command.name(), KeyType.SET)) return new Error("type key mismatch");
-		Set<Key> set = setStore.get(command.name());
-		if (set == null) return EmptyResult.NOTHING;
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (entry.type != KeyType.SET) return new Error("type key mismatch");
+		KeyTable set = (KeyTable) entry.structure;
 		List<Result> results = new ArrayList<>(set.size());
-		for (Key key : set) {
-			results.add(new Ok(key.toBytes()));
-		}
+		set.forEach((member, ignore) -> results.add(new Ok(member)));
 		return new Results(results);
 	}
 
 	@Override
 	public Result visitDelCommand(Del command) {
 		Objects.requireNonNull(command, "command is null");
-		String name = command.name();
-		Objects.requireNonNull(name, "command.name is null");
-		KeyType keyType = keyTypeMap.remove(name);
-		if (keyType == null) return EmptyResult.NOTHING;
-		switch (keyType) {
-			case MAP -> mapStore.remove(name);
-			case SET -> setStore.remove(name);
-			case DEQUE -> dequeStore.remove(name);
-			case VALUE -> valueStore.remove(name);
-			case NOTHING -> {}
-		}
+		Objects.requireNonNull(command.name(), "command.name is null");
+		if (!delete(command.name())) return EmptyResult.NOTHING;
 		return EmptyResult.OK;
 	}
 
 	@Override
 	public Result visitTypeCommand(Type command) {
 		Objects.requireNonNull(command, "command is null");
-		String name = command.name();
-		Objects.requireNonNull(name, "command.name is null");
-		KeyType keyType = keyTypeMap.get(name);
-		if (keyType == null) return EmptyResult.NOTHING;
-		return new Ok(keyType.name());
+		Objects.requireNonNull(command.name(), "command.name is null");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		return new Ok(entry.type.name());
+	}
+
+	@Override
+	public Result visitExpireCommand(Expire command) {
+		Objects.requireNonNull(command, "command is null");
+		Objects.requireNonNull(command.name(), "command.name is null");
+		Objects.requireNonNull(command.deadline(), "command.deadline is null");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		setDeadline(entry, fromBytesToLong(command.deadline()));
+		return EmptyResult.OK;
+	}
+
+	@Override
+	public Result visitTtlCommand(Ttl command) {
+		Objects.requireNonNull(command, "command is null");
+		Objects.requireNonNull(command.name(), "command.name is null");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null) return EmptyResult.NOTHING;
+		if (!entry.hasDeadline()) return new Ok(toBytes(-1));
+		long remaining = Math.max(0, entry.deadline - now);
+		return new Ok(toBytes((int) ((remaining + 500) / 1000)));
+	}
+
+	@Override
+	public Result visitPersistCommand(Persist command) {
+		Objects.requireNonNull(command, "command is null");
+		Objects.requireNonNull(command.name(), "command.name is null");
+		Entry entry = keyspace.get(command.name());
+		if (entry == null || !clearDeadline(entry)) return EmptyResult.NOTHING;
+		return EmptyResult.OK;
 	}
 
 	@Override
@@ -303,7 +497,7 @@ class DataStructureVisitor implements Visitor<Result> {
 		}
 		List<Result> results = new ArrayList<>(commands.size());
 		for (Command c : commands) {
-			results.add(c.accept(this));
+			results.add(execute(c));
 		}
 		return new Results(results);
 	}
@@ -315,7 +509,7 @@ class DataStructureVisitor implements Visitor<Result> {
 		if (command.type() < 0 || command.type() > 4) {
 			throw new IllegalStateException("type not supported" + command.type());
 		}
-		Result result = command.command().accept(this);
+		Result result = execute(command.command());
 		if (result instanceof Ok(byte[] value)) {
 			return switch (command.type()) {
 				case 1 -> new Ok(Integer.toString(fromBytesToInt(value)));
@@ -338,19 +532,86 @@ class DataStructureVisitor implements Visitor<Result> {
 		}
 	}
 
-	private Set<Key> newSet(String key) {
-		keyTypeMap.put(key, KeyType.SET);
-		return HashSet.newHashSet(32);
+	private void setDeadline(Entry entry, long deadline) {
+		entry.deadline = deadline;
+		timerWheel.schedule(entry.name, deadline);
+		memory.deadlineSet(entry.name);
+	}
+
+	private boolean clearDeadline(Entry entry) {
+		if (!entry.hasDeadline()) return false;
+		entry.deadline = Keyspace.NO_DEADLINE;
+		memory.deadlineCleared(entry.name);
+		return true;
+	}
+
+	/**
+	 * Off heap, the structure of a value is the allocator holding it.
+	 */
+	private void putValue(Entry entry, byte[] value) {
+		if (entry.structure == null) {
+			memory.created(entry.name, sizeOf(value), now);
+		}
+		else if (slabs != null) {
+			memory.account(entry.name, sizeOf(value) - MemoryTracker.array(SlabAllocator.length(entry.handle)));
+			slabs.free(entry.handle);
+		}
+		else {
+			memory.account(entry.name, sizeOf(value) - sizeOf((byte[]) entry.structure));
+		}
+		if (slabs != null) {
+			entry.handle = slabs.allocate(value);
+			entry.structure = slabs;
+		}
+		else {
+			entry.structure = value;
+		}
+	}
+
+	/**
+	 * Removes a name and frees its values off heap.
+	 *
+	 * @return false if absent
+	 */
+	private boolean delete(String name) {
+		Entry entry = keyspace.remove(name);
+		if (entry == null) return false;
+		memory.removed(name);
+		switch (entry.type) {
+			case MAP -> ((KeyTable) entry.structure).free();
+			case DEQUE -> ((ValueDeque) entry.structure).free();
+			case VALUE -> {
+				if (slabs != null) slabs.free(entry.handle);
+			}
+			case SET -> {}
+		}
+		return true;
+	}
+
+	private byte[] popped(String name, byte[] value) {
+		memory.account(name, -(MemoryTracker.DEQUE_SLOT + sizeOf(value)));
+		return value;
+	}
+
+	private KeyTable newSet(Entry entry) {
+		memory.created(entry.name, MemoryTracker.SET, now);
+		KeyTable set = KeyTable.newSet();
+		entry.structure = set;
+		return set;
 	}
 
-	private ArrayDeque<byte[]> newDeque(String key) {
-		keyTypeMap.put(key, KeyType.DEQUE);
-		return new ArrayDeque<>(32);
+	private ValueDeque newDeque(Entry entry) {
+		memory.created(entry.name, MemoryTracker.DEQUE, now);
+		ValueDeque deque = ValueDeque.newDeque(slabs);
+		entry.structure = deque;
+		return deque;
 	}
 
-	private Map<Key, byte[]> newMapStore(String key) {
-		keyTypeMap.put(key, KeyType.MAP);
-		return HashMap.newHashMap(32);
+	private KeyTable newMap(Entry entry) {
+		memory.created(entry.name, MemoryTracker.MAP, now);
+		KeyTable map = KeyTable.newMap(slabs);
+		entry.structure = map;
+		return map;
 	}
 
 }
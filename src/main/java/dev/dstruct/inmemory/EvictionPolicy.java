@@ -0,0 +1,55 @@
+package dev.dstruct.inmemory;
+
+/**
+ * Which names are evicted when a shard goes over its memory budget.
+ * Victims are chosen by sampling a few names at random, see {@link MemoryTracker}.
+ */
+public enum EvictionPolicy {
+	/**
+	 * Nothing is evicted, the writes that would go over the budget are rejected
+	 */
+	NO_EVICTION,
+
+	/**
+	 * The least recently used name among the sampled ones
+	 */
+	ALLKEYS_LRU,
+
+	/**
+	 * The least frequently used name among the sampled ones, the frequency decays over time
+	 */
+	ALLKEYS_LFU,
+
+	/**
+	 * Any name
+	 */
+	ALLKEYS_RANDOM,
+
+	/**
+	 * Like {@link #ALLKEYS_LRU}, among the names with a deadline only
+	 */
+	VOLATILE_LRU,
+
+	/**
+	 * Like {@link #ALLKEYS_LFU}, among the names with a deadline only
+	 */
+	VOLATILE_LFU,
+
+	/**
+	 * Like {@link #ALLKEYS_RANDOM}, among the names with a deadline only
+	 */
+	VOLATILE_RANDOM;
+
+	boolean volatileOnly() {
+		return this == VOLATILE_LRU || this == VOLATILE_LFU || this == VOLATILE_RANDOM;
+	}
+
+	boolean isLfu() {
+		return this == ALLKEYS_LFU || this == VOLATILE_LFU;
+	}
+
+	boolean isLru() {
+		return this == ALLKEYS_LRU || this == VOLATILE_LRU;
+	}
+
+}
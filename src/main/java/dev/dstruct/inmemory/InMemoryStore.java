@@ -2,13 +2,129 @@ package dev.dstruct.inmemory;
 
 import dev.dstruct.Result;
 import dev.dstruct.command.Command;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
-public class InMemoryStore {
+public class InMemoryStore implements AutoCloseable {
 
-	private final DataStructureVisitor dataStructureVisitor = new DataStructureVisitor();
+	private final DataStructureVisitor dataStructureVisitor;
+
+	public InMemoryStore() {
+		this.dataStructureVisitor = new DataStructureVisitor();
+	}
+
+	/**
+	 * A store accounting its memory, see {@link #estimateGrowth} and {@link #evictionCandidates}.
+	 *
+	 * @param samples how many names are sampled to choose each victim
+	 */
+	public InMemoryStore(EvictionPolicy evictionPolicy, int samples) {
+		this(evictionPolicy, samples, false);
+	}
+
+	/**
+	 * A store keeping its values off heap if offHeap, see {@link SlabAllocator}. The heap only
+	 * holds the names, the keys and the handles of the values; a read copies the value out.
+	 * The store must be {@link #close closed} to free them.
+	 */
+	public InMemoryStore(boolean offHeap) {
+		this.dataStructureVisitor = new DataStructureVisitor(
+			new MemoryTracker(),
+			offHeap ? new SlabAllocator() : null
+		);
+	}
+
+	/**
+	 * A store accounting its memory and keeping its values off heap if offHeap.
+	 *
+	 * @see #InMemoryStore(EvictionPolicy, int)
+	 * @see #InMemoryStore(boolean)
+	 */
+	public InMemoryStore(EvictionPolicy evictionPolicy, int samples, boolean offHeap) {
+		this.dataStructureVisitor = new DataStructureVisitor(
+			new MemoryTracker(true, evictionPolicy, samples),
+			offHeap ? new SlabAllocator() : null
+		);
+	}
 
 	public Result manageCommand(Command command) {
-		return command.accept(dataStructureVisitor);
+		return dataStructureVisitor.execute(command);
+	}
+
+	/**
+	 * Sets the time, in epoch millis, seen by the next commands, e.g. by TTL.
+	 * Names are never expired by the store itself: the caller deletes them with a DEL command,
+	 * so expirations go through the WAL like any other write.
+	 */
+	public void advanceClock(long now) {
+		dataStructureVisitor.advanceClock(now);
+	}
+
+	/**
+	 * @return true if the name has a deadline and it is not after now
+	 */
+	public boolean isExpired(String name, long now) {
+		return dataStructureVisitor.isExpired(name, now);
+	}
+
+	/**
+	 * Samples the timer wheel for the names due up to now, at most limit of them.
+	 */
+	public Set<String> expireCycle(long now, int limit) {
+		Set<String> expired = new LinkedHashSet<>();
+		dataStructureVisitor.expireCycle(now, limit, expired::add);
+		return expired;
+	}
+
+	/**
+	 * Takes a point in time view of the store, to be called while the store doesn't change.
+	 * The returned emitter hands the commands that rebuild the view to a consumer: it is meant
+	 * to run on another thread, while the store keeps changing.
+	 */
+	public Consumer<Consumer<Command>> beginSnapshot() {
+		return dataStructureVisitor.beginSnapshot()::emit;
+	}
+
+	/**
+	 * Upper bound of the memory a command adds to the store, 0 if the memory is not accounted.
+	 */
+	public long estimateGrowth(Command command) {
+		return dataStructureVisitor.estimateGrowth(command);
+	}
+
+	/**
+	 * Approximate memory used by the store, in bytes, 0 if the memory is not accounted.
+	 * It can be read by any thread.
+	 */
+	public long usedMemory() {
+		return dataStructureVisitor.usedMemory();
+	}
+
+	/**
+	 * Number of names chosen by {@link #evictionCandidates} so far. It can be read by any thread.
+	 */
+	public long evictedKeys() {
+		return dataStructureVisitor.evictedKeys();
+	}
+
+	/**
+	 * Chooses, by eviction policy, names whose deletion frees at least bytes.
+	 * Like expired names, they are not deleted here: the caller deletes them with a DEL command.
+	 *
+	 * @return the names to delete, fewer than needed if the policy runs out of candidates
+	 */
+	public List<String> evictionCandidates(long bytes) {
+		return dataStructureVisitor.evictionCandidates(bytes);
+	}
+
+	/**
+	 * Frees the values kept off heap, the store must not be used anymore. Nothing to do on the heap.
+	 */
+	@Override
+	public void close() {
+		dataStructureVisitor.close();
 	}
 
 }
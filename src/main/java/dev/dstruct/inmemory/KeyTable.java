@@ -0,0 +1,444 @@
+package dev.dstruct.inmemory;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Open addressing hash table of the keys of a map, or of the members of a set, with linear
+ * probing and backward shift deletion: no tombstones, a removal moves back the entries that
+ * follow it.
+ * <p>
+ * In DStruct everything is a byte[], and most keys are short: numeric ids, counters, timestamps,
+ * short ASCII strings. A key of up to 8 bytes is reduced to a long, big endian, and stored
+ * in a {@code long[]} with its width in a {@code byte[]}: 1, 2, 4 or 8, the width it is given
+ * back with. A key of 3 bytes is the same as its 4 bytes zero extension, one of 5 to 7 bytes
+ * the same as its 8 bytes one. Longer keys go to a second table of byte[] with their hashes.
+ * Values are in a {@code byte[][]} parallel to the keys, a set has none. Off heap, values are
+ * in a {@link SlabAllocator} and the table keeps their handles in a {@code long[]}: they are
+ * copied out by the reads and freed when they are replaced or removed.
+ * <p>
+ * Without compact headers, a key of up to 8 bytes costs 13 bytes per slot in a map and 9 in a
+ * set, where a HashMap.Node and a boxed key cost 48 to 56: no node, no key object, and a lookup
+ * reads the contiguous slots of a single array instead of chasing a reference per entry.
+ * <p>
+ * The table is not thread safe.
+ */
+final class KeyTable {
+
+	static final int INITIAL_CAPACITY = 32;
+	/** Widest key stored as a long */
+	static final int MAX_WIDTH = Long.BYTES;
+	/** Value returned for the members of a set */
+	private static final byte[] PRESENT = new byte[0];
+
+	private long[] keys;
+	/** Width of the key of a slot, 0 if the slot is empty */
+	private byte[] widths;
+	private byte[][] values;
+	private int size;
+	private byte[][] wideKeys;
+	private int[] hashes;
+	private byte[][] wideValues;
+	private int wideSize;
+	/** Off heap only */
+	private final SlabAllocator slabs;
+	private long[] handles;
+	private long[] wideHandles;
+
+	private KeyTable(boolean withValues, SlabAllocator slabs) {
+		this.keys = new long[INITIAL_CAPACITY];
+		this.widths = new byte[INITIAL_CAPACITY];
+		this.slabs = slabs;
+		if (withValues && slabs == null) {
+			this.values = new byte[INITIAL_CAPACITY][];
+		}
+		else if (withValues) {
+			this.handles = new long[INITIAL_CAPACITY];
+		}
+	}
+
+	private KeyTable(KeyTable table) {
+		this.keys = table.keys.clone();
+		this.widths = table.widths.clone();
+		this.values = table.values == null ? null : table.values.clone();
+		this.slabs = table.slabs;
+		this.handles = table.handles == null ? null : table.handles.clone();
+		this.size = table.size;
+		if (table.wideKeys != null) {
+			this.wideKeys = table.wideKeys.clone();
+			this.hashes = table.hashes.clone();
+			this.wideValues = table.wideValues == null ? null : table.wideValues.clone();
+			this.wideHandles = table.wideHandles == null ? null : table.wideHandles.clone();
+			this.wideSize = table.wideSize;
+		}
+	}
+
+	static KeyTable newMap() {
+		return new KeyTable(true, null);
+	}
+
+	/**
+	 * @param slabs the allocator of the values, null to keep them on the heap
+	 */
+	static KeyTable newMap(SlabAllocator slabs) {
+		return new KeyTable(true, slabs);
+	}
+
+	static KeyTable newSet() {
+		return new KeyTable(false, null);
+	}
+
+	/**
+	 * A copy sharing the keys and the values, which are never changed in place. Off heap, the
+	 * values of the copy are freed with the ones of the table: it can only be read while the
+	 * allocator is retained.
+	 */
+	KeyTable copy() {
+		return new KeyTable(this);
+	}
+
+	/**
+	 * Frees the values of a table off heap, the table must not be used anymore.
+	 */
+	void free() {
+		if (slabs == null) return;
+		if (handles != null) {
+			for (int i = 0; i < widths.length; i++) {
+				if (widths[i] != 0) slabs.free(handles[i]);
+			}
+		}
+		if (wideHandles != null) {
+			for (int i = 0; i < wideKeys.length; i++) {
+				if (wideKeys[i] != null) slabs.free(wideHandles[i]);
+			}
+		}
+	}
+
+	int size() {
+		return size + wideSize;
+	}
+
+	/**
+	 * @return the width the key is stored with, 0 if it is stored as a byte[]
+	 */
+	static int widthOf(byte[] key) {
+		if (key.length > MAX_WIDTH) return 0;
+		if (key.length <= 2) return key.length;
+		return key.length <= 4 ? 4 : 8;
+	}
+
+	/**
+	 * @return the value of the key, null if absent; an empty array for a member of a set
+	 */
+	byte[] get(byte[] key) {
+		int width = widthOf(key);
+		if (width == 0) {
+			if (wideKeys == null) return null;
+			int slot = wideSlot(key, hash(key));
+			if (wideKeys[slot] == null) return null;
+			return wideValue(slot);
+		}
+		int slot = slot(fold(key), width);
+		if (widths[slot] == 0) return null;
+		return value(slot);
+	}
+
+	boolean contains(byte[] key) {
+		int width = widthOf(key);
+		if (width == 0) return wideKeys != null && wideKeys[wideSlot(key, hash(key))] != null;
+		return widths[slot(fold(key), width)] != 0;
+	}
+
+	/**
+	 * Adds a member to a set.
+	 *
+	 * @return false if it was already there
+	 */
+	boolean add(byte[] key) {
+		return put(key, PRESENT) == null;
+	}
+
+	/**
+	 * @return the previous value of the key, null if absent; an empty array for a member
+	 * of a set
+	 */
+	byte[] put(byte[] key, byte[] value) {
+		int width = widthOf(key);
+		if (width == 0) return putWide(key, value);
+		long folded = fold(key);
+		int slot = slot(folded, width);
+		if (widths[slot] != 0) {
+			byte[] previous = value(slot);
+			if (values != null) {
+				values[slot] = value;
+			}
+			else if (handles != null) {
+				slabs.free(handles[slot]);
+				handles[slot] = slabs.allocate(value);
+			}
+			return previous;
+		}
+		keys[slot] = folded;
+		widths[slot] = (byte) width;
+		if (values != null) {
+			values[slot] = value;
+		}
+		else if (handles != null) {
+			handles[slot] = slabs.allocate(value);
+		}
+		if (++size > threshold(widths.length)) {
+			resize();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value of the removed key, null if absent; an empty array for a member of a set
+	 */
+	byte[] remove(byte[] key) {
+		int width = widthOf(key);
+		if (width == 0) return removeWide(key);
+		int slot = slot(fold(key), width);
+		if (widths[slot] == 0) return null;
+		byte[] removed = value(slot);
+		if (handles != null) {
+			slabs.free(handles[slot]);
+		}
+		delete(slot);
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Hands every key, as the byte[] it is given back with, and its value to action: the value
+	 * is an empty array for the members of a set.
+	 */
+	void forEach(BiConsumer<byte[], byte[]> action) {
+		for (int i = 0; i < widths.length; i++) {
+			if (widths[i] != 0) {
+				action.accept(unfold(keys[i], widths[i]), value(i));
+			}
+		}
+		if (wideKeys == null) return;
+		for (int i = 0; i < wideKeys.length; i++) {
+			if (wideKeys[i] != null) {
+				action.accept(wideKeys[i], wideValue(i));
+			}
+		}
+	}
+
+	private byte[] value(int slot) {
+		if (values != null) return values[slot];
+		return handles == null ? PRESENT : slabs.read(handles[slot]);
+	}
+
+	private byte[] wideValue(int slot) {
+		if (wideValues != null) return wideValues[slot];
+		return wideHandles == null ? PRESENT : slabs.read(wideHandles[slot]);
+	}
+
+	private int slot(long key, int width) {
+		int mask = keys.length - 1;
+		int slot = hash(key, width) & mask;
+		while (widths[slot] != 0 && (keys[slot] != key || widths[slot] != width)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void delete(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		for (int i = (slot + 1) & mask; widths[i] != 0; i = (i + 1) & mask) {
+			int home = hash(keys[i], widths[i]) & mask;
+			// the entry can move back to the hole if the hole is between its home and its slot
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = keys[i];
+				widths[hole] = widths[i];
+				if (values != null) {
+					values[hole] = values[i];
+				}
+				else if (handles != null) {
+					handles[hole] = handles[i];
+				}
+				hole = i;
+			}
+		}
+		keys[hole] = 0;
+		widths[hole] = 0;
+		if (values != null) {
+			values[hole] = null;
+		}
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		byte[] oldWidths = widths;
+		byte[][] oldValues = values;
+		long[] oldHandles = handles;
+		int capacity = oldKeys.length * 2;
+		keys = new long[capacity];
+		widths = new byte[capacity];
+		values = oldValues == null ? null : new byte[capacity][];
+		handles = oldHandles == null ? null : new long[capacity];
+		for (int i = 0; i < oldWidths.length; i++) {
+			if (oldWidths[i] == 0) continue;
+			int slot = slot(oldKeys[i], oldWidths[i]);
+			keys[slot] = oldKeys[i];
+			widths[slot] = oldWidths[i];
+			if (values != null) {
+				values[slot] = oldValues[i];
+			}
+			else if (handles != null) {
+				handles[slot] = oldHandles[i];
+			}
+		}
+	}
+
+	private byte[] putWide(byte[] key, byte[] value) {
+		if (wideKeys == null) {
+			wideKeys = new byte[INITIAL_CAPACITY][];
+			hashes = new int[INITIAL_CAPACITY];
+			wideValues = values == null ? null : new byte[INITIAL_CAPACITY][];
+			wideHandles = handles == null ? null : new long[INITIAL_CAPACITY];
+		}
+		int hash = hash(key);
+		int slot = wideSlot(key, hash);
+		if (wideKeys[slot] != null) {
+			byte[] previous = wideValue(slot);
+			if (wideValues != null) {
+				wideValues[slot] = value;
+			}
+			else if (wideHandles != null) {
+				slabs.free(wideHandles[slot]);
+				wideHandles[slot] = slabs.allocate(value);
+			}
+			return previous;
+		}
+		wideKeys[slot] = key;
+		hashes[slot] = hash;
+		if (wideValues != null) {
+			wideValues[slot] = value;
+		}
+		else if (wideHandles != null) {
+			wideHandles[slot] = slabs.allocate(value);
+		}
+		if (++wideSize > threshold(wideKeys.length)) {
+			resizeWide();
+		}
+		return null;
+	}
+
+	private byte[] removeWide(byte[] key) {
+		if (wideKeys == null) return null;
+		int slot = wideSlot(key, hash(key));
+		if (wideKeys[slot] == null) return null;
+		byte[] removed = wideValue(slot);
+		if (wideHandles != null) {
+			slabs.free(wideHandles[slot]);
+		}
+		deleteWide(slot);
+		wideSize--;
+		return removed;
+	}
+
+	private int wideSlot(byte[] key, int hash) {
+		int mask = wideKeys.length - 1;
+		int slot = hash & mask;
+		while (wideKeys[slot] != null && (hashes[slot] != hash || !Arrays.equals(wideKeys[slot], key))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void deleteWide(int slot) {
+		int mask = wideKeys.length - 1;
+		int hole = slot;
+		for (int i = (slot + 1) & mask; wideKeys[i] != null; i = (i + 1) & mask) {
+			int home = hashes[i] & mask;
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				wideKeys[hole] = wideKeys[i];
+				hashes[hole] = hashes[i];
+				if (wideValues != null) {
+					wideValues[hole] = wideValues[i];
+				}
+				else if (wideHandles != null) {
+					wideHandles[hole] = wideHandles[i];
+				}
+				hole = i;
+			}
+		}
+		wideKeys[hole] = null;
+		hashes[hole] = 0;
+		if (wideValues != null) {
+			wideValues[hole] = null;
+		}
+	}
+
+	private void resizeWide() {
+		byte[][] oldKeys = wideKeys;
+		int[] oldHashes = hashes;
+		byte[][] oldValues = wideValues;
+		long[] oldHandles = wideHandles;
+		int capacity = oldKeys.length * 2;
+		wideKeys = new byte[capacity][];
+		hashes = new int[capacity];
+		wideValues = oldValues == null ? null : new byte[capacity][];
+		wideHandles = oldHandles == null ? null : new long[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == null) continue;
+			int slot = oldHashes[i] & mask;
+			while (wideKeys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			wideKeys[slot] = oldKeys[i];
+			hashes[slot] = oldHashes[i];
+			if (wideValues != null) {
+				wideValues[slot] = oldValues[i];
+			}
+			else if (wideHandles != null) {
+				wideHandles[slot] = oldHandles[i];
+			}
+		}
+	}
+
+	/**
+	 * Load factor of 3/4.
+	 */
+	private static int threshold(int capacity) {
+		return capacity - (capacity >>> 2);
+	}
+
+	private static long fold(byte[] key) {
+		long result = 0;
+		for (byte b : key) {
+			result = (result << 8) | (b & 0xFF);
+		}
+		return result;
+	}
+
+	private static byte[] unfold(long key, int width) {
+		byte[] bytes = new byte[width];
+		for (int i = width - 1; i >= 0; i--) {
+			bytes[i] = (byte) key;
+			key >>>= 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Linear probing needs the low bits to depend on the whole key: sequential ids would
+	 * otherwise fill runs of adjacent slots.
+	 */
+	private static int hash(long key, int width) {
+		long h = (key ^ ((long) width << 59)) * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32) ^ (h >>> 47));
+	}
+
+	private static int hash(byte[] key) {
+		int h = Arrays.hashCode(key) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
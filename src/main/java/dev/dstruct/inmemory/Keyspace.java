@@ -0,0 +1,194 @@
+package dev.dstruct.inmemory;
+
+import dev.dstruct.inmemory.DataStructureVisitor.KeyType;
+import java.util.function.Consumer;
+
+/**
+ * The names of a store: a dictionary from each name to its {@link Entry}, holding its type, its
+ * structure and its deadline, so a command finds all it needs with a single lookup.
+ * <p>
+ * Entries are chained in their bucket. When the dictionary is as large as its table, it grows
+ * like Redis does: a table twice as large is allocated, and every following lookup moves the
+ * entries of {@code REHASH_STEP} buckets of the old table into it, until it is empty. Meanwhile
+ * lookups look in both tables and new entries go to the new one. Growing never rehashes all the
+ * names at once, which would stop the event loop for seconds with hundreds of millions of names.
+ * <p>
+ * The dictionary is not thread safe.
+ */
+final class Keyspace {
+
+	static final int INITIAL_CAPACITY = 64;
+	/** Buckets moved by a lookup while rehashing */
+	static final int REHASH_STEP = 1;
+	/** Empty buckets skipped by a lookup while rehashing, at most */
+	private static final int MAX_EMPTY_VISITS = 10 * REHASH_STEP;
+	static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	/**
+	 * A name and what the store keeps for it.
+	 */
+	static final class Entry {
+		final String name;
+		private final int hash;
+		private Entry next;
+		final KeyType type;
+		/** The KeyTable, the ValueDeque, or the byte[] of a value on the heap */
+		Object structure;
+		/** The handle of a value off heap */
+		long handle;
+		/** Epoch millis, {@link #NO_DEADLINE} if none */
+		long deadline = NO_DEADLINE;
+
+		private Entry(String name, int hash, KeyType type) {
+			this.name = name;
+			this.hash = hash;
+			this.type = type;
+		}
+
+		boolean hasDeadline() {
+			return deadline != NO_DEADLINE;
+		}
+	}
+
+	private Entry[] table = new Entry[INITIAL_CAPACITY];
+	/** The table being emptied into table, null if not rehashing */
+	private Entry[] old;
+	/** Next bucket of old to move */
+	private int rehashIndex;
+	private int size;
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the entry of the name, null if absent
+	 */
+	Entry get(String name) {
+		int hash = hash(name);
+		if (old != null) {
+			rehashStep();
+			if (old != null) {
+				Entry entry = find(old, name, hash);
+				if (entry != null) return entry;
+			}
+		}
+		return find(table, name, hash);
+	}
+
+	/**
+	 * @return the entry of the name, or a new entry of the given type, with no structure yet,
+	 * if absent: the caller checks the type of the entry returned
+	 */
+	Entry getOrCreate(String name, KeyType type) {
+		Entry entry = get(name);
+		if (entry != null) return entry;
+		if (old == null && size >= table.length) {
+			old = table;
+			table = new Entry[old.length * 2];
+			rehashIndex = 0;
+		}
+		entry = new Entry(name, hash(name), type);
+		int index = entry.hash & (table.length - 1);
+		entry.next = table[index];
+		table[index] = entry;
+		size++;
+		return entry;
+	}
+
+	/**
+	 * @return the removed entry, null if absent
+	 */
+	Entry remove(String name) {
+		int hash = hash(name);
+		if (old != null) {
+			rehashStep();
+			if (old != null) {
+				Entry entry = unlink(old, name, hash);
+				if (entry != null) return entry;
+			}
+		}
+		return unlink(table, name, hash);
+	}
+
+	/**
+	 * Visits every entry. The dictionary must not change meanwhile.
+	 */
+	void forEach(Consumer<Entry> action) {
+		if (old != null) {
+			forEach(old, action);
+		}
+		forEach(table, action);
+	}
+
+	/**
+	 * @return true while the entries of an old table are moved to the new one
+	 */
+	boolean isRehashing() {
+		return old != null;
+	}
+
+	private Entry find(Entry[] buckets, String name, int hash) {
+		for (Entry entry = buckets[hash & (buckets.length - 1)]; entry != null; entry = entry.next) {
+			if (entry.hash == hash && entry.name.equals(name)) return entry;
+		}
+		return null;
+	}
+
+	private Entry unlink(Entry[] buckets, String name, int hash) {
+		int index = hash & (buckets.length - 1);
+		Entry previous = null;
+		for (Entry entry = buckets[index]; entry != null; previous = entry, entry = entry.next) {
+			if (entry.hash == hash && entry.name.equals(name)) {
+				if (previous == null) buckets[index] = entry.next;
+				else previous.next = entry.next;
+				entry.next = null;
+				size--;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Moves the entries of the next {@code REHASH_STEP} non-empty buckets of the old table.
+	 */
+	private void rehashStep() {
+		int moved = 0;
+		int emptyVisits = 0;
+		while (moved < REHASH_STEP && rehashIndex < old.length) {
+			Entry entry = old[rehashIndex];
+			if (entry == null) {
+				rehashIndex++;
+				if (++emptyVisits == MAX_EMPTY_VISITS) return;
+				continue;
+			}
+			old[rehashIndex++] = null;
+			while (entry != null) {
+				Entry next = entry.next;
+				int index = entry.hash & (table.length - 1);
+				entry.next = table[index];
+				table[index] = entry;
+				entry = next;
+			}
+			moved++;
+		}
+		if (rehashIndex == old.length) {
+			old = null;
+		}
+	}
+
+	private static void forEach(Entry[] buckets, Consumer<Entry> action) {
+		for (Entry bucket : buckets) {
+			for (Entry entry = bucket; entry != null; entry = entry.next) {
+				action.accept(entry);
+			}
+		}
+	}
+
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+}
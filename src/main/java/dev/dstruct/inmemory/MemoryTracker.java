@@ -0,0 +1,278 @@
+package dev.dstruct.inmemory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Approximate accounting of the memory used by the names of a store, and choice of the names
+ * to evict when it goes over budget.
+ * <p>
+ * Sizes are estimated from the object layouts, with compressed oops and no compact headers:
+ * they ignore the unused capacity of the hash tables and of the deques.
+ * <p>
+ * Every name has a {@link Usage} with its size, its last access and its access frequency.
+ * Victims are chosen like Redis does: a few names are sampled at random, the best one by policy
+ * is evicted, and so on until enough memory is freed. The last access is a counter of the
+ * accesses of the store, the frequency is a logarithmic counter decaying by one every
+ * {@code LFU_DECAY_MILLIS} without accesses.
+ * <p>
+ * The store never evicts by itself: the caller deletes the victims with DEL commands, so
+ * evictions go through the WAL like any other write.
+ */
+final class MemoryTracker {
+
+	static final int OBJECT_HEADER = 12;
+	static final int ARRAY_HEADER = 16;
+	static final int REFERENCE = 4;
+
+	/** HashMap.Node plus its slot in the table */
+	static final int HASH_ENTRY = align(OBJECT_HEADER + 4 + 3 * REFERENCE) + REFERENCE;
+	/** Keyspace.Entry plus its slot in the table */
+	static final int KEYSPACE_ENTRY = align(OBJECT_HEADER + 4 * REFERENCE + 4 + 2 * 8) + REFERENCE;
+	/** Slot of an element in the ValueDeque array */
+	static final int DEQUE_SLOT = REFERENCE;
+	/** Empty structures, with their initial capacity of 32 */
+	static final int MAP = align(OBJECT_HEADER + 9 * REFERENCE + 2 * 4)
+		+ array(KeyTable.INITIAL_CAPACITY * 8) + array(KeyTable.INITIAL_CAPACITY)
+		+ array(KeyTable.INITIAL_CAPACITY * REFERENCE);
+	static final int SET = MAP - array(KeyTable.INITIAL_CAPACITY * REFERENCE);
+	static final int DEQUE = align(OBJECT_HEADER + 3 * REFERENCE + 2 * 4) + array(ValueDeque.INITIAL_CAPACITY * REFERENCE);
+
+	private static final int LFU_INIT = 5;
+	private static final int LFU_MAX = 255;
+	private static final int LFU_LOG_FACTOR = 10;
+	private static final long LFU_DECAY_MILLIS = 60_000;
+
+	static final class Usage {
+		private long bytes;
+		private long lastAccess;
+		private int frequency = LFU_INIT;
+		private long frequencyTime;
+		private int index = -1;
+		private int volatileIndex = -1;
+	}
+
+	private final boolean enabled;
+	private final EvictionPolicy policy;
+	private final int samples;
+	private final Map<String, Usage> usages = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final List<String> volatileNames = new ArrayList<>();
+	private final SplittableRandom random = new SplittableRandom();
+	private long accesses = 0;
+	private volatile long usedMemory = 0;
+	private volatile long evictedKeys = 0;
+
+	/**
+	 * A disabled tracker, accounting nothing.
+	 */
+	MemoryTracker() {
+		this(false, EvictionPolicy.NO_EVICTION, 1);
+	}
+
+	MemoryTracker(boolean enabled, EvictionPolicy policy, int samples) {
+		if (samples < 1) {
+			throw new IllegalArgumentException("samples must be greater than 0");
+		}
+		this.enabled = enabled;
+		this.policy = policy;
+		this.samples = samples;
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	long usedMemory() {
+		return usedMemory;
+	}
+
+	long evictedKeys() {
+		return evictedKeys;
+	}
+
+	static int align(int size) {
+		return (size + 7) & ~7;
+	}
+
+	static int array(int length) {
+		return align(ARRAY_HEADER + length);
+	}
+
+	static int sizeOf(byte[] value) {
+		return array(value.length);
+	}
+
+	/**
+	 * A key in the slots of a {@link KeyTable}, without its value: the long and the width,
+	 * or the byte[] and its hash.
+	 */
+	static int sizeOfKey(byte[] key) {
+		return KeyTable.widthOf(key) == 0 ? REFERENCE + 4 + array(key.length) : 8 + 1;
+	}
+
+	/**
+	 * An entry of a map: its key, the slot of its value and the value.
+	 */
+	static int sizeOfEntry(byte[] key, byte[] value) {
+		return sizeOfKey(key) + REFERENCE + sizeOf(value);
+	}
+
+	/**
+	 * The name itself, its {@link Keyspace.Entry} with its slot in the table, and its usage.
+	 */
+	static int sizeOfName(String name) {
+		return align(OBJECT_HEADER + 4 + 4 + REFERENCE) + array(name.length())
+			+ KEYSPACE_ENTRY
+			+ HASH_ENTRY
+			+ align(OBJECT_HEADER + 3 * 8 + 3 * 4);
+	}
+
+	/**
+	 * A new name, with the size of its empty structure.
+	 */
+	void created(String name, long bytes, long now) {
+		if (!enabled) return;
+		Usage usage = new Usage();
+		usage.bytes = sizeOfName(name) + bytes;
+		usage.lastAccess = ++accesses;
+		usage.frequencyTime = now;
+		usage.index = names.size();
+		names.add(name);
+		usages.put(name, usage);
+		usedMemory += usage.bytes;
+	}
+
+	void account(String name, long delta) {
+		if (!enabled || delta == 0) return;
+		Usage usage = usages.get(name);
+		if (usage == null) return;
+		usage.bytes += delta;
+		usedMemory += delta;
+	}
+
+	void removed(String name) {
+		if (!enabled) return;
+		Usage usage = usages.remove(name);
+		if (usage == null) return;
+		usedMemory -= usage.bytes;
+		if (usage.index >= 0) {
+			usage.index = removeAt(names, usage.index, false);
+		}
+		if (usage.volatileIndex >= 0) {
+			usage.volatileIndex = removeAt(volatileNames, usage.volatileIndex, true);
+		}
+	}
+
+	void deadlineSet(String name) {
+		if (!enabled) return;
+		Usage usage = usages.get(name);
+		if (usage == null || usage.volatileIndex >= 0) return;
+		usage.volatileIndex = volatileNames.size();
+		volatileNames.add(name);
+	}
+
+	void deadlineCleared(String name) {
+		if (!enabled) return;
+		Usage usage = usages.get(name);
+		if (usage == null || usage.volatileIndex < 0) return;
+		usage.volatileIndex = removeAt(volatileNames, usage.volatileIndex, true);
+	}
+
+	/**
+	 * Records an access to a name for the LRU and LFU policies.
+	 */
+	void touch(String name, long now) {
+		if (!enabled || !(policy.isLru() || policy.isLfu())) return;
+		Usage usage = usages.get(name);
+		if (usage == null) return;
+		usage.lastAccess = ++accesses;
+		if (policy.isLfu()) {
+			usage.frequency = decayedFrequency(usage, now);
+			usage.frequencyTime = now;
+			if (usage.frequency < LFU_MAX) {
+				double base = Math.max(0, usage.frequency - LFU_INIT);
+				if (random.nextDouble() < 1.0 / (base * LFU_LOG_FACTOR + 1)) {
+					usage.frequency++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Chooses the names whose deletion frees at least bytes, fewer if the policy runs out of
+	 * candidates. The victims are no longer candidates, and are counted as evicted: the caller
+	 * has to delete them.
+	 */
+	List<String> evictionCandidates(long bytes, long now) {
+		List<String> victims = new ArrayList<>();
+		if (!enabled || policy == EvictionPolicy.NO_EVICTION) return victims;
+		List<String> pool = policy.volatileOnly() ? volatileNames : names;
+		long freed = 0;
+		while (freed < bytes && !pool.isEmpty()) {
+			String victim = null;
+			Usage best = null;
+			for (int i = 0; i < samples; i++) {
+				String name = pool.get(random.nextInt(pool.size()));
+				Usage usage = usages.get(name);
+				if (best == null || isBetterVictim(usage, best, now)) {
+					victim = name;
+					best = usage;
+				}
+			}
+			if (best.index >= 0) {
+				best.index = removeAt(names, best.index, false);
+			}
+			if (best.volatileIndex >= 0) {
+				best.volatileIndex = removeAt(volatileNames, best.volatileIndex, true);
+			}
+			freed += best.bytes;
+			victims.add(victim);
+		}
+		evictedKeys += victims.size();
+		return victims;
+	}
+
+	private boolean isBetterVictim(Usage usage, Usage best, long now) {
+		if (policy.isLfu()) {
+			int frequency = decayedFrequency(usage, now);
+			int bestFrequency = decayedFrequency(best, now);
+			if (frequency != bestFrequency) return frequency < bestFrequency;
+			return usage.lastAccess < best.lastAccess;
+		}
+		if (policy.isLru()) {
+			return usage.lastAccess < best.lastAccess;
+		}
+		return false;
+	}
+
+	private static int decayedFrequency(Usage usage, long now) {
+		long periods = (now - usage.frequencyTime) / LFU_DECAY_MILLIS;
+		if (periods <= 0) return usage.frequency;
+		return (int) Math.max(0, usage.frequency - periods);
+	}
+
+	/**
+	 * Removes the element at index moving the last one in its place.
+	 *
+	 * @return -1, the index of a removed element
+	 */
+	private int removeAt(List<String> list, int index, boolean volatileList) {
+		String last = list.removeLast();
+		if (index < list.size()) {
+			list.set(index, last);
+			Usage moved = usages.get(last);
+			if (volatileList) {
+				moved.volatileIndex = index;
+			}
+			else {
+				moved.index = index;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,218 @@
+package dev.dstruct.inmemory;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * Off-heap storage of the values of a store, out of reach of the garbage collector.
+ * <p>
+ * Memory is reserved in slabs of {@code SLAB_BYTES}, each one cut into chunks of a single size
+ * class, a power of two from 16 bytes to the slab size. A value takes the chunk of the smallest
+ * class it fits in, a freed chunk goes to the free list of its class and is reused before the
+ * slab is extended. A value larger than a slab gets a slab of its own, released when it is freed.
+ * <p>
+ * A value is referred to by a handle packing its length, its slab and its offset in the slab:
+ * {@code [27 bits length][20 bits slab][16 bits offset / 16]}, never negative. The empty value
+ * takes no memory.
+ * <p>
+ * The allocator belongs to the thread of its store. Other threads may {@link #read} the values
+ * of a snapshot while the store changes: the store {@link #retain retains} the allocator while
+ * the snapshot is read, and the chunks freed meanwhile are only reused once it is
+ * {@link #release released}.
+ */
+final class SlabAllocator implements AutoCloseable {
+
+	static final int SLAB_BYTES = 1 << 20;
+	static final int MAX_LENGTH = (1 << 27) - 1;
+	private static final int MIN_SHIFT = 4;
+	private static final int CLASSES = 20 - MIN_SHIFT + 1;
+	private static final int MAX_SLABS = 1 << 20;
+
+	private final Arena arena = Arena.ofShared();
+	/** Read by the snapshot threads, replaced when it grows */
+	private volatile MemorySegment[] slabs = new MemorySegment[16];
+	/** The arenas of the slabs of a single value, released when it is freed */
+	private Arena[] arenas = new Arena[16];
+	private int slabCount = 0;
+	private final int[] currentSlab = new int[CLASSES];
+	private final int[] nextOffset = new int[CLASSES];
+	private final long[][] freeChunks = new long[CLASSES][];
+	private final int[] freeCounts = new int[CLASSES];
+	private int[] freeSlabs = new int[16];
+	private int freeSlabCount = 0;
+	private long[] deferred = new long[16];
+	private int deferredCount = 0;
+	private int retained = 0;
+	private long reservedBytes = 0;
+	private boolean closed = false;
+
+	SlabAllocator() {
+		Arrays.fill(currentSlab, -1);
+	}
+
+	/**
+	 * Copies a value into a free chunk.
+	 *
+	 * @return the handle of the value
+	 */
+	long allocate(byte[] value) {
+		int length = value.length;
+		if (length == 0) return 0;
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("value too large for off-heap storage: " + length);
+		}
+		int slab;
+		int offset;
+		if (length > SLAB_BYTES) {
+			Arena own = Arena.ofShared();
+			slab = newSlab(own.allocate(length, 16), own);
+			offset = 0;
+		}
+		else {
+			int sizeClass = sizeClass(length);
+			if (freeCounts[sizeClass] > 0) {
+				long chunk = freeChunks[sizeClass][--freeCounts[sizeClass]];
+				slab = (int) (chunk >>> 16);
+				offset = (int) (chunk & 0xFFFF) << MIN_SHIFT;
+			}
+			else {
+				int chunkBytes = 1 << (sizeClass + MIN_SHIFT);
+				if (currentSlab[sizeClass] < 0 || nextOffset[sizeClass] + chunkBytes > SLAB_BYTES) {
+					currentSlab[sizeClass] = newSlab(arena.allocate(SLAB_BYTES, 16), null);
+					nextOffset[sizeClass] = 0;
+				}
+				slab = currentSlab[sizeClass];
+				offset = nextOffset[sizeClass];
+				nextOffset[sizeClass] += chunkBytes;
+			}
+		}
+		MemorySegment.copy(value, 0, slabs[slab], ValueLayout.JAVA_BYTE, offset, length);
+		return ((long) length << 36) | ((long) slab << 16) | (offset >>> MIN_SHIFT);
+	}
+
+	/**
+	 * Copies a value out of its chunk. It can be called by any thread for the values of a
+	 * retained snapshot.
+	 */
+	byte[] read(long handle) {
+		int length = length(handle);
+		byte[] value = new byte[length];
+		if (length == 0) return value;
+		MemorySegment slab = slabs[(int) (handle >>> 16) & (MAX_SLABS - 1)];
+		MemorySegment.copy(slab, ValueLayout.JAVA_BYTE, (handle & 0xFFFF) << MIN_SHIFT, value, 0, length);
+		return value;
+	}
+
+	static int length(long handle) {
+		return (int) (handle >>> 36);
+	}
+
+	/**
+	 * Frees the chunk of a value, not before the allocator is released if it is retained.
+	 */
+	void free(long handle) {
+		if (length(handle) == 0) return;
+		if (retained > 0) {
+			if (deferredCount == deferred.length) {
+				deferred = Arrays.copyOf(deferred, deferredCount * 2);
+			}
+			deferred[deferredCount++] = handle;
+			return;
+		}
+		int length = length(handle);
+		int slab = (int) (handle >>> 16) & (MAX_SLABS - 1);
+		if (length > SLAB_BYTES) {
+			arenas[slab].close();
+			arenas[slab] = null;
+			slabs[slab] = null;
+			reservedBytes -= length;
+			if (freeSlabCount == freeSlabs.length) {
+				freeSlabs = Arrays.copyOf(freeSlabs, freeSlabCount * 2);
+			}
+			freeSlabs[freeSlabCount++] = slab;
+			return;
+		}
+		int sizeClass = sizeClass(length);
+		long[] chunks = freeChunks[sizeClass];
+		if (chunks == null) {
+			chunks = freeChunks[sizeClass] = new long[16];
+		}
+		else if (freeCounts[sizeClass] == chunks.length) {
+			chunks = freeChunks[sizeClass] = Arrays.copyOf(chunks, chunks.length * 2);
+		}
+		chunks[freeCounts[sizeClass]++] = handle & 0xFFFFFFFFFL;
+	}
+
+	/**
+	 * Keeps the chunks freed from now on until {@link #release}, for a snapshot being read.
+	 */
+	void retain() {
+		retained++;
+	}
+
+	void release() {
+		if (--retained > 0) return;
+		for (int i = 0; i < deferredCount; i++) {
+			free(deferred[i]);
+		}
+		deferredCount = 0;
+		if (deferred.length > 16) {
+			deferred = new long[16];
+		}
+	}
+
+	/**
+	 * @return the bytes of the slabs allocated so far
+	 */
+	long reservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * Releases all the slabs, the handles must not be used anymore.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		for (int i = 0; i < slabCount; i++) {
+			if (arenas[i] != null) {
+				arenas[i].close();
+			}
+		}
+		arena.close();
+	}
+
+	private int newSlab(MemorySegment segment, Arena own) {
+		int slab;
+		if (freeSlabCount > 0) {
+			slab = freeSlabs[--freeSlabCount];
+		}
+		else {
+			if (slabCount == MAX_SLABS) {
+				if (own != null) own.close();
+				throw new IllegalStateException("off-heap storage full: " + MAX_SLABS + " slabs");
+			}
+			slab = slabCount++;
+			if (slab == slabs.length) {
+				arenas = Arrays.copyOf(arenas, slab * 2);
+				slabs = Arrays.copyOf(slabs, slab * 2);
+			}
+		}
+		arenas[slab] = own;
+		MemorySegment[] current = slabs;
+		current[slab] = segment;
+		// publishes the slab to the threads reading a snapshot
+		slabs = current;
+		reservedBytes += segment.byteSize();
+		return slab;
+	}
+
+	private static int sizeClass(int length) {
+		int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+}
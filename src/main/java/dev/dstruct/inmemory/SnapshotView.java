@@ -0,0 +1,153 @@
+package dev.dstruct.inmemory;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Command.Expire;
+import dev.dstruct.command.Command.MPut;
+import dev.dstruct.command.Command.RPush;
+import dev.dstruct.command.Command.SAdd;
+import dev.dstruct.command.Command.VSet;
+import dev.dstruct.inmemory.DataStructureVisitor.KeyType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import static dev.dstruct.util.Binaries.toBytes;
+
+/**
+ * Consistent view of a store at a point in time, serialized by a background thread while the
+ * event loop keeps changing the store.
+ * <p>
+ * Taking the view only copies the references of the names, of their structures and of their
+ * deadlines. Values are never changed in place, a VSET replaces the array, so the view can keep
+ * the old one. Off heap, the view keeps the handles of the values: the store doesn't reuse the
+ * memory of the values it frees until the view is finished. Maps, sets and deques are: the event loop calls {@link #beforeWrite} before the
+ * first change of a structure of the view, which copies it if the background thread hasn't
+ * serialized it yet. If the background thread is serializing it right then, the event loop waits
+ * for it, a wait bounded by the size of a single structure.
+ * <p>
+ * Every structure is claimed with a CAS on its state, by the background thread to serialize it
+ * or by the event loop to copy it, so they never touch the same structure at once.
+ */
+final class SnapshotView {
+
+	private static final int PENDING = 0;
+	private static final int READING = 1;
+	private static final int COPIED = 2;
+	private static final int DONE = 3;
+
+	private final String[] names;
+	private final KeyType[] types;
+	private final Object[] structures;
+	/** The handles of the values off heap */
+	private final long[] handles;
+	private final long[] deadlines;
+	private final AtomicIntegerArray states;
+	private final AtomicReferenceArray<Object> copies;
+	/** The allocator of the values off heap, null on the heap */
+	private final SlabAllocator slabs;
+	/** Index of the structures not serialized nor copied yet, used by the event loop only */
+	private final Map<String, Integer> writable = new HashMap<>();
+	private volatile boolean finished = false;
+
+	SnapshotView(Keyspace keyspace, SlabAllocator slabs) {
+		int size = keyspace.size();
+		this.slabs = slabs;
+		this.names = new String[size];
+		this.types = new KeyType[size];
+		this.structures = new Object[size];
+		this.handles = slabs == null ? null : new long[size];
+		this.deadlines = new long[size];
+		this.states = new AtomicIntegerArray(size);
+		this.copies = new AtomicReferenceArray<>(size);
+		int[] next = {0};
+		keyspace.forEach(entry -> {
+			int index = next[0]++;
+			names[index] = entry.name;
+			types[index] = entry.type;
+			structures[index] = entry.structure;
+			if (handles != null) {
+				handles[index] = entry.handle;
+			}
+			deadlines[index] = entry.deadline;
+			if (entry.type != KeyType.VALUE) {
+				writable.put(entry.name, index);
+			}
+		});
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Called by the event loop before changing a map, a set or a deque in place.
+	 */
+	void beforeWrite(String name, Object structure) {
+		if (writable.isEmpty()) return;
+		Integer index = writable.get(name);
+		// a structure created after the view is not in it
+		if (index == null || structures[index] != structure) return;
+		writable.remove(name);
+		if (states.get(index) == PENDING) {
+			copies.set(index, copyOf(types[index], structure));
+			if (states.compareAndSet(index, PENDING, COPIED)) return;
+			copies.set(index, null);
+		}
+		while (states.get(index) == READING) {
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Called by the background thread: emits the commands that rebuild the store as it was
+	 * when the view was taken. Structures left empty are not emitted.
+	 */
+	void emit(Consumer<Command> out) {
+		try {
+			for (int i = 0; i < names.length; i++) {
+				if (types[i] == KeyType.VALUE) {
+					byte[] value = slabs == null ? (byte[]) structures[i] : slabs.read(handles[i]);
+					out.accept(new VSet(names[i], value));
+				}
+				else if (states.compareAndSet(i, PENDING, READING)) {
+					try {
+						emit(names[i], types[i], structures[i], out);
+					}
+					finally {
+						states.set(i, DONE);
+					}
+				}
+				else {
+					emit(names[i], types[i], copies.get(i), out);
+					copies.set(i, null);
+				}
+				if (deadlines[i] != Keyspace.NO_DEADLINE) {
+					out.accept(new Expire(names[i], toBytes(deadlines[i])));
+				}
+			}
+		}
+		finally {
+			finished = true;
+		}
+	}
+
+	private static void emit(String name, KeyType type, Object structure, Consumer<Command> out) {
+		switch (type) {
+			case MAP -> ((KeyTable) structure).forEach((key, value) -> out.accept(new MPut(name, key, value)));
+			case SET -> ((KeyTable) structure).forEach((member, ignore) -> out.accept(new SAdd(name, member)));
+			case DEQUE -> ((ValueDeque) structure).forEach(value -> out.accept(new RPush(name, value)));
+			case VALUE -> {}
+		}
+	}
+
+	private static Object copyOf(KeyType type, Object structure) {
+		return switch (type) {
+			case MAP, SET -> ((KeyTable) structure).copy();
+			case DEQUE -> ((ValueDeque) structure).copy();
+			case VALUE -> structure;
+		};
+	}
+
+}
@@ -0,0 +1,109 @@
+package dev.dstruct.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Hashed timing wheel of the names with a deadline, used by the active expiry.
+ * <p>
+ * A name is scheduled in the slot of its deadline tick, modulo the number of slots.
+ * Advancing the wheel visits only the slots elapsed since the previous advance, so the cost
+ * of an expiry cycle depends on what is due, not on how many names have a deadline.
+ * <p>
+ * Entries are not removed when a deadline changes or is cleared: the current deadline is looked
+ * up when the slot is visited and stale entries are dropped then. Entries due in a later round
+ * of the wheel stay in their slot.
+ */
+final class TimerWheel {
+
+	static final long DEFAULT_TICK_MILLIS = 100;
+	static final int DEFAULT_SLOTS = 1024;
+
+	private final long tickMillis;
+	private final int mask;
+	private final List<String>[] slots;
+	private long cursor;
+
+	TimerWheel(long startMillis) {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_SLOTS, startMillis);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	TimerWheel(long tickMillis, int slots, long startMillis) {
+		if (slots < 1 || Integer.bitCount(slots) != 1) {
+			throw new IllegalArgumentException("slots must be a power of two");
+		}
+		this.tickMillis = tickMillis;
+		this.mask = slots - 1;
+		this.slots = new List[slots];
+		this.cursor = startMillis / tickMillis;
+	}
+
+	/**
+	 * Schedules a name. A deadline already passed goes to the next slot to visit.
+	 */
+	void schedule(String name, long deadline) {
+		long tick = Math.max(deadline / tickMillis, cursor);
+		int index = (int) tick & mask;
+		List<String> slot = slots[index];
+		if (slot == null) {
+			slot = slots[index] = new ArrayList<>();
+		}
+		slot.add(name);
+	}
+
+	/**
+	 * Visits the slots elapsed up to now and hands the names whose current deadline is due to
+	 * expired, at most limit of them. When the limit is reached the wheel stops in the middle
+	 * of the slot and goes on from there with the next advance.
+	 *
+	 * @param deadlineOf the current deadline of a name, null if it has none
+	 * @return the number of names handed to expired
+	 */
+	int advance(long now, int limit, Function<String, Long> deadlineOf, Consumer<String> expired) {
+		long target = now / tickMillis;
+		// a full rotation visits every slot, more would visit them again for nothing
+		long last = Math.min(target, cursor + mask);
+		int count = 0;
+		while (cursor <= last) {
+			int index = (int) cursor & mask;
+			List<String> slot = slots[index];
+			if (slot != null) {
+				int kept = 0;
+				int i = 0;
+				for (; i < slot.size() && count < limit; i++) {
+					String name = slot.get(i);
+					Long deadline = deadlineOf.apply(name);
+					if (deadline == null) {
+						continue;
+					}
+					if (deadline <= now) {
+						expired.accept(name);
+						count++;
+					}
+					else if (((int) (deadline / tickMillis) & mask) == index) {
+						slot.set(kept++, name);
+					}
+				}
+				// not visited because of the limit
+				for (; i < slot.size(); i++) {
+					slot.set(kept++, slot.get(i));
+				}
+				slot.subList(kept, slot.size()).clear();
+				if (count >= limit) {
+					return count;
+				}
+			}
+			if (cursor == target) {
+				// the current tick is not over, its slot is visited again with the next advance
+				return count;
+			}
+			cursor++;
+		}
+		cursor = target;
+		return count;
+	}
+
+}
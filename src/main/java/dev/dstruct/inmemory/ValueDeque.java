@@ -0,0 +1,174 @@
+package dev.dstruct.inmemory;
+
+import java.util.function.Consumer;
+
+/**
+ * Double ended queue of the values of a list: a circular array doubling when full, like
+ * ArrayDeque, with indexed access for LINDEX.
+ * <p>
+ * Values are in a {@code byte[][]}. Off heap, values are in a {@link SlabAllocator} and the
+ * deque keeps their handles in a {@code long[]}: they are copied out by the reads and freed when
+ * they are popped.
+ * <p>
+ * The deque is not thread safe.
+ */
+final class ValueDeque {
+
+	static final int INITIAL_CAPACITY = 32;
+
+	private byte[][] values;
+	/** Off heap only */
+	private final SlabAllocator slabs;
+	private long[] handles;
+	private int head;
+	private int size;
+
+	private ValueDeque(SlabAllocator slabs) {
+		this.slabs = slabs;
+		if (slabs == null) {
+			this.values = new byte[INITIAL_CAPACITY][];
+		}
+		else {
+			this.handles = new long[INITIAL_CAPACITY];
+		}
+	}
+
+	private ValueDeque(ValueDeque deque) {
+		this.slabs = deque.slabs;
+		this.values = deque.values == null ? null : deque.values.clone();
+		this.handles = deque.handles == null ? null : deque.handles.clone();
+		this.head = deque.head;
+		this.size = deque.size;
+	}
+
+	/**
+	 * @param slabs the allocator of the values, null to keep them on the heap
+	 */
+	static ValueDeque newDeque(SlabAllocator slabs) {
+		return new ValueDeque(slabs);
+	}
+
+	/**
+	 * A copy sharing the values, which are never changed in place. Off heap, the values of the
+	 * copy are freed with the ones of the deque: it can only be read while the allocator is
+	 * retained.
+	 */
+	ValueDeque copy() {
+		return new ValueDeque(this);
+	}
+
+	/**
+	 * Frees the values of a deque off heap, the deque must not be used anymore.
+	 */
+	void free() {
+		if (slabs == null) return;
+		for (int i = 0; i < size; i++) {
+			slabs.free(handles[index(i)]);
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void addFirst(byte[] value) {
+		grow();
+		head = (head - 1) & (capacity() - 1);
+		set(head, value);
+		size++;
+	}
+
+	void addLast(byte[] value) {
+		grow();
+		set(index(size), value);
+		size++;
+	}
+
+	/**
+	 * @return the first value, null if empty
+	 */
+	byte[] pollFirst() {
+		if (size == 0) return null;
+		byte[] value = take(head);
+		head = (head + 1) & (capacity() - 1);
+		size--;
+		return value;
+	}
+
+	/**
+	 * @return the last value, null if empty
+	 */
+	byte[] pollLast() {
+		if (size == 0) return null;
+		byte[] value = take(index(size - 1));
+		size--;
+		return value;
+	}
+
+	/**
+	 * @param index from 0, the first value, to size - 1, the last one
+	 */
+	byte[] get(int index) {
+		int slot = index(index);
+		return values != null ? values[slot] : slabs.read(handles[slot]);
+	}
+
+	void forEach(Consumer<byte[]> action) {
+		for (int i = 0; i < size; i++) {
+			action.accept(get(i));
+		}
+	}
+
+	private int capacity() {
+		return values != null ? values.length : handles.length;
+	}
+
+	private int index(int offset) {
+		return (head + offset) & (capacity() - 1);
+	}
+
+	private void set(int slot, byte[] value) {
+		if (values != null) {
+			values[slot] = value;
+		}
+		else {
+			handles[slot] = slabs.allocate(value);
+		}
+	}
+
+	private byte[] take(int slot) {
+		if (values != null) {
+			byte[] value = values[slot];
+			values[slot] = null;
+			return value;
+		}
+		byte[] value = slabs.read(handles[slot]);
+		slabs.free(handles[slot]);
+		return value;
+	}
+
+	private void grow() {
+		int capacity = capacity();
+		if (size < capacity) return;
+		// unwraps the values at the start of the new array
+		int first = capacity - head;
+		if (values != null) {
+			byte[][] grown = new byte[capacity * 2][];
+			System.arraycopy(values, head, grown, 0, first);
+			System.arraycopy(values, 0, grown, first, head);
+			values = grown;
+		}
+		else {
+			long[] grown = new long[capacity * 2];
+			System.arraycopy(handles, head, grown, 0, first);
+			System.arraycopy(handles, 0, grown, first, head);
+			handles = grown;
+		}
+		head = 0;
+	}
+
+}
@@ -3,6 +3,7 @@ package dev.dstruct.parser;
 import dev.dstruct.command.Command;
 import dev.dstruct.command.Command.Cast;
 import dev.dstruct.command.Command.Del;
+import dev.dstruct.command.Command.Expire;
 import dev.dstruct.command.Command.LIndex;
 import dev.dstruct.command.Command.LLen;
 import dev.dstruct.command.Command.LPop;
@@ -10,16 +11,19 @@ import dev.dstruct.command.Command.LPush;
 import dev.dstruct.command.Command.MDelete;
 import dev.dstruct.command.Command.MGet;
 import dev.dstruct.command.Command.MPut;
+import dev.dstruct.command.Command.Persist;
 import dev.dstruct.command.Command.Ping;
 import dev.dstruct.command.Command.RPop;
 import dev.dstruct.command.Command.RPush;
 import dev.dstruct.command.Command.SAdd;
 import dev.dstruct.command.Command.SMembers;
 import dev.dstruct.command.Command.SRem;
+import dev.dstruct.command.Command.Ttl;
 import dev.dstruct.command.Command.Type;
 import dev.dstruct.command.Command.VDelete;
 import dev.dstruct.command.Command.VGet;
 import dev.dstruct.command.Command.VSet;
+import dev.dstruct.command.Command.VSetEx;
 import dev.dstruct.command.CommandType;
 import dev.dstruct.util.Binaries;
 import java.nio.charset.StandardCharsets;
@@ -45,12 +49,14 @@ import java.util.Objects;
  * command        = command_name [ name ] { value }
  * value          = TEXT | typed_value
  * typed_value    = type_token TEXT
+ * seconds        = [ "INTEGER_TYPE" ] TEXT
  * type_token     = "STRING_TYPE" | "INTEGER_TYPE" | "BOOLEAN_TYPE" | "DOUBLE_TYPE"
  * </pre>
  *
  * <p><b>Example usage:</b>
  * <pre>
- * Scanner scanner = new Scanner(input);
+ * Scanner scanner = new Scanner();
+ * scanner.read(channel);
  * scanner.parse();
  * List&lt;Token&gt; tokens = scanner.getTokens();
  * Parser parser = new Parser(tokens);
@@ -58,6 +64,12 @@ import java.util.Objects;
  * List&lt;Command&gt; commands = parser.getCommands();
  * </pre>
  *
+ * <p>Expiring commands (EXPIRE name seconds, VSETEX name seconds value) are relative in the text
+ * syntax and become absolute deadlines, in epoch millis, when parsed.
+ *
+ * <p>{@link #next()} parses one line at a time instead, so a malformed line can be answered
+ * with an error while the following ones are still parsed.
+ *
  * @throws ParseException if the token stream doesn't conform to the grammar
  */
 public class Parser {
@@ -88,7 +100,39 @@ public class Parser {
 		return commands;
 	}
 
+	/**
+	 * Parses the next line, skipping empty ones.
+	 *
+	 * @return the command of the line, null if there are no more lines
+	 * @throws ParseException if the line is malformed, its tokens are skipped
+	 */
+	public Command next() {
+		consumeAll(TokenType.ENDLINE);
+		if (isAtEnd()) return null;
+		int size = commands.size();
+		Command command;
+		try {
+			line();
+			command = commands.removeLast();
+		}
+		catch (Exception e) {
+			while (commands.size() > size) commands.removeLast();
+			while (!isAtEnd() && !match(TokenType.ENDLINE)) tokens.pop();
+			consumeAll(TokenType.ENDLINE);
+			throw e instanceof ParseException parseException
+				? parseException
+				: new ParseException(e.getMessage());
+		}
+		if (command == null) {
+			throw new ParseException("command not supported");
+		}
+		return command;
+	}
+
 	private void line() {
+		if (match(TokenType.ERROR)) {
+			throw new ParseException(advance().text());
+		}
 		if (isTypeToken()) {
 			Token typeToken = advance();
 			consume(TokenType.OPEN_PARENTHESIS);
@@ -157,11 +201,52 @@ public class Parser {
 				case SMEMBERS -> smembers();
 				case CAST -> cast();
 				case PING -> ping();
+				case EXPIRE -> expire();
+				case TTL -> ttl();
+				case PERSIST -> persist();
+				case VSETEX -> vsetex();
 			};
 		}
 		throw new ParseException("command not found");
 	}
 
+	private Command expire() {
+		if (!match(TokenType.TEXT)) throw new ParseException("parse error");
+		Token name = advance();
+		return new Expire(name.text(), deadline(seconds()));
+	}
+
+	private Command ttl() {
+		if (!match(TokenType.TEXT)) throw new ParseException("parse error");
+		Token name = advance();
+		return new Ttl(name.text());
+	}
+
+	private Command persist() {
+		if (!match(TokenType.TEXT)) throw new ParseException("parse error");
+		Token name = advance();
+		return new Persist(name.text());
+	}
+
+	private Command vsetex() {
+		if (!match(TokenType.TEXT)) throw new ParseException("parse error");
+		Token name = advance();
+		long seconds = seconds();
+		if (seconds <= 0) throw new ParseException("invalid expire time");
+		byte[] value = value();
+		return new VSetEx(name.text(), value, deadline(seconds));
+	}
+
+	private long seconds() {
+		if (match(TokenType.INTEGER_TYPE)) advance();
+		if (!match(TokenType.TEXT)) throw new ParseException("parse error");
+		return Long.parseLong(advance().text());
+	}
+
+	private byte[] deadline(long seconds) {
+		return Binaries.toBytes(Math.addExact(System.currentTimeMillis(), Math.multiplyExact(seconds, 1000)));
+	}
+
 	private Command ping() {
 		if (match(TokenType.TEXT)) {
 			Token message = advance();
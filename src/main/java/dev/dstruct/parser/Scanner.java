@@ -6,18 +6,55 @@ import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Incremental scanner of the text protocol, one instance per connection.
+ * <p>
+ * Bytes are read from the channel into a buffer reused across reads. {@link #parse()} emits
+ * the tokens of the complete lines only: a line whose end has not arrived yet stays in the
+ * buffer and is scanned again, from its start, after the next read. So a command split across
+ * TCP segments is parsed once it is complete, and a read of 0 bytes is just nothing new.
+ * <p>
+ * Lexical errors are scoped to their line, which is emitted as a single {@link TokenType#ERROR}
+ * token followed by its end of line.
+ * <p>
+ * The buffer grows for a long line and shrinks back to its initial size once the bytes left
+ * after a parse fit in it, so a connection doesn't keep the memory of its longest line.
+ */
 public class Scanner {
 
-	private final ReadableByteChannel read;
-	private final ByteBuffer byteBuffer;
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	private final int bufferSize;
+	private final int maxLineLength;
+	private ByteBuffer byteBuffer;
 	private byte current = '\0';
 	private final List<Token> tokens = new ArrayList<>();
 	private int parenthesisCount = 0;
-	private boolean endOfStream = false;
+	/** Lexical error of the line being scanned, null if there is none */
+	private String lineError = null;
+	private boolean discardingLine = false;
+	private boolean lineTooLong = false;
+	private int scannedWithoutLineEnd = 0;
+
+	public Scanner() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
 
-	public Scanner(ReadableByteChannel read) {
-		this.read = read;
-		this.byteBuffer = ByteBuffer.allocate(8196).flip();
+	public Scanner(int bufferSize) {
+		this(bufferSize, Math.max(bufferSize, DEFAULT_MAX_LINE_LENGTH));
+	}
+
+	/**
+	 * @param maxLineLength longest line accepted, the buffer never grows over it
+	 */
+	public Scanner(int bufferSize, int maxLineLength) {
+		if (bufferSize < 1 || maxLineLength < 1) {
+			throw new IllegalArgumentException("bufferSize and maxLineLength must be greater than 0");
+		}
+		this.bufferSize = Math.min(bufferSize, maxLineLength);
+		this.maxLineLength = maxLineLength;
+		this.byteBuffer = ByteBuffer.allocate(this.bufferSize);
 	}
 
 	static final byte BOOLEAN_CHAR = '#';
@@ -25,11 +62,58 @@ public class Scanner {
 	static final byte DOUBLE_CHAR = ',';
 	static final byte STRING_CHAR = '+';
 
+	/**
+	 * Reads the available bytes after the ones kept by the previous parse.
+	 * A line that doesn't fit in the buffer makes it grow, up to {@code maxLineLength}:
+	 * beyond that the line is discarded and answered with an error.
+	 *
+	 * @return the number of bytes read, -1 at the end of the stream
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		if (!byteBuffer.hasRemaining()) {
+			if (byteBuffer.capacity() >= maxLineLength) {
+				byteBuffer.clear();
+				scannedWithoutLineEnd = 0;
+				discardingLine = true;
+				lineTooLong = true;
+			}
+			else {
+				int capacity = (int) Math.min(byteBuffer.capacity() * 2L, maxLineLength);
+				byteBuffer = ByteBuffer.allocate(capacity).put(byteBuffer.flip());
+			}
+		}
+		return channel.read(byteBuffer);
+	}
+
+	/**
+	 * Scans the complete lines read so far. The tokens of the previous call are discarded.
+	 */
 	public void parse() {
-		while (!isAtEnd()) {
+		tokens.clear();
+		byteBuffer.flip();
+		if (lineTooLong) {
+			tokens.add(new Token(TokenType.ERROR, "line too long"));
+			tokens.add(new Token(TokenType.ENDLINE, null));
+			lineTooLong = false;
+		}
+		if (discardingLine) {
+			discardLine();
+		}
+		if (!hasLineEnd()) {
+			// nothing to scan until the end of the line arrives
+			scannedWithoutLineEnd = byteBuffer.limit() - byteBuffer.position();
+			compact();
+			return;
+		}
+		scannedWithoutLineEnd = 0;
+		int lineStart = byteBuffer.position();
+		int lineTokens = tokens.size();
+		parenthesisCount = 0;
+		lineError = null;
+		while (byteBuffer.hasRemaining()) {
 			skipSpaces();
-			this.current = advance();
-			if (current == '\0') break;
+			if (!byteBuffer.hasRemaining()) break;
+			this.current = byteBuffer.get();
 
 			if (current == '(') {
 				parenthesisCount++;
@@ -40,7 +124,9 @@ public class Scanner {
 				tokens.add(new Token(TokenType.CLOSE_PARENTHESIS, null));
 			}
 			else if (current == '\r' || current == '\n') {
-				tokens.add(new Token(TokenType.ENDLINE, null));
+				endLine(lineTokens);
+				lineStart = byteBuffer.position();
+				lineTokens = tokens.size();
 				continue;
 			}
 			if (isTypeChar(this.current)) {
@@ -57,21 +143,73 @@ public class Scanner {
 			}
 		}
 
-		if (parenthesisCount > 0) {
-			throw new ParseException("missing closing parenthesis");
+		// The last line is not complete, it is scanned again with the next read
+		tokens.subList(lineTokens, tokens.size()).clear();
+		byteBuffer.position(lineStart);
+		compact();
+	}
+
+	/**
+	 * Moves the bytes left to the start of the buffer, into a buffer of the initial size
+	 * if it has grown and they fit in it.
+	 */
+	private void compact() {
+		if (byteBuffer.capacity() > bufferSize && byteBuffer.remaining() <= bufferSize) {
+			byteBuffer = ByteBuffer.allocate(bufferSize).put(byteBuffer);
 		}
-		else if (parenthesisCount < 0) {
-			throw new ParseException("too much closing parenthesis");
+		else {
+			byteBuffer.compact();
 		}
+	}
 
+	int capacity() {
+		return byteBuffer.capacity();
 	}
 
 	public List<Token> getTokens() {
 		return tokens;
 	}
 
+	private void endLine(int lineTokens) {
+		String error = lineError;
+		if (error == null && parenthesisCount > 0) {
+			error = "missing closing parenthesis";
+		}
+		else if (error == null && parenthesisCount < 0) {
+			error = "too much closing parenthesis";
+		}
+		if (error != null) {
+			tokens.subList(lineTokens, tokens.size()).clear();
+			tokens.add(new Token(TokenType.ERROR, error));
+		}
+		tokens.add(new Token(TokenType.ENDLINE, null));
+		parenthesisCount = 0;
+		lineError = null;
+	}
+
+	private boolean hasLineEnd() {
+		for (int i = byteBuffer.position() + scannedWithoutLineEnd; i < byteBuffer.limit(); i++) {
+			byte b = byteBuffer.get(i);
+			if (b == '\r' || b == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void discardLine() {
+		while (byteBuffer.hasRemaining()) {
+			byte b = byteBuffer.get(byteBuffer.position());
+			if (b == '\r' || b == '\n') {
+				discardingLine = false;
+				return;
+			}
+			byteBuffer.get();
+		}
+	}
+
 	private void skipSpaces() {
-		while (!isAtEnd() && isSpace(peek())) advance();
+		while (byteBuffer.hasRemaining() && isSpace(peek())) byteBuffer.get();
 	}
 
 	private void text() {
@@ -85,19 +223,29 @@ public class Scanner {
 		else {
 			sb.append((char) this.current);
 		}
-		while (!isAtEnd()) {
-			byte c = advance();
+		while (byteBuffer.hasRemaining()) {
+			byte c = byteBuffer.get();
 			if (quote != '\0') {
 				if (c == quote) {
 					quoteClosed = true;
 					break;
 				}
+				if (c == '\r' || c == '\n') {
+					// a quote doesn't span lines, the end of line is left to the scan loop
+					byteBuffer.position(byteBuffer.position() - 1);
+					break;
+				}
 			}
 			else if (parenthesisCount > 0 && c == ')') {
 				closeParenthesis = true;
 				break;
 			}
 			else {
+				if (c == '\r' || c == '\n') {
+					// left to the scan loop, it ends the line
+					byteBuffer.position(byteBuffer.position() - 1);
+					break;
+				}
 				if (Character.isWhitespace((char)c)) {
 					break;
 				}
@@ -105,7 +253,7 @@ public class Scanner {
 			sb.append((char)c);
 		}
 		if (quote != '\0' && !quoteClosed) {
-			throw new ParseException("missing closing quote: " + quote);
+			lineError = "missing closing quote";
 		}
 		tokens.add(new Token(TokenType.TEXT, sb.toString()));
 		if (parenthesisCount > 0 && closeParenthesis) {
@@ -129,50 +277,10 @@ public class Scanner {
 		return b == BOOLEAN_CHAR || b == INTEGER_CHAR || b == DOUBLE_CHAR || b == STRING_CHAR;
 	}
 
-	private boolean isAtEnd() {
-		return !ensureBuffer();
-	}
-
-	private byte advance() {
-		if (isAtEnd()) {
-			return '\0';
-		}
-		return byteBuffer.get();
-	}
-
 	private byte peek() {
-		if (isAtEnd()) {
-			return '\0';
-		}
 		return byteBuffer.get(byteBuffer.position());
 	}
 
-	private boolean ensureBuffer() {
-		if (byteBuffer.hasRemaining()) {
-			return true;
-		}
-
-		if (endOfStream) {
-			return false;
-		}
-
-		try {
-			byteBuffer.clear();
-			int bytesRead = read.read(byteBuffer);
-			byteBuffer.flip();
-
-			if (bytesRead == -1 || bytesRead == 0) {
-				endOfStream = true;
-				return false;
-			}
-
-			return byteBuffer.hasRemaining();
-		}
-		catch (IOException ioe) {
-			throw new ParseException(ioe.getMessage());
-		}
-	}
-
 	private boolean isSpace(byte b) {
 		return Character.isSpaceChar((char)b) || b == '\t';
 	}
@@ -8,5 +8,6 @@ public enum TokenType {
 	DOUBLE_TYPE,
 	ENDLINE,
 	OPEN_PARENTHESIS,
-	CLOSE_PARENTHESIS
+	CLOSE_PARENTHESIS,
+	ERROR
 }
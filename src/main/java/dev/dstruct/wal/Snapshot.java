@@ -0,0 +1,150 @@
+package dev.dstruct.wal;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Point in time image of the in-memory data, written by a checkpoint.
+ * <p>
+ * The file is {@code [int magic][int version][long wal segment][long wal position]} followed by
+ * the {@link WalRecord records} of the commands that rebuild the data, so it is loaded like the WAL
+ * (version 1 holds bare {@link Serde} records).
+ * The segment and the position are the end of the WAL the image covers: at startup only the
+ * commands logged after them are replayed.
+ * <p>
+ * It is written to a temporary file, synced, then renamed, so a crash leaves either the previous
+ * snapshot or the new one, never a partial one. The directory is synced after the rename, before
+ * the WAL deletes the segments the snapshot covers.
+ */
+final class Snapshot {
+
+	static final String FILE_NAME = "snapshot";
+
+	private static final int MAGIC = 0x44534E50;  // "DSNP" in hex
+	private static final int VERSION = 2;
+	private static final int HEADER_LENGTH = 2 * Integer.BYTES + 2 * Long.BYTES;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The WAL covered by a snapshot.
+	 */
+	record Position(long walSegment, long walPosition) {}
+
+	private Snapshot() {}
+
+	/**
+	 * Writes the snapshot of the data emitted by state, replacing the previous one.
+	 *
+	 * @param state emits the commands rebuilding the data to the given consumer
+	 */
+	static void write(Path directory, Position position, Consumer<Consumer<Command>> state) throws IOException {
+		Path file = directory.resolve(FILE_NAME);
+		Path temporary = directory.resolve(FILE_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(
+			temporary,
+			Set.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+		)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			CRC32C crc = new CRC32C();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(position.walSegment());
+			buffer.putLong(position.walPosition());
+			try {
+				state.accept(command -> {
+					int size = Serde.size(command);
+					if (size <= 0) return;
+					try {
+						int length = WalRecord.HEADER_LENGTH + size;
+						if (length > buffer.remaining()) {
+							writeFully(channel, buffer.flip());
+							buffer.clear();
+						}
+						if (length > buffer.capacity()) {
+							ByteBuffer record = ByteBuffer.allocate(length);
+							WalRecord.put(record, command, size, crc, 0);
+							writeFully(channel, record.flip());
+						}
+						else {
+							WalRecord.put(buffer, command, size, crc, 0);
+						}
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			writeFully(channel, buffer.flip());
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		WALStore.syncDirectory(directory);
+	}
+
+	/**
+	 * Loads the snapshot, if any, handing its commands to consumer.
+	 *
+	 * @return the WAL covered by the snapshot, null if there is no snapshot
+	 */
+	static Position read(Path directory, Consumer<Command> consumer) throws IOException {
+		Path file = directory.resolve(FILE_NAME);
+		if (Files.notExists(file)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			if (header.hasRemaining()) {
+				throw new IOException("Truncated snapshot header");
+			}
+			header.flip();
+			if (header.getInt() != MAGIC) {
+				throw new IOException("Invalid snapshot file format");
+			}
+			int version = header.getInt();
+			if (version != 1 && version != VERSION) {
+				throw new IOException("Unsupported snapshot version: " + version);
+			}
+			Position position = new Position(header.getLong(), header.getLong());
+			Command command;
+			if (version == 1) {
+				BufferedChannel bufferedChannel = new BufferedChannel(channel, BUFFER_SIZE);
+				while ((command = Serde.deserialize(bufferedChannel)) != null) {
+					consumer.accept(command);
+				}
+				return position;
+			}
+			try (WalRecord.Reader reader = new WalRecord.Reader(channel)) {
+				while ((command = reader.next()) != null) {
+					consumer.accept(command);
+				}
+				if (!reader.atEnd()) {
+					// written whole before being renamed, it can't be torn
+					throw new IOException("Snapshot corrupted at " + reader.position());
+				}
+			}
+			return position;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
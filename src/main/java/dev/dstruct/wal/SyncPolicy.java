@@ -8,7 +8,7 @@ public enum SyncPolicy {
 	ALWAYS,
 
 	/**
-	 * fsync every N writes or T seconds - balanced approach
+	 * fsync every N writes, and at most T milliseconds after the first unsynced write - balanced approach
 	 * Use for: most production workloads
 	 */
 	BATCHED,
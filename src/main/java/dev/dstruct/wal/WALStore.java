@@ -2,136 +2,1002 @@ package dev.dstruct.wal;
 
 import dev.dstruct.command.Command;
 import dev.dstruct.command.Serde;
+import dev.dstruct.logging.Log;
+import dev.dstruct.logging.LogFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
+/**
+ * Write-ahead log of the persisted commands, split into numbered segments of the data directory:
+ * {@code commands.<segment>}.
+ * <p>
+ * Every segment starts with {@code [int magic][int version][long segment]}, followed by the
+ * {@link WalRecord records} of the commands (segments of versions 1 and 2 hold bare {@link Serde}
+ * records, version 1 has no segment number, it is 0). Commands are appended to the last one,
+ * which is sealed and replaced by the next one when it grows over the segment size.
+ * The {@code commands.manifest} file holds the first and the last segment of the log, it is
+ * replaced atomically whenever they change.
+ * <p>
+ * Segments can be pre-allocated: a new segment is filled with zeros up to the segment size, so
+ * appending a record changes neither the size of the file nor its blocks and a sync flushes the
+ * data alone. The records of the last segment end at the first invalid one, the zeros included,
+ * a sealed segment ends with an explicit end marker. The files of the segments covered by a
+ * snapshot are kept as spares ({@code commands.spare.<segment>}) and reused for the next
+ * segments instead of being deleted and allocated again, their records are salted with the
+ * segment number, see {@link WalRecord#salt}, so those left by the previous segment are invalid.
+ * At startup, a pre-allocated last segment whose records are not followed by zeros only is sealed
+ * and a new one is started: a torn record may be followed by records of the same segment, which
+ * the next append could chain up to.
+ * <p>
+ * The event loops don't write the log: they queue their commands for a single writer thread,
+ * which appends everything queued meanwhile with one write and one sync, then tells each loop
+ * when its commands are durable, see {@link #whenDurable}. A slow disk delays the replies,
+ * not the execution of the commands.
+ * <p>
+ * A checkpoint first {@link #rotate rotates} the log, sealing the last segment even if it isn't
+ * full. Then {@link #writeSnapshot} writes a {@link Snapshot} of the data covering the sealed
+ * segments, in the background, and deletes them. At startup the snapshot is loaded and only the
+ * segments that follow it are replayed. A crash while appending can leave a torn record at the
+ * end of the last segment: replay stops at the last valid record and the segment is truncated there.
+ */
 public final class WALStore implements AutoCloseable {
 
+	public static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	private static final Log log = LogFactory.create(WALStore.class);
+	private static final String FILE_NAME = "commands";
+	private static final String MANIFEST_NAME = FILE_NAME + ".manifest";
 	private static final int MAGIC = 0x44535452;  // "DSTR" in hex
-	private static final int VERSION = 1;
+	private static final int VERSION = 4;
+	private static final int HEADER_LENGTH = 2 * Integer.BYTES + Long.BYTES;
+	private static final int MANIFEST_MAGIC = 0x44534D46;  // "DSMF" in hex
+	private static final int MANIFEST_VERSION = 1;
+	private static final String SPARE_NAME = FILE_NAME + ".spare.";
+	/** Files of deleted segments kept for the next ones */
+	private static final int MAX_SPARES = 4;
+	/** Bytes of records appended by a single write */
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+	/** Commands queued for the writer before the producers wait */
+	private static final int MAX_QUEUED = 1 << 16;
 
 	private final Path dstructPath;
 	private final SyncPolicy syncPolicy;
 	private final int batchSize;
 	private final long syncIntervalMs;
+	private final long segmentBytes;
+	private final boolean preallocate;
 	private FileChannel appendChannel;
-	private FileChannel readChannel;
+	private long firstSegment;
+	private long lastSegment;
+	private int lastVersion;
+	/** The last segment is pre-allocated and has a torn tail, it is sealed before appending */
+	private boolean tornTail;
+	/** Salt of the records of the last segment */
+	private int salt;
+	/** Size of the records of the last segment, written by the writer thread only */
+	private volatile long segmentSize;
+	/** Size of the records of the sealed segments not deleted yet, written holding the monitor */
+	private volatile long sealedSize;
+	private final NavigableMap<Long, Long> sealedSizes = new TreeMap<>();
 
 	private int writesSinceLastSync = 0;
-	private long lastSyncTime = System.currentTimeMillis();
+	private long firstUnsyncedNanos;
+	// written by the writer thread only, read without a lock by syncStats
+	private volatile long unsyncedBytes = 0;
+	private volatile long syncs = 0;
+	private volatile long syncNanos = 0;
+	private volatile long maxSyncNanos = 0;
+	/** Records are encoded in it, reused by every write, grown only for a larger record */
+	private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+	private final CRC32C crc = new CRC32C();
+
+	/** Guards the queue of the writer thread, the waiters and the tasks */
+	private final Object queueLock = new Object();
+	private List<Command> queue = new ArrayList<>();
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong(Waiter::sequence));
+	private final List<Runnable> tasks = new ArrayList<>();
+	private long appended = 0;
+	private boolean closed = false;
+	private volatile long durable = 0;
+	private volatile Throwable failure;
+	private Thread writer;
+
+	private record Waiter(long sequence, Consumer<Throwable> action) {}
 
 	public WALStore(Path dstructPath, SyncPolicy syncPolicy) {
 		this(dstructPath, syncPolicy, 0, 0);
 	}
 
 	public WALStore(Path dstructPath, SyncPolicy syncPolicy, int batchSize, long syncIntervalMs) {
+		this(dstructPath, syncPolicy, batchSize, syncIntervalMs, DEFAULT_SEGMENT_BYTES, false);
+	}
+
+	public WALStore(
+		Path dstructPath,
+		SyncPolicy syncPolicy,
+		int batchSize,
+		long syncIntervalMs,
+		long segmentBytes,
+		boolean preallocate
+	) {
 		this.dstructPath = dstructPath;
 		this.syncPolicy = syncPolicy;
 		this.batchSize = batchSize;
 		this.syncIntervalMs = syncIntervalMs;
+		this.segmentBytes = segmentBytes;
+		this.preallocate = preallocate;
 	}
 
-	public void save(Command command) {
-		try {
-			ByteBuffer byteBuffer = Serde.serialize(command);
-			if (byteBuffer != null) {
-				appendChannel.write(byteBuffer);
-				if (syncPolicy == SyncPolicy.ALWAYS) {
-					appendChannel.force(true);
+	/**
+	 * Queues a command for the writer thread, see {@link #save(Command[], int, int)}.
+	 *
+	 * @return the sequence of the command
+	 */
+	public long save(Command command) {
+		synchronized (queueLock) {
+			awaitRoom();
+			queue.add(command);
+			queueLock.notifyAll();
+			return ++appended;
+		}
+	}
+
+	/**
+	 * Queues the persisted commands of a batch for the writer thread, which appends them to the
+	 * log together with the commands queued meanwhile by the other event loops (group commit).
+	 * Null and read only commands are skipped. The caller doesn't wait for the write: it hands
+	 * the returned sequence to {@link #whenDurable}.
+	 *
+	 * @return the sequence of the last command queued so far
+	 */
+	public long save(Command[] commands, int offset, int length) {
+		synchronized (queueLock) {
+			awaitRoom();
+			for (int i = offset; i < offset + length; i++) {
+				Command command = commands[i];
+				if (command == null || !command.isPersisted()) continue;
+				queue.add(command);
+				appended++;
+			}
+			queueLock.notifyAll();
+			return appended;
+		}
+	}
+
+	/**
+	 * Runs action once the commands up to sequence are durable, with the error of the writer
+	 * if they never will be, null otherwise. Durable means what the {@link SyncPolicy} promises:
+	 * synced with {@code ALWAYS}, written to the file with {@code BATCHED} and {@code ASYNC}.
+	 * The action runs on the writer thread, unless the commands are durable already.
+	 */
+	public void whenDurable(long sequence, Consumer<Throwable> action) {
+		if (durable < sequence) {
+			synchronized (queueLock) {
+				if (durable < sequence && failure == null) {
+					waiters.add(new Waiter(sequence, action));
+					return;
 				}
-				else if (syncPolicy == SyncPolicy.BATCHED) {
-					if (++writesSinceLastSync >= batchSize) {
-						appendChannel.force(true);
-						writesSinceLastSync = 0;
-					}
-					else {
-						long now = System.currentTimeMillis();
-						if (now - lastSyncTime >= syncIntervalMs) {
-							appendChannel.force(true);
-							lastSyncTime = now;
-							writesSinceLastSync = 0;
+			}
+		}
+		action.accept(durable >= sequence ? null : failure);
+	}
+
+	/**
+	 * Holds a producer while the writer is too far behind, so the queue is bounded.
+	 */
+	private void awaitRoom() {
+		if (failure != null) {
+			throw new WalException("WAL writer failed", failure);
+		}
+		if (writer == null || closed) {
+			throw new WalException("WAL is not running");
+		}
+		while (queue.size() >= MAX_QUEUED && failure == null) {
+			try {
+				queueLock.wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WalException(e);
+			}
+		}
+	}
+
+	/**
+	 * Loop of the writer thread: takes every queued command at once, appends them, syncs
+	 * according to the {@link SyncPolicy}, then runs the waiters of the durable commands and
+	 * the tasks submitted meanwhile.
+	 * <p>
+	 * With {@code BATCHED} the loop also wakes up {@code syncIntervalMs} after the first unsynced
+	 * write to sync it, so the tail of a burst is not left unsynced until the next write.
+	 */
+	private void write() {
+		List<Command> group = new ArrayList<>();
+		List<Runnable> run = new ArrayList<>();
+		while (true) {
+			long sequence;
+			synchronized (queueLock) {
+				while (queue.isEmpty() && tasks.isEmpty() && !closed) {
+					long delay = syncDelayNanos();
+					if (delay <= 0) break;
+					try {
+						if (delay == Long.MAX_VALUE) {
+							queueLock.wait();
+						}
+						else {
+							queueLock.wait(TimeUnit.NANOSECONDS.toMillis(delay) + 1);
 						}
 					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (queue.isEmpty() && tasks.isEmpty() && closed) return;
+				List<Command> queued = queue;
+				queue = group;
+				group = queued;
+				sequence = appended;
+				run.addAll(tasks);
+				tasks.clear();
+				queueLock.notifyAll();
+			}
+			try {
+				if (!group.isEmpty()) {
+					write(group);
+					group.clear();
+				}
+				syncIfDue();
+			}
+			catch (Exception e) {
+				fail(e);
+				return;
+			}
+			durable = sequence;
+			runWaiters(sequence);
+			run.forEach(Runnable::run);
+			run.clear();
+		}
+	}
+
+	/**
+	 * Encodes the records of commands into the write buffer, with no allocation, and appends it
+	 * whenever it is full. It runs on the writer thread without the monitor, which is taken only
+	 * by a roll to update the manifest, so appends and syncs never block a reader of {@link #size}.
+	 */
+	private void write(List<Command> commands) throws IOException {
+		int records = 0;
+		long written = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			Command command = commands.get(i);
+			int size = Serde.size(command);
+			if (size <= 0) continue;
+			int length = WalRecord.HEADER_LENGTH + size;
+			if (length > writeBuffer.remaining()) {
+				written += append();
+			}
+			if (length > writeBuffer.capacity()) {
+				writeBuffer = ByteBuffer.allocateDirect(Math.max(length, 2 * writeBuffer.capacity()));
+			}
+			WalRecord.put(writeBuffer, command, size, crc, salt);
+			records++;
+		}
+		written += append();
+		if (records > 0) {
+			sync(records, written);
+		}
+	}
 
+	/**
+	 * Appends the records of the write buffer to the last segment, and rolls it once it is full.
+	 *
+	 * @return the bytes appended
+	 */
+	private long append() throws IOException {
+		writeBuffer.flip();
+		int bytes = writeBuffer.remaining();
+		while (writeBuffer.hasRemaining()) {
+			appendChannel.write(writeBuffer);
+		}
+		writeBuffer.clear();
+		segmentSize += bytes;
+		rollIfFull();
+		return bytes;
+	}
+
+	private void runWaiters(long sequence) {
+		List<Waiter> ready = new ArrayList<>();
+		synchronized (queueLock) {
+			while (!waiters.isEmpty() && waiters.peek().sequence() <= sequence) {
+				ready.add(waiters.poll());
+			}
+		}
+		for (Waiter waiter : ready) {
+			run(waiter, null);
+		}
+	}
+
+	private void fail(Throwable e) {
+		log.error(e);
+		List<Waiter> failed;
+		List<Runnable> skipped;
+		synchronized (queueLock) {
+			failure = e;
+			failed = new ArrayList<>(waiters);
+			waiters.clear();
+			skipped = new ArrayList<>(tasks);
+			tasks.clear();
+			queueLock.notifyAll();
+		}
+		for (Waiter waiter : failed) {
+			run(waiter, e);
+		}
+		// tasks fail themselves once the writer has failed
+		skipped.forEach(Runnable::run);
+	}
+
+	private static void run(Waiter waiter, Throwable e) {
+		try {
+			waiter.action().accept(e);
+		}
+		catch (Exception ex) {
+			log.error(ex);
+		}
+	}
+
+	/**
+	 * Runs task on the writer thread, after every command queued before it is written.
+	 */
+	private <T> T call(Callable<T> task) throws Exception {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		synchronized (queueLock) {
+			if (failure != null) {
+				throw new WalException("WAL writer failed", failure);
+			}
+			tasks.add(() -> {
+				if (failure != null) {
+					result.completeExceptionally(failure);
+					return;
+				}
+				try {
+					result.complete(task.call());
+				}
+				catch (Exception e) {
+					result.completeExceptionally(e);
 				}
+			});
+			queueLock.notifyAll();
+		}
+		try {
+			return result.get();
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception cause ? cause : e;
+		}
+	}
+
+	private void sync(int writes, long bytes) throws IOException {
+		if (unsyncedBytes == 0) {
+			firstUnsyncedNanos = System.nanoTime();
+		}
+		unsyncedBytes += bytes;
+		writesSinceLastSync += writes;
+		if (syncPolicy == SyncPolicy.ALWAYS
+			|| syncPolicy == SyncPolicy.BATCHED && (writesSinceLastSync >= batchSize || syncDelayNanos() <= 0)) {
+			force();
+		}
+	}
+
+	/**
+	 * {@code BATCHED} sync of the writes left unsynced once no other write comes,
+	 * run by the writer thread when {@link #syncDelayNanos} elapses.
+	 */
+	private void syncIfDue() throws IOException {
+		if (syncDelayNanos() <= 0) {
+			force();
+		}
+	}
+
+	/**
+	 * @return how long the writes left unsynced by {@code BATCHED} can wait for a sync,
+	 * {@link Long#MAX_VALUE} if there is nothing to wait for
+	 */
+	private long syncDelayNanos() {
+		if (syncPolicy != SyncPolicy.BATCHED || unsyncedBytes == 0) return Long.MAX_VALUE;
+		return firstUnsyncedNanos + TimeUnit.MILLISECONDS.toNanos(syncIntervalMs) - System.nanoTime();
+	}
+
+	/**
+	 * Syncs the data of the last segment without the metadata that reading it back doesn't need
+	 * (fdatasync). The size of the file is synced too when it grew, unless the segment is pre-allocated.
+	 */
+	private void force() throws IOException {
+		long start = System.nanoTime();
+		appendChannel.force(false);
+		long elapsed = System.nanoTime() - start;
+		syncs++;
+		syncNanos += elapsed;
+		maxSyncNanos = Math.max(maxSyncNanos, elapsed);
+		writesSinceLastSync = 0;
+		unsyncedBytes = 0;
+	}
+
+	/**
+	 * Sync metrics of the log.
+	 *
+	 * @param syncs number of syncs of the log
+	 * @param syncNanos total time spent syncing
+	 * @param maxSyncNanos longest sync
+	 * @param unsyncedBytes bytes written to the log and not synced yet
+	 */
+	public record SyncStats(long syncs, long syncNanos, long maxSyncNanos, long unsyncedBytes) {}
+
+	public SyncStats syncStats() {
+		return new SyncStats(syncs, syncNanos, maxSyncNanos, unsyncedBytes);
+	}
+
+	/**
+	 * Seals the last segment once it is full, a record is never split across segments.
+	 */
+	private void rollIfFull() throws IOException {
+		if (segmentSize >= segmentBytes) {
+			roll();
+		}
+	}
+
+	/**
+	 * Seals the last segment and appends to a new one. The end marker is synced before the
+	 * manifest names the new segment, which is created before, a crash in between leaves an
+	 * unused segment that is recycled at startup. Only the manifest and the sealed sizes are
+	 * updated holding the monitor, they are shared with a checkpoint.
+	 */
+	private void roll() throws IOException {
+		if (lastVersion == VERSION) {
+			// the write buffer is empty between two writes
+			WalRecord.putEnd(writeBuffer, salt);
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining()) {
+				appendChannel.write(writeBuffer);
 			}
+			writeBuffer.clear();
 		}
-		catch (Exception e) {
-			throw new WalException(e);
+		force();
+		long sealed = lastSegment;
+		long next = sealed + 1;
+		create(next);
+		synchronized (this) {
+			writeManifest(firstSegment, next);
+			sealedSize += segmentSize;
+			sealedSizes.put(sealed, segmentSize);
 		}
+		appendChannel.close();
+		lastVersion = VERSION;
+		open(next, HEADER_LENGTH);
 	}
 
 	public void start() throws IOException {
+		start(command -> {});
+	}
 
-		Path walfile = dstructPath.resolve("commands");
+	/**
+	 * Loads the snapshot, if any, then replays the segments that follow it. The next commands
+	 * are appended after the last valid one.
+	 */
+	public void start(Consumer<Command> commandConsumer) throws IOException {
+		recover();
+		Snapshot.Position snapshot = Snapshot.read(dstructPath, commandConsumer);
+		if (snapshot == null) {
+			replay(firstSegment, 0, commandConsumer);
+		}
+		else if (snapshot.walSegment() >= firstSegment) {
+			// crashed before the segments covered by the snapshot were deleted, they are skipped
+			replay(snapshot.walSegment(), snapshot.walPosition(), commandConsumer);
+		}
+		else if (snapshot.walSegment() + 1 == firstSegment) {
+			replay(firstSegment, 0, commandConsumer);
+		}
+		else {
+			throw new IOException("WAL segment " + (snapshot.walSegment() + 1) + " is missing");
+		}
+		sealedSize = 0;
+		for (long size : sealedSizes.values()) {
+			sealedSize += size;
+		}
+		open(lastSegment, segmentSize);
+		if (lastVersion < VERSION || tornTail) {
+			// records of another format, or a torn tail, can't be appended to
+			roll();
+			tornTail = false;
+		}
+		writer = Thread.ofPlatform().name("dstruct-wal-writer").start(this::write);
+	}
 
-		if (Files.notExists(walfile)) {
-			Files.createDirectories(walfile.getParent());
-			Files.createFile(walfile);
+	/**
+	 * Reads the manifest and drops the segments it doesn't name.
+	 */
+	private void recover() throws IOException {
+		Files.createDirectories(dstructPath);
+		migrate();
+		NavigableMap<Long, Path> segments = segments();
+		Path manifest = dstructPath.resolve(MANIFEST_NAME);
+		if (Files.exists(manifest)) {
+			readManifest(manifest);
+		}
+		else if (segments.isEmpty()) {
+			create(0);
+			writeManifest(0, 0);
+			segments.put(0L, segmentPath(0));
+		}
+		else {
+			writeManifest(segments.firstKey(), segments.lastKey());
+		}
+		sealedSizes.clear();
+		for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+			long number = segment.getKey();
+			if (number < firstSegment || number > lastSegment) {
+				// covered by a snapshot, or created by a roll the manifest doesn't know of
+				recycle(segment.getValue());
+			}
+			else if (number < lastSegment) {
+				// replaced by the size of the records if the segment is replayed
+				sealedSizes.put(number, Files.size(segment.getValue()));
+			}
+		}
+		for (long number = firstSegment; number <= lastSegment; number++) {
+			if (!segments.containsKey(number)) {
+				throw new IOException("WAL segment " + number + " is missing");
+			}
+		}
+	}
 
-			this.readChannel = FileChannel.open(walfile, Set.of(StandardOpenOption.READ));
-			this.appendChannel = FileChannel.open(walfile, Set.of(StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+	/**
+	 * Replays the log from the given position of a segment up to its end, which is the end of
+	 * the records of the last segment.
+	 *
+	 * @param segment the first segment to replay
+	 * @param position the position of the first command in that segment, 0 for the first one
+	 */
+	private void replay(long segment, long position, Consumer<Command> commandConsumer) throws IOException {
+		for (long number = segment; number <= lastSegment; number++) {
+			long end;
+			try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+				Header header = readHeader(channel);
+				if (header.segment() != number) {
+					throw new IOException("WAL segment " + number + " has a wrong header");
+				}
+				if (number == segment && position > 0) {
+					channel.position(position);
+				}
+				if (number == lastSegment) {
+					lastVersion = header.version();
+				}
+				end = replay(number, header.version(), channel, commandConsumer);
+			}
+			if (number == lastSegment) {
+				segmentSize = end;
+			}
+			else {
+				sealedSizes.put(number, end);
+			}
+		}
+	}
+
+	/**
+	 * @return the position following the last valid record
+	 */
+	private long replay(long segment, int version, FileChannel channel, Consumer<Command> commandConsumer) throws IOException {
+		Command command;
+		if (version < 3) {
+			BufferedChannel bufferedChannel = new BufferedChannel(channel, 8192);
+			while ((command = Serde.deserialize(bufferedChannel)) != null) {
+				commandConsumer.accept(command);
+			}
+			return channel.size();
+		}
+		boolean salted = version == VERSION;
+		long valid;
+		boolean zeroTail;
+		try (WalRecord.Reader reader = new WalRecord.Reader(channel, salted ? WalRecord.salt(segment) : 0)) {
+			while ((command = reader.next()) != null) {
+				commandConsumer.accept(command);
+			}
+			valid = reader.position();
+			if (reader.atEnd() || reader.sealed()) return valid;
+			zeroTail = reader.zeroTail();
+		}
+		if (segment != lastSegment) {
+			throw new IOException("WAL segment " + segment + " is corrupted at " + valid);
+		}
+		if (!salted || !preallocate) {
+			// unmapped first, a mapped file can't be truncated everywhere
+			truncate(segment, valid);
+		}
+		else if (!zeroTail) {
+			// records of this segment may follow a torn one, or one that never reached the disk:
+			// appending at valid could chain up to them, so the segment is sealed there instead, see start
+			log.warn("WAL segment " + segment + " may have a torn record at " + valid + ", sealed there");
+			tornTail = true;
+		}
+		// else the records are followed by the zeros of the pre-allocation
+		return valid;
+	}
+
+	/**
+	 * Drops the torn tail of the last segment, so the next commands are appended after the last valid one.
+	 */
+	private void truncate(long segment, long position) throws IOException {
+		log.warn("WAL segment " + segment + " has an invalid record at " + position + ", truncated there");
+		try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.WRITE)) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		segmentSize = position;
+	}
+
+	/**
+	 * Read without a lock, it may be a segment off while the writer thread rolls.
+	 *
+	 * @return the size in bytes of the log not covered by a snapshot
+	 */
+	public long size() {
+		return sealedSize + segmentSize;
+	}
+
+	/**
+	 * First step of a checkpoint: the last segment is sealed and commands are appended to a new one.
+	 * The sealed segments are kept until a snapshot covering them is written.
+	 * Nothing must be saved meanwhile when the snapshot is taken from the data: the caller stops
+	 * every writer. It isn't needed to {@link #read} the log up to the sealed segment.
+	 *
+	 * @return the sealed segment
+	 */
+	public long rotate() {
+		try {
+			return call(() -> {
+				long sealed = lastSegment;
+				roll();
+				return sealed;
+			});
+		}
+		catch (Exception e) {
+			throw new WalException("WAL rotation failed", e);
+		}
+	}
+
+	/**
+	 * Reads the log up to the end of a sealed segment: the snapshot, if any, then the segments
+	 * that follow it. It runs while commands are saved, but not with {@link #writeSnapshot}.
+	 *
+	 * @param segment the last segment to read, returned by {@link #rotate}
+	 */
+	public void read(long segment, Consumer<Command> commandConsumer) throws IOException {
+		long first;
+		synchronized (this) {
+			if (segment >= lastSegment) {
+				throw new IOException("WAL segment " + segment + " is not sealed");
+			}
+			first = firstSegment;
+		}
+		Snapshot.Position snapshot = Snapshot.read(dstructPath, commandConsumer);
+		long position = 0;
+		if (snapshot != null && snapshot.walSegment() >= first) {
+			first = snapshot.walSegment();
+			position = snapshot.walPosition();
+		}
+		for (long number = first; number <= segment; number++) {
+			try (FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+				Header header = readHeader(channel);
+				if (number == first && position > 0) {
+					channel.position(position);
+				}
+				replay(number, header.version(), channel, commandConsumer);
+			}
+		}
+	}
+
+	/**
+	 * Second step of a checkpoint: writes the snapshot of the data as it was when the log was
+	 * rotated, then deletes the segments it covers. It runs while commands are saved.
+	 *
+	 * @param segment the segment returned by {@link #rotate}
+	 * @param state emits the commands rebuilding the data to the given consumer
+	 */
+	public void writeSnapshot(long segment, Consumer<Consumer<Command>> state) {
+		try {
+			long end;
+			synchronized (this) {
+				end = sealedSizes.get(segment);
+			}
+			Snapshot.write(dstructPath, new Snapshot.Position(segment, end), state);
+			NavigableMap<Long, Path> covered;
+			synchronized (this) {
+				covered = segments().headMap(segment, true);
+				writeManifest(segment + 1, lastSegment);
+				for (long number : covered.keySet()) {
+					Long size = sealedSizes.remove(number);
+					if (size != null) {
+						sealedSize -= size;
+					}
+				}
+			}
+			for (Path file : covered.values()) {
+				recycle(file);
+			}
+		}
+		catch (Exception e) {
+			throw new WalException("WAL snapshot failed", e);
+		}
+	}
+
+	private Path segmentPath(long segment) {
+		return dstructPath.resolve(FILE_NAME + "." + segment);
+	}
+
+	/**
+	 * @return the segment files by number
+	 */
+	private NavigableMap<Long, Path> segments() throws IOException {
+		NavigableMap<Long, Path> segments = new TreeMap<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dstructPath, FILE_NAME + ".*")) {
+			for (Path file : files) {
+				String suffix = file.getFileName().toString().substring(FILE_NAME.length() + 1);
+				try {
+					segments.put(Long.parseLong(suffix), file);
+				}
+				catch (NumberFormatException ignore) {
+					// the manifest and the temporary files
+				}
+			}
+		}
+		return segments;
+	}
+
+	/**
+	 * Turns the single file log of the previous versions into segments: the current log
+	 * and a log left by a rotation that crashed become the segments of their generation.
+	 */
+	private void migrate() throws IOException {
+		for (String name : new String[] {FILE_NAME, FILE_NAME + ".tmp"}) {
+			Path file = dstructPath.resolve(name);
+			if (Files.notExists(file)) continue;
+			long generation;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				generation = readHeader(channel).segment();
+			}
+			if (Files.exists(segmentPath(generation))) {
+				Files.delete(file);
+			}
+			else {
+				Files.move(file, segmentPath(generation), StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+	}
+
+	private void readManifest(Path manifest) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(manifest));
+		if (buffer.remaining() != 2 * Integer.BYTES + 2 * Long.BYTES || buffer.getInt() != MANIFEST_MAGIC) {
+			throw new IOException("Invalid WAL manifest");
+		}
+		int version = buffer.getInt();
+		if (version != MANIFEST_VERSION) {
+			throw new IOException("Unsupported WAL manifest version: " + version);
+		}
+		firstSegment = buffer.getLong();
+		lastSegment = buffer.getLong();
+	}
 
-			ByteBuffer header = ByteBuffer.allocateDirect(8);
+	/**
+	 * Replaces the manifest: written to a temporary file, synced, then renamed. The directory is
+	 * synced too, the segments the previous manifest named may be deleted next.
+	 */
+	private void writeManifest(long first, long last) throws IOException {
+		Path manifest = dstructPath.resolve(MANIFEST_NAME);
+		Path temporary = dstructPath.resolve(MANIFEST_NAME + ".tmp");
+		try (FileChannel channel = FileChannel.open(
+			temporary,
+			Set.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+		)) {
+			ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + 2 * Long.BYTES);
+			buffer.putInt(MANIFEST_MAGIC);
+			buffer.putInt(MANIFEST_VERSION);
+			buffer.putLong(first);
+			buffer.putLong(last);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temporary, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		syncDirectory(dstructPath);
+		firstSegment = first;
+		lastSegment = last;
+	}
+
+	/**
+	 * Creates a segment, from a spare file if there is one. A pre-allocated segment is filled
+	 * with zeros up to the segment size, those of a spare file are left as they are. Its directory
+	 * entry is synced before the manifest names it.
+	 */
+	private void create(long number) throws IOException {
+		Path segment = segmentPath(number);
+		Path spare = preallocate ? spare() : null;
+		Set<StandardOpenOption> options;
+		if (spare == null) {
+			options = Set.of(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+		else {
+			Files.move(spare, segment, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			options = Set.of(StandardOpenOption.WRITE);
+		}
+		try (FileChannel channel = FileChannel.open(segment, options)) {
+			ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
 			header.putInt(MAGIC);
 			header.putInt(VERSION);
+			header.putLong(number);
 			header.flip();
-			appendChannel.write(header);
-			appendChannel.force(true);
-			readChannel.position(8);
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			if (preallocate) {
+				ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+				for (long position = Math.max(channel.size(), HEADER_LENGTH); position < segmentBytes; ) {
+					zeros.clear().limit((int) Math.min(zeros.capacity(), segmentBytes - position));
+					position += channel.write(zeros, position);
+				}
+			}
+			channel.force(true);
 		}
-		else {
-
-			this.readChannel = FileChannel.open(walfile, Set.of(StandardOpenOption.READ));
-			this.appendChannel = FileChannel.open(walfile, Set.of(StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+		syncDirectory(dstructPath);
+	}
 
-			ByteBuffer header = ByteBuffer.allocateDirect(8);
-			readChannel.read(header);
-			header.flip();
+	/**
+	 * Syncs the entries of a directory, so a file created or renamed in it survives a crash.
+	 * Directories can't be opened on Windows, where a rename is durable once it returns.
+	 */
+	static void syncDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		}
+		catch (IOException e) {
+			if (System.getProperty("os.name").startsWith("Windows")) return;
+			throw e;
+		}
+		try (channel) {
+			channel.force(true);
+		}
+	}
 
-			int magic = header.getInt();
-			int version = header.getInt();
+	/**
+	 * @return a spare file, null if there is none
+	 */
+	private Path spare() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dstructPath, SPARE_NAME + "*")) {
+			for (Path file : files) {
+				return file;
+			}
+		}
+		return null;
+	}
 
-			if (magic != MAGIC) {
-				throw new IOException("Invalid WAL file format");
+	/**
+	 * Keeps the file of a segment that is no longer part of the log as a spare when segments are
+	 * pre-allocated, up to {@link #MAX_SPARES} of them, deletes it otherwise.
+	 */
+	private void recycle(Path segment) throws IOException {
+		if (preallocate) {
+			int spares = 0;
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dstructPath, SPARE_NAME + "*")) {
+				for (Path ignored : files) {
+					spares++;
+				}
 			}
-			if (version != VERSION) {
-				throw new IOException("Unsupported WAL version: " + version);
+			if (spares < MAX_SPARES) {
+				String number = segment.getFileName().toString().substring(FILE_NAME.length() + 1);
+				Files.move(segment, dstructPath.resolve(SPARE_NAME + number), StandardCopyOption.ATOMIC_MOVE);
+				return;
 			}
 		}
+		Files.delete(segment);
 	}
 
-	public void start(Consumer<Command> commandConsumer) throws IOException {
-		start();
-		Command command;
-		BufferedChannel bufferedChannel = new BufferedChannel(readChannel, 8192);
-		while ((command = Serde.deserialize(bufferedChannel)) != null) {
-			commandConsumer.accept(command);
+	/**
+	 * Opens a segment to append after its first position bytes.
+	 */
+	private void open(long segment, long position) throws IOException {
+		this.appendChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.WRITE);
+		this.appendChannel.position(position);
+		this.segmentSize = position;
+		this.salt = WalRecord.salt(segment);
+	}
+
+	private record Header(int version, long segment) {}
+
+	/**
+	 * Reads the header of a segment, the channel is left on the first command.
+	 */
+	private static Header readHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocateDirect(HEADER_LENGTH);
+		header.limit(8);
+		channel.read(header);
+		header.flip();
+
+		int magic = header.getInt();
+		int version = header.getInt();
+
+		if (magic != MAGIC) {
+			throw new IOException("Invalid WAL file format");
 		}
+		if (version == 1) {
+			return new Header(version, 0);
+		}
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported WAL version: " + version);
+		}
+		header.clear().limit(Long.BYTES);
+		channel.read(header);
+		header.flip();
+		return new Header(version, header.getLong());
 	}
 
 	@Override
 	public void close() throws IOException {
+		if (writer != null) {
+			synchronized (queueLock) {
+				closed = true;
+				queueLock.notifyAll();
+			}
+			try {
+				writer.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		if (syncPolicy != SyncPolicy.ALWAYS) {
 			flush();
 		}
-		try (
-			var a1 = appendChannel;
-			var a2 = readChannel
-		) {}
+		if (appendChannel != null) {
+			appendChannel.close();
+		}
 	}
 
+	/**
+	 * Syncs the last segment, on the writer thread while it runs.
+	 */
 	public void flush() {
 		if (appendChannel == null) return;
 		try {
-			appendChannel.force(true);
-			writesSinceLastSync = 0;
+			if (writer != null && writer.isAlive()) {
+				call(() -> {
+					force();
+					return null;
+				});
+			}
+			else {
+				force();
+			}
 		} catch (Exception e) {
 			throw new WalException("WAL flush failed", e);
 		}
@@ -0,0 +1,174 @@
+package dev.dstruct.wal;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+/**
+ * Framing of the commands in the WAL segments and in the snapshots:
+ * {@code [int length][int crc32c][length bytes of Serde record]}.
+ * <p>
+ * The length lets a reader take a whole record at once, the CRC32C detects a
+ * record torn by a crash in the middle of a write, or corrupted on the disk.
+ * <p>
+ * The checksums of a WAL segment are salted with its number, see {@link #salt}: a pre-allocated
+ * segment file is reused once the segments it held are covered by a snapshot, and the records
+ * left in it by its previous segment must not be read as records of the new one. A sealed
+ * segment ends with an {@link #putEnd end marker}.
+ */
+final class WalRecord {
+
+	static final int HEADER_LENGTH = 2 * Integer.BYTES;
+	/** Length of the end marker of a sealed segment */
+	private static final int END = -1;
+
+	private WalRecord() {}
+
+	/**
+	 * @return the value the checksums of the records of a segment are xored with, it differs
+	 * between any two segments less than 2^32 apart
+	 */
+	static int salt(long segment) {
+		return (int) (segment + 1) * 0x9E3779B9;
+	}
+
+	/**
+	 * Appends the record of command to buffer, which must have room for
+	 * {@link #HEADER_LENGTH} + size bytes. Nothing is allocated.
+	 *
+	 * @param size the {@link Serde#size size} of the command
+	 */
+	static void put(ByteBuffer buffer, Command command, int size, CRC32C crc, int salt) {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		buffer.position(start + HEADER_LENGTH);
+		Serde.serialize(command, buffer);
+		buffer.limit(buffer.position()).position(start + HEADER_LENGTH);
+		crc.reset();
+		crc.update(buffer);
+		buffer.limit(limit);
+		buffer.putInt(start, size);
+		buffer.putInt(start + Integer.BYTES, (int) crc.getValue() ^ salt);
+	}
+
+	/**
+	 * Puts the marker following the last record of a sealed segment: {@code [int -1][int salt]}.
+	 */
+	static void putEnd(ByteBuffer header, int salt) {
+		header.putInt(END);
+		header.putInt(salt);
+	}
+
+	/**
+	 * Reads the records of a file from the current position of its channel up to the first one
+	 * that is incomplete or doesn't match its checksum.
+	 * <p>
+	 * The file is mapped in memory: records are checked and decoded in place, through a buffer
+	 * viewing the mapped bytes, with no copy into an intermediate array and no refill between two
+	 * records. Closing the reader unmaps it.
+	 */
+	static final class Reader implements AutoCloseable {
+
+		private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+		private final Arena arena = Arena.ofConfined();
+		private final MemorySegment file;
+		private final long start;
+		private final int salt;
+		private final CRC32C crc = new CRC32C();
+		private long offset = 0;
+		private boolean sealed = false;
+
+		Reader(FileChannel channel) throws IOException {
+			this(channel, 0);
+		}
+
+		Reader(FileChannel channel, int salt) throws IOException {
+			this.salt = salt;
+			this.start = channel.position();
+			long size = Math.max(0, channel.size() - start);
+			this.file = size == 0
+				? MemorySegment.NULL
+				: channel.map(FileChannel.MapMode.READ_ONLY, start, size, arena);
+		}
+
+		/**
+		 * @return the next command, null after the last valid record
+		 */
+		Command next() {
+			long remaining = file.byteSize() - offset;
+			if (remaining < HEADER_LENGTH) return null;
+			int length = file.get(INT, offset);
+			int checksum = file.get(INT, offset + Integer.BYTES);
+			if (length == END && checksum == salt) {
+				sealed = true;
+				return null;
+			}
+			if (length <= 0 || length > remaining - HEADER_LENGTH) return null;
+			ByteBuffer record = file.asSlice(offset + HEADER_LENGTH, length).asByteBuffer();
+			crc.reset();
+			crc.update(record);
+			if (((int) crc.getValue() ^ salt) != checksum) return null;
+			Command command;
+			try {
+				command = Serde.deserialize(record.rewind());
+			}
+			catch (RuntimeException e) {
+				return null;
+			}
+			if (command == null) return null;
+			offset += HEADER_LENGTH + length;
+			return command;
+		}
+
+		/**
+		 * @return the position in the file after the last valid record read
+		 */
+		long position() {
+			return start + offset;
+		}
+
+		/**
+		 * @return true if every record of the file was valid
+		 */
+		boolean atEnd() {
+			return offset == file.byteSize();
+		}
+
+		/**
+		 * @return true if the bytes following the last valid record are all zeros, nothing was
+		 * written there
+		 */
+		boolean zeroTail() {
+			long size = file.byteSize();
+			long i = offset;
+			for (; i + Long.BYTES <= size; i += Long.BYTES) {
+				if (file.get(ValueLayout.JAVA_LONG_UNALIGNED, i) != 0) return false;
+			}
+			for (; i < size; i++) {
+				if (file.get(ValueLayout.JAVA_BYTE, i) != 0) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return true if the last valid record is followed by the end marker
+		 */
+		boolean sealed() {
+			return sealed;
+		}
+
+		@Override
+		public void close() {
+			arena.close();
+		}
+	}
+
+}
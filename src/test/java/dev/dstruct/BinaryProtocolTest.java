@@ -0,0 +1,45 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryProtocolTest {
+
+    @Test
+    void testFrameLongerThanTheMaxIsRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        assertEquals(BinaryProtocol.MAX_FRAME_LENGTH, BinaryProtocol.frameLength(buffer.putInt(0, BinaryProtocol.MAX_FRAME_LENGTH)));
+        assertThrows(IllegalStateException.class, () -> BinaryProtocol.frameLength(buffer.putInt(0, BinaryProtocol.MAX_FRAME_LENGTH + 1)));
+    }
+
+    @Test
+    void testLengthOverTheFrameIsRejected() {
+        // a frame of a few bytes claiming a value of the max frame length
+        ByteBuffer frame = ByteBuffer.allocate(Short.BYTES + 2 * Integer.BYTES + 1)
+            .putShort(Serde.type(new Command.VSet(null, null)))
+            .putInt(1)
+            .put((byte) 'k')
+            .putInt(BinaryProtocol.MAX_FRAME_LENGTH)
+            .flip();
+        assertNull(BinaryProtocol.decode(frame));
+    }
+
+    @Test
+    void testBatchNestedOverTheMaxDepthIsRejected() {
+        Command command = new Command.VSet("key", toBytes("value"));
+        for (int depth = 0; depth < Serde.MAX_BATCH_DEPTH; depth++) {
+            command = new Command.Batch(List.of(command));
+        }
+        assertInstanceOf(Command.Batch.class, BinaryProtocol.decode(Serde.serialize(command)));
+
+        command = new Command.Batch(List.of(command));
+        assertNull(BinaryProtocol.decode(Serde.serialize(command)));
+    }
+
+}
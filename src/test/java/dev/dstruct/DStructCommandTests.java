@@ -3,11 +3,25 @@ package dev.dstruct;
 import dev.dstruct.Result.EmptyResult;
 import dev.dstruct.Result.Ok;
 import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import dev.dstruct.inmemory.EvictionPolicy;
 import dev.dstruct.util.Binaries;
+import dev.dstruct.wal.SyncPolicy;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
@@ -22,6 +36,7 @@ import static dev.dstruct.util.Binaries.toBytes;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -580,6 +595,8 @@ public class DStructCommandTests {
             
             Options options = new Options();
             options.port = port;
+            options.binaryPort = port + 1;
+            options.tcpReactorCount = 2;
             options.writeAHeadLogging = false;
 	        options.dataDirectory = tempDir.resolve("dstruct-test-" + System.currentTimeMillis()).toString();
             
@@ -812,10 +829,148 @@ public class DStructCommandTests {
             }
         }
 
+        @Test
+        @DisplayName("TCP: Pipelined commands are answered in order")
+        void testTcpPipelining() throws IOException {
+            try (Socket socket = new Socket("localhost", port)) {
+                StringBuilder commands = new StringBuilder();
+                for (int i = 0; i < 50; i++) {
+                    commands.append("VSET pipe").append(i).append(" value").append(i).append("\r\n");
+                    commands.append("VGET pipe").append(i).append("\r\n");
+                }
+                socket.getOutputStream().write(commands.toString().getBytes());
+                socket.getOutputStream().flush();
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                for (int i = 0; i < 50; i++) {
+                    assertEquals("OK", reader.readLine());
+                    assertEquals("value" + i, reader.readLine());
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("TCP: Commands split across writes are parsed once complete")
+        void testTcpSplitCommand() throws IOException, InterruptedException {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                for (String part : List.of("VSET spl", "it value", "\r", "\nVGET split\r\nPING\r\n")) {
+                    socket.getOutputStream().write(part.getBytes());
+                    socket.getOutputStream().flush();
+                    Thread.sleep(50);
+                }
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                assertEquals("OK", reader.readLine());
+                assertEquals("value", reader.readLine());
+                assertEquals("PONG", reader.readLine());
+            }
+        }
+
+        @Test
+        @DisplayName("TCP: A malformed line is answered in its place")
+        void testTcpMalformedLineInPipeline() throws IOException {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write("VSET ok 1\r\nNOPE x\r\nVGET ok\r\n".getBytes());
+                socket.getOutputStream().flush();
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                assertEquals("OK", reader.readLine());
+                assertEquals("command NOPE not supported", reader.readLine());
+                assertEquals("1", reader.readLine());
+            }
+        }
+
+        @Test
+        @DisplayName("TCP: Expiring commands take relative seconds")
+        void testTcpExpiration() throws IOException {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write((
+                    "VSETEX session 100 token\r\n" +
+                    ":(TTL session)\r\n" +
+                    "PERSIST session\r\n" +
+                    ":(TTL session)\r\n" +
+                    "EXPIRE session 0\r\n" +
+                    "VGET session\r\n"
+                ).getBytes());
+                socket.getOutputStream().flush();
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                assertEquals("OK", reader.readLine());
+                assertEquals("100", reader.readLine());
+                assertEquals("OK", reader.readLine());
+                assertEquals("-1", reader.readLine());
+                assertEquals("OK", reader.readLine());
+                assertEquals("NOTHING", reader.readLine());
+            }
+        }
+
+        @Test
+        @DisplayName("TCP: Large replies are written completely")
+        void testTcpLargeReply() throws IOException {
+            int members = 5000;
+            String padding = "m".repeat(200);
+            try (Socket socket = new Socket("localhost", port)) {
+                StringBuilder commands = new StringBuilder();
+                for (int i = 0; i < members; i++) {
+                    commands.append("SADD large ").append(padding).append(i).append("\r\n");
+                }
+                commands.append("SMEMBERS large\r\n");
+                socket.getOutputStream().write(commands.toString().getBytes());
+                socket.getOutputStream().flush();
+
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                for (int i = 0; i < members; i++) {
+                    assertEquals("OK", reader.readLine());
+                }
+                for (int i = 0; i < members; i++) {
+                    assertTrue(reader.readLine().startsWith(padding));
+                }
+                assertEquals("", reader.readLine());
+            }
+        }
+
+        @Test
+        @DisplayName("TCP: Binary frames are decoded and answered in order")
+        void testBinaryProtocol() throws IOException {
+            try (Socket socket = new Socket("localhost", port + 1)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                writeFrame(out, new Command.VSet("binary", toBytes("value")));
+                writeFrame(out, new Command.VGet("binary"));
+                writeFrame(out, new Command.MGet("missing", toBytes("key")));
+                // Unknown opcode, the connection keeps working
+                out.writeInt(Short.BYTES);
+                out.writeShort(999);
+                writeFrame(out, new Command.Ping("pong"));
+                out.flush();
+
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                assertArrayEquals(new byte[] {BinaryProtocol.OK}, readFrame(in));
+                assertArrayEquals(new byte[] {BinaryProtocol.VALUE, 'v', 'a', 'l', 'u', 'e'}, readFrame(in));
+                assertArrayEquals(new byte[] {BinaryProtocol.NOTHING}, readFrame(in));
+                assertEquals(BinaryProtocol.ERROR, readFrame(in)[0]);
+                assertArrayEquals(new byte[] {BinaryProtocol.VALUE, 'p', 'o', 'n', 'g'}, readFrame(in));
+            }
+        }
+
         // ========================================================================
         // HELPER METHODS
         // ========================================================================
 
+        private void writeFrame(DataOutputStream out, Command command) throws IOException {
+            ByteBuffer record = Serde.serialize(command);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private byte[] readFrame(DataInputStream in) throws IOException {
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            return frame;
+        }
+
         private void sendCommand(Socket socket, String command) throws IOException, InterruptedException {
             socket.getOutputStream().write(command.getBytes());
             socket.getOutputStream().flush();
@@ -923,4 +1078,861 @@ public class DStructCommandTests {
             assertEquals(new Ok("SET"), typeSet);
         }
     }
+
+    // ============================================================================
+    // SHARDED EVENT LOOP TESTS
+    // ============================================================================
+
+    @Nested
+    @DisplayName("Sharded Event Loop Tests")
+    class ShardedEventLoopTests {
+
+        private DStruct dstruct;
+
+        @BeforeEach
+        void setUp() throws Exception {
+            Options options = new Options();
+            options.port = 0;
+            options.writeAHeadLogging = false;
+            options.eventLoopCount = 4;
+            options.dataDirectory = tempDir.resolve("dstruct-test-" + System.currentTimeMillis()).toString();
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+        }
+
+        @AfterEach
+        void tearDown() {
+            dstruct.stop();
+        }
+
+        @Test
+        @DisplayName("Should keep per name ordering across shards")
+        void testPerNameOrdering() throws Exception {
+            for (int i = 0; i < 100; i++) {
+                dstruct.execute(new Command.RPush("list" + (i % 8), toBytes(i)));
+            }
+            for (int l = 0; l < 8; l++) {
+                Result len = dstruct.executeAsync(new Command.LLen("list" + l)).get(1, TimeUnit.SECONDS);
+                int size = Binaries.fromBytesToInt(((Ok) len).value());
+                int previous = -1;
+                for (int i = 0; i < size; i++) {
+                    Result r = dstruct.executeAsync(new Command.LPop("list" + l)).get(1, TimeUnit.SECONDS);
+                    int current = Binaries.fromBytesToInt(((Ok) r).value());
+                    assertTrue(current > previous);
+                    previous = current;
+                }
+            }
+        }
+
+        @Test
+        @DisplayName("BATCH: Should execute commands spanning shards in order")
+        void testCrossShardBatch() throws Exception {
+            List<Command> commands = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                commands.add(new Command.VSet("key" + i, toBytes("v" + i)));
+            }
+            commands.add(new Command.VGet("key3"));
+            Result result = dstruct.executeAsync(new Command.Batch(commands)).get(1, TimeUnit.SECONDS);
+
+            assertInstanceOf(Result.Results.class, result);
+            List<Result> results = ((Result.Results) result).results();
+            assertEquals(17, results.size());
+            assertEquals(new Ok("v3"), results.getLast());
+            for (int i = 0; i < 16; i++) {
+                Result r = dstruct.executeAsync(new Command.VGet("key" + i)).get(1, TimeUnit.SECONDS);
+                assertEquals(new Ok("v" + i), r);
+            }
+        }
+
+        @Test
+        @DisplayName("BATCH: Concurrent cross shard batches should not deadlock")
+        void testConcurrentCrossShardBatches() throws Exception {
+            List<CompletableFuture<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(dstruct.executeAsync(new Command.Batch(List.of(
+                    new Command.SAdd("a" + i, toBytes(i)),
+                    new Command.SAdd("b" + i, toBytes(i)),
+                    new Command.SAdd("c" + i, toBytes(i))
+                ))));
+            }
+            for (var future : futures) {
+                assertInstanceOf(Result.Results.class, future.get(5, TimeUnit.SECONDS));
+            }
+        }
+
+        @Test
+        @DisplayName("BATCH: Should reject a nested batch spanning shards")
+        void testNestedCrossShardBatch() throws Exception {
+            List<Command> commands = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                commands.add(new Command.VSet("key" + i, toBytes("v" + i)));
+            }
+            Result result = dstruct.executeAsync(new Command.Batch(List.of(
+                new Command.VSet("other", toBytes("v")),
+                new Command.Batch(commands)
+            ))).get(1, TimeUnit.SECONDS);
+
+            assertEquals(new Result.Error("nested batch spans more than one shard"), result);
+            assertEquals(Result.EmptyResult.NOTHING, dstruct.executeAsync(new Command.VGet("other")).get(1, TimeUnit.SECONDS));
+            for (int i = 0; i < 16; i++) {
+                assertEquals(Result.EmptyResult.NOTHING, dstruct.executeAsync(new Command.VGet("key" + i)).get(1, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    // ============================================================================
+    // EXPIRATION TESTS
+    // ============================================================================
+
+    @Nested
+    @DisplayName("Expiration Tests")
+    class ExpirationTests {
+
+        private Options options;
+        private DStruct dstruct;
+
+        @BeforeEach
+        void setUp() throws Exception {
+            options = new Options();
+            options.port = 0;
+            options.writeAHeadLogging = true;
+            options.syncPolicy = SyncPolicy.ALWAYS;
+            options.eventLoopCount = 2;
+            options.expireCycleMs = 20;
+            options.dataDirectory = tempDir.resolve("dstruct-expire-test-" + System.currentTimeMillis()).toString();
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+        }
+
+        @AfterEach
+        void tearDown() {
+            dstruct.stop();
+        }
+
+        private byte[] in(long millis) {
+            return toBytes(System.currentTimeMillis() + millis);
+        }
+
+        @Test
+        @DisplayName("EXPIRE/TTL/PERSIST: Should manage the deadline of a name")
+        void testExpireTtlPersist() throws Exception {
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.Expire("session", in(10_000))));
+            dstruct.executeSync(new Command.VSet("session", toBytes("token")));
+            assertEquals(new Ok(toBytes(-1)), dstruct.executeSync(new Command.Ttl("session")));
+
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.Expire("session", in(10_000))));
+            assertEquals(new Ok(toBytes(10)), dstruct.executeSync(new Command.Ttl("session")));
+
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.Persist("session")));
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.Persist("session")));
+            assertEquals(new Ok(toBytes(-1)), dstruct.executeSync(new Command.Ttl("session")));
+        }
+
+        @Test
+        @DisplayName("VSETEX: Should expire lazily on access")
+        void testLazyExpiry() throws Exception {
+            options.expireCycleMs = 60_000;
+            dstruct.stop();
+            dstruct = new DStruct(options);
+            dstruct.start();
+
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VSetEx("cache", toBytes("v"), in(50))));
+            assertEquals(new Ok("v"), dstruct.executeSync(new Command.VGet("cache")));
+            Thread.sleep(100);
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("cache")));
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.Type("cache")));
+        }
+
+        @Test
+        @DisplayName("EXPIRE: A deadline already passed deletes the name")
+        void testExpireInThePast() throws Exception {
+            dstruct.executeSync(new Command.SAdd("tags", toBytes("a")));
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.Expire("tags", in(-1))));
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.SMembers("tags")));
+        }
+
+        @Test
+        @DisplayName("VSETEX: A deadline already passed answers like the command")
+        void testVSetExInThePast() throws Exception {
+            dstruct.executeSync(new Command.MPut("map", toBytes("key"), toBytes("value")));
+            assertInstanceOf(Result.Error.class, dstruct.executeSync(new Command.VSetEx("map", toBytes("v"), in(-1))));
+            assertEquals(new Ok("value"), dstruct.executeSync(new Command.MGet("map", toBytes("key"))));
+
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VSetEx("absent", toBytes("v"), in(-1))));
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("absent")));
+        }
+
+        @Test
+        @DisplayName("VSET: Should clear the deadline")
+        void testVSetClearsDeadline() throws Exception {
+            dstruct.executeSync(new Command.VSetEx("value", toBytes("v1"), in(50)));
+            dstruct.executeSync(new Command.VSet("value", toBytes("v2")));
+            Thread.sleep(100);
+            assertEquals(new Ok("v2"), dstruct.executeSync(new Command.VGet("value")));
+        }
+
+        @Test
+        @DisplayName("Should replay expirations consistently")
+        void testReplayAfterExpiry() throws Exception {
+            dstruct.executeSync(new Command.SAdd("set", toBytes("old")));
+            dstruct.executeSync(new Command.Expire("set", in(50)));
+            dstruct.executeSync(new Command.VSetEx("long", toBytes("v"), in(60_000)));
+            // Left to the active expiry
+            Thread.sleep(200);
+            dstruct.executeSync(new Command.SAdd("set", toBytes("new")));
+
+            dstruct.stop();
+            dstruct = new DStruct(options);
+            dstruct.start();
+
+            Result members = dstruct.executeSync(new Command.SMembers("set"));
+            Result.Results results = assertInstanceOf(Result.Results.class, members);
+            // a 3 bytes member is stored as a 4 bytes key, it comes back as 4 bytes
+            assertEquals(1, results.results().size());
+            assertTrue(results.results().getFirst().toString().endsWith("new"));
+            assertEquals(new Ok(toBytes(-1)), dstruct.executeSync(new Command.Ttl("set")));
+            assertEquals(new Ok("v"), dstruct.executeSync(new Command.VGet("long")));
+        }
+    }
+
+    // ============================================================================
+    // EVICTION TESTS
+    // ============================================================================
+
+    @Nested
+    @DisplayName("Eviction Tests")
+    class EvictionTests {
+
+        private static final int VALUE_SIZE = 1024;
+
+        private Options options;
+        private DStruct dstruct;
+
+        private void start(long maxMemory, EvictionPolicy evictionPolicy) throws Exception {
+            options = new Options();
+            options.port = 0;
+            options.writeAHeadLogging = true;
+            options.syncPolicy = SyncPolicy.ALWAYS;
+            options.maxMemory = maxMemory;
+            options.evictionPolicy = evictionPolicy;
+            options.dataDirectory = tempDir.resolve("dstruct-eviction-test-" + System.currentTimeMillis()).toString();
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+        }
+
+        @AfterEach
+        void tearDown() {
+            dstruct.stop();
+        }
+
+        private byte[] value() {
+            return new byte[VALUE_SIZE];
+        }
+
+        @Test
+        @DisplayName("ALLKEYS_LRU: Should keep the memory within budget and the recently used names")
+        void testLruEviction() throws Exception {
+            start(64 * 1024, EvictionPolicy.ALLKEYS_LRU);
+            dstruct.executeSync(new Command.VSet("hot", value()));
+
+            for (int i = 0; i < 200; i++) {
+                assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VSet("v" + i, value())));
+                dstruct.executeSync(new Command.VGet("hot"));
+            }
+
+            assertTrue(dstruct.usedMemory() <= options.maxMemory);
+            assertTrue(dstruct.evictedKeys() > 0);
+            assertInstanceOf(Ok.class, dstruct.executeSync(new Command.VGet("hot")));
+            assertInstanceOf(Ok.class, dstruct.executeSync(new Command.VGet("v199")));
+        }
+
+        @Test
+        @DisplayName("NO_EVICTION: Should reject the writes over budget and accept deletes")
+        void testNoEviction() throws Exception {
+            start(16 * 1024, EvictionPolicy.NO_EVICTION);
+
+            int written = 0;
+            while (dstruct.executeSync(new Command.VSet("v" + written, value())) == EmptyResult.OK) {
+                written++;
+            }
+
+            assertTrue(written > 0);
+            assertEquals(
+                new Result.Error("out of memory"),
+                dstruct.executeSync(new Command.RPush("list", value()))
+            );
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("v" + written)));
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VDelete("v0")));
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VSet("v" + written, value())));
+            assertEquals(0, dstruct.evictedKeys());
+        }
+
+        @Test
+        @DisplayName("VOLATILE_LRU: Should evict only the names with a deadline")
+        void testVolatileEviction() throws Exception {
+            start(32 * 1024, EvictionPolicy.VOLATILE_LRU);
+            byte[] deadline = toBytes(System.currentTimeMillis() + 60_000);
+            for (int i = 0; i < 5; i++) {
+                dstruct.executeSync(new Command.VSet("persistent" + i, value()));
+            }
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.VSetEx("volatile" + i, value(), deadline)));
+            }
+
+            assertTrue(dstruct.evictedKeys() > 0);
+            for (int i = 0; i < 5; i++) {
+                assertInstanceOf(Ok.class, dstruct.executeSync(new Command.VGet("persistent" + i)));
+            }
+        }
+
+        @Test
+        @DisplayName("Replay: Should restore the state left by the evictions")
+        void testReplayAfterEviction() throws Exception {
+            start(32 * 1024, EvictionPolicy.ALLKEYS_RANDOM);
+            for (int i = 0; i < 100; i++) {
+                dstruct.executeSync(new Command.SAdd("set" + (i % 10), toBytes("member" + i)));
+                dstruct.executeSync(new Command.VSet("v" + i, value()));
+            }
+            long usedMemory = dstruct.usedMemory();
+
+            dstruct.stop();
+            dstruct = new DStruct(options);
+            dstruct.start();
+
+            assertEquals(usedMemory, dstruct.usedMemory());
+            assertInstanceOf(Ok.class, dstruct.executeSync(new Command.VGet("v99")));
+        }
+    }
+
+    // ============================================================================
+    // WAL TESTS
+    // ============================================================================
+
+    @Nested
+    @DisplayName("WAL Tests")
+    class WalTests {
+
+        private Options newOptions(int eventLoopCount) {
+            Options options = new Options();
+            options.port = 0;
+            options.writeAHeadLogging = true;
+            options.syncPolicy = SyncPolicy.ALWAYS;
+            options.eventLoopCount = eventLoopCount;
+            options.dataDirectory = tempDir.resolve("dstruct-wal-test").toString();
+            return options;
+        }
+
+        private DStruct restart(DStruct dstruct, Options options) throws Exception {
+            dstruct.stop();
+            DStruct restarted = new DStruct(options);
+            restarted.start();
+            return restarted;
+        }
+
+        @Test
+        @DisplayName("Should restore state after restart")
+        void testReplay() throws Exception {
+            Options options = newOptions(1);
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+
+            List<CompletableFuture<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                futures.add(dstruct.executeAsync(new Command.MPut("map", toBytes(i), toBytes("v" + i))));
+            }
+            futures.add(dstruct.executeAsync(new Command.VSet("value", toBytes("last"))));
+            futures.add(dstruct.executeAsync(new Command.MDelete("map", toBytes(0))));
+            for (CompletableFuture<Result> future : futures) {
+                assertEquals(EmptyResult.OK, future.get(5, TimeUnit.SECONDS));
+            }
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.MGet("map", toBytes(0))));
+                assertEquals(new Ok("v499"), dstruct.executeSync(new Command.MGet("map", toBytes(499))));
+                assertEquals(new Ok("last"), dstruct.executeSync(new Command.VGet("value")));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should restore cross shard batches in execution order")
+        void testShardedReplay() throws Exception {
+            Options options = newOptions(4);
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+
+            for (int i = 0; i < 50; i++) {
+                dstruct.execute(new Command.VSet("key" + (i % 5), toBytes("single" + i)));
+                dstruct.execute(new Command.Batch(List.of(
+                    new Command.VSet("key" + (i % 5), toBytes("batch" + i)),
+                    new Command.VSet("other" + i, toBytes("batch" + i))
+                )));
+            }
+            dstruct.executeSync(new Command.Ping(null));
+            Result[] expected = new Result[5];
+            for (int k = 0; k < 5; k++) {
+                expected[k] = dstruct.executeSync(new Command.VGet("key" + k));
+            }
+
+            dstruct = restart(dstruct, options);
+            try {
+                for (int k = 0; k < 5; k++) {
+                    assertEquals(expected[k], dstruct.executeSync(new Command.VGet("key" + k)));
+                }
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should restore every command of a batch")
+        void testBatchReplay() throws Exception {
+            Options options = newOptions(4);
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            for (int i = 0; i < 20; i++) {
+                dstruct.executeSync(new Command.Batch(List.of(
+                    new Command.VSet("key" + i, toBytes("first" + i)),
+                    new Command.VGet("key" + i),
+                    new Command.RPush("list" + i, toBytes("second" + i)),
+                    new Command.SAdd("set" + i, toBytes(i))
+                )));
+            }
+
+            dstruct = restart(dstruct, options);
+            try {
+                for (int i = 0; i < 20; i++) {
+                    assertEquals(new Ok("first" + i), dstruct.executeSync(new Command.VGet("key" + i)));
+                    assertEquals(new Ok("second" + i), dstruct.executeSync(new Command.LPop("list" + i)));
+                    assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.SRem("set" + i, toBytes(i))));
+                }
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should restore none of the commands of a torn batch")
+        void testTornBatch() throws Exception {
+            Options options = newOptions(1);
+            // the size of the segments is the size of their records
+            options.walPreallocate = false;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            dstruct.executeSync(new Command.VSet("before", toBytes("value")));
+            dstruct.executeSync(new Command.Batch(List.of(
+                new Command.VSet("first", toBytes("value")),
+                new Command.VSet("second", toBytes("value"))
+            )));
+            dstruct.stop();
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(Files.size(segment) - 3);
+            }
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            try {
+                assertEquals(new Ok("value"), dstruct.executeSync(new Command.VGet("before")));
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("first")));
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("second")));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        private void writeData(DStruct dstruct, String suffix) throws Exception {
+            dstruct.executeSync(new Command.VSet("value" + suffix, toBytes("v")));
+            dstruct.executeSync(new Command.MPut("map" + suffix, toBytes("key"), toBytes("value")));
+            dstruct.executeSync(new Command.SAdd("set" + suffix, toBytes(7)));
+            dstruct.executeSync(new Command.RPush("list" + suffix, toBytes("first")));
+            dstruct.executeSync(new Command.RPush("list" + suffix, toBytes("second")));
+            dstruct.executeSync(new Command.Expire("value" + suffix, toBytes(System.currentTimeMillis() + 60_000)));
+        }
+
+        private void assertData(DStruct dstruct, String suffix) throws Exception {
+            assertEquals(new Ok("v"), dstruct.executeSync(new Command.VGet("value" + suffix)));
+            assertEquals(new Ok(toBytes(60)), dstruct.executeSync(new Command.Ttl("value" + suffix)));
+            assertEquals(new Ok("value"), dstruct.executeSync(new Command.MGet("map" + suffix, toBytes("key"))));
+            assertEquals(EmptyResult.OK, dstruct.executeSync(new Command.SRem("set" + suffix, toBytes(7))));
+            assertEquals(new Ok(toBytes(2)), dstruct.executeSync(new Command.LLen("list" + suffix)));
+            assertEquals(new Ok("first"), dstruct.executeSync(new Command.LIndex("list" + suffix, toBytes(0))));
+        }
+
+        @Test
+        @DisplayName("Checkpoint: Should restore the snapshot and the WAL tail")
+        void testCheckpoint() throws Exception {
+            Options options = newOptions(2);
+            // the size of the segments is the size of their records
+            options.walPreallocate = false;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+
+            writeData(dstruct, "");
+            assertEquals(EmptyResult.OK, dstruct.checkpoint().get(5, TimeUnit.SECONDS));
+            assertFalse(Files.exists(Path.of(options.dataDirectory, "commands.0")));
+            assertEquals(16, Files.size(Path.of(options.dataDirectory, "commands.1")));
+            writeData(dstruct, "-tail");
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertData(dstruct, "");
+                assertData(dstruct, "-tail");
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Checkpoint: Should snapshot and replay the values kept off heap")
+        void testOffHeapCheckpoint() throws Exception {
+            Options options = newOptions(2);
+            options.storeOffHeap = true;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+
+            writeData(dstruct, "");
+            assertEquals(EmptyResult.OK, dstruct.checkpoint().get(5, TimeUnit.SECONDS));
+            writeData(dstruct, "-tail");
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertData(dstruct, "");
+                assertData(dstruct, "-tail");
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Checkpoint: Should skip the commands covered by the snapshot if the WAL was not truncated")
+        void testCrashBeforeWalTruncation() throws Exception {
+            Options options = newOptions(1);
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            Path manifest = Path.of(options.dataDirectory, "commands.manifest");
+            Path copy = tempDir.resolve("commands.copy");
+            Path manifestCopy = tempDir.resolve("manifest.copy");
+            writeData(dstruct, "");
+            dstruct.stop();
+            Files.copy(segment, copy);
+            Files.copy(manifest, manifestCopy);
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            assertEquals(EmptyResult.OK, dstruct.checkpoint().get(5, TimeUnit.SECONDS));
+            dstruct.stop();
+            // as if the process died between the snapshot and the deletion of the segment it covers
+            Files.move(copy, segment, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(manifestCopy, manifest, StandardCopyOption.REPLACE_EXISTING);
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            try {
+                assertData(dstruct, "");
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should reply to a write once it is in the WAL")
+        void testReplyAfterDurableWrite() throws Exception {
+            Options options = newOptions(2);
+            // the size of the segments is the size of their records
+            options.walPreallocate = false;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            try {
+                long size = Files.size(segment);
+                List<CompletableFuture<Long>> sizes = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    sizes.add(dstruct.executeAsync(new Command.VSet("key" + i, toBytes("value"))).thenApply(result -> {
+                        try {
+                            return Files.size(segment);
+                        }
+                        catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }));
+                }
+                for (CompletableFuture<Long> written : sizes) {
+                    assertTrue(written.get(5, TimeUnit.SECONDS) > size);
+                }
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("BATCHED: Should sync the tail of a burst within the sync interval")
+        void testBatchedSyncInterval() throws Exception {
+            Options options = newOptions(1);
+            options.syncPolicy = SyncPolicy.BATCHED;
+            options.batchSize = 1000;
+            options.syncIntervalMs = 50;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            try {
+                long syncs = dstruct.walSyncStats().syncs();
+                dstruct.executeSync(new Command.VSet("key", toBytes("value")));
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (dstruct.walSyncStats().unsyncedBytes() > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, dstruct.walSyncStats().unsyncedBytes());
+                assertEquals(syncs + 1, dstruct.walSyncStats().syncs());
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should truncate a torn record at the end of the WAL")
+        void testTornWrite() throws Exception {
+            Options options = newOptions(1);
+            // the size of the segments is the size of their records
+            options.walPreallocate = false;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            writeData(dstruct, "");
+            dstruct.executeSync(new Command.VSet("torn", toBytes("value")));
+            dstruct.stop();
+            // as if the process died while appending the last record
+            long size = Files.size(segment);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(size - 3);
+            }
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            assertData(dstruct, "");
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("torn")));
+            writeData(dstruct, "-after");
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertEquals(new Ok("v"), dstruct.executeSync(new Command.VGet("value")));
+                assertData(dstruct, "-after");
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should stop the replay at a record that doesn't match its checksum")
+        void testCorruptedRecord() throws Exception {
+            Options options = newOptions(1);
+            // the size of the segments is the size of their records
+            options.walPreallocate = false;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            writeData(dstruct, "");
+            long size = Files.size(segment);
+            dstruct.executeSync(new Command.VSet("corrupted", toBytes("value")));
+            dstruct.stop();
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {'X'}), Files.size(segment) - 1);
+            }
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            try {
+                assertEquals(size, Files.size(segment));
+                assertData(dstruct, "");
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("corrupted")));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should not append after a torn record of a pre-allocated segment")
+        void testTornRecordOfPreallocatedSegment() throws Exception {
+            Options options = newOptions(1);
+            options.walPreallocate = true;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path segment = Path.of(options.dataDirectory, "commands.0");
+            Command.VSet before = new Command.VSet("before", toBytes("value"));
+            Command.VSet torn = new Command.VSet("torn", toBytes("value"));
+            dstruct.executeSync(before);
+            dstruct.executeSync(torn);
+            dstruct.executeSync(new Command.VSet("phantom", toBytes("value")));
+            dstruct.stop();
+            // the torn record is followed by a valid one, as if it reached the disk first
+            long tornEnd = 2 * Integer.BYTES + Long.BYTES + 2L * Integer.BYTES + Serde.size(before)
+                + 2L * Integer.BYTES + Serde.size(torn);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {'X'}), tornEnd - 1);
+            }
+
+            dstruct = new DStruct(options);
+            dstruct.start();
+            assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("phantom")));
+            // a record of the length of the torn one would be followed by the valid one
+            dstruct.executeSync(new Command.VSet("last", toBytes("value")));
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertEquals(new Ok("value"), dstruct.executeSync(new Command.VGet("before")));
+                assertEquals(new Ok("value"), dstruct.executeSync(new Command.VGet("last")));
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("torn")));
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("phantom")));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Segments: Should roll the WAL into segments and replay them in order")
+        void testSegments() throws Exception {
+            Options options = newOptions(1);
+            options.walSegmentBytes = 256;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            for (int i = 0; i < 50; i++) {
+                dstruct.executeSync(new Command.VSet("key" + (i % 5), toBytes("value" + i)));
+            }
+            assertTrue(Files.exists(Path.of(options.dataDirectory, "commands.3")));
+
+            dstruct = restart(dstruct, options);
+            try {
+                for (int k = 0; k < 5; k++) {
+                    assertEquals(new Ok("value" + (45 + k)), dstruct.executeSync(new Command.VGet("key" + k)));
+                }
+                assertEquals(EmptyResult.OK, dstruct.checkpoint().get(5, TimeUnit.SECONDS));
+                assertFalse(Files.exists(Path.of(options.dataDirectory, "commands.0")));
+                assertFalse(Files.exists(Path.of(options.dataDirectory, "commands.3")));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Should pre-allocate the segments and reuse the files of those covered by a snapshot")
+        void testPreallocatedSegments() throws Exception {
+            Options options = newOptions(1);
+            options.walSegmentBytes = 256;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path directory = Path.of(options.dataDirectory);
+            assertEquals(256, Files.size(directory.resolve("commands.0")));
+            for (int i = 0; i < 50; i++) {
+                dstruct.executeSync(new Command.VSet("key" + (i % 5), toBytes("v" + (100 + i))));
+            }
+            assertEquals(EmptyResult.OK, dstruct.checkpoint().get(5, TimeUnit.SECONDS));
+            assertEquals(4, spares(directory));
+
+            dstruct = restart(dstruct, options);
+            try {
+                // records as long as the older ones, written over them in the reused files
+                for (int i = 0; i < 10; i++) {
+                    dstruct.executeSync(new Command.VSet("new" + (i % 5), toBytes("v" + (200 + i))));
+                }
+                assertTrue(spares(directory) < 4);
+
+                dstruct = restart(dstruct, options);
+                for (int k = 0; k < 5; k++) {
+                    assertEquals(new Ok("v" + (145 + k)), dstruct.executeSync(new Command.VGet("key" + k)));
+                    assertEquals(new Ok("v" + (205 + k)), dstruct.executeSync(new Command.VGet("new" + k)));
+                }
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        private long spares(Path directory) throws IOException {
+            try (var files = Files.list(directory)) {
+                return files.filter(file -> file.getFileName().toString().startsWith("commands.spare.")).count();
+            }
+        }
+
+        @Test
+        @DisplayName("Compaction: Should rewrite the WAL to the commands rebuilding the data")
+        void testCompaction() throws Exception {
+            Options options = newOptions(2);
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path directory = Path.of(options.dataDirectory);
+            for (int i = 0; i < 1_000; i++) {
+                dstruct.execute(new Command.VSet("hot", toBytes("value" + i)));
+                dstruct.execute(new Command.MPut("entries", toBytes((long) i % 10), toBytes("value" + i)));
+                dstruct.execute(new Command.SAdd("members", toBytes((long) i)));
+                dstruct.execute(new Command.SRem("members", toBytes((long) i)));
+                dstruct.execute(new Command.VSet("deleted" + i, toBytes("value")));
+                dstruct.execute(new Command.Del("deleted" + i));
+            }
+            writeData(dstruct, "");
+            long walSize = Files.size(directory.resolve("commands.0"));
+
+            CompletableFuture<Result> compaction = dstruct.compact();
+            // not paused by the compaction
+            writeData(dstruct, "-during");
+            assertEquals(EmptyResult.OK, compaction.get(5, TimeUnit.SECONDS));
+            assertFalse(Files.exists(directory.resolve("commands.0")));
+            assertTrue(Files.size(directory.resolve("snapshot")) * 50 < walSize);
+
+            dstruct = restart(dstruct, options);
+            try {
+                assertEquals(new Ok("value999"), dstruct.executeSync(new Command.VGet("hot")));
+                for (long k = 0; k < 10; k++) {
+                    assertEquals(new Ok("value" + (990 + k)), dstruct.executeSync(new Command.MGet("entries", toBytes(k))));
+                }
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.SMembers("members")));
+                assertEquals(EmptyResult.NOTHING, dstruct.executeSync(new Command.VGet("deleted0")));
+                assertData(dstruct, "");
+                assertData(dstruct, "-during");
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+
+        @Test
+        @DisplayName("Checkpoint: Should start when the WAL grows over the threshold")
+        void testCheckpointOnWalSize() throws Exception {
+            Options options = newOptions(1);
+            options.checkpointWalBytes = 4096;
+            options.expireCycleMs = 10;
+            DStruct dstruct = new DStruct(options);
+            dstruct.start();
+            Path snapshot = Path.of(options.dataDirectory, "snapshot");
+            try {
+                dstruct.executeSync(new Command.VSet("large", new byte[8192]));
+                long deadline = System.currentTimeMillis() + 5_000;
+                while (Files.notExists(snapshot) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue(Files.exists(snapshot));
+            }
+            finally {
+                dstruct.stop();
+            }
+        }
+    }
 }
\ No newline at end of file
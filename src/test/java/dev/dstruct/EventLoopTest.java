@@ -0,0 +1,63 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command.Ping;
+import dev.dstruct.util.Sink;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLoopTest {
+
+    @Test
+    void testCloseFailsTheEventsLeftInTheRing() throws Exception {
+        EventLoop eventLoop = new EventLoop("test-loop", 8, WaitStrategy.PARK, 1, EventLoop.BatchListener.NOOP);
+        eventLoop.start();
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        eventLoop.offer(new Ping(null), Sink.callback(command -> {
+            running.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, e -> {}));
+        CompletableFuture<Throwable> pending = new CompletableFuture<>();
+        eventLoop.offer(new Ping(null), Sink.callback(command -> pending.complete(null), pending::complete));
+        assertTrue(running.await(1, TimeUnit.SECONDS));
+
+        eventLoop.close();
+
+        assertInstanceOf(IllegalStateException.class, pending.get(1, TimeUnit.SECONDS));
+        assertFalse(eventLoop.offer(new Ping(null), null));
+    }
+
+    @Test
+    void testCloseReleasesALoopParkedOnABarrier() throws Exception {
+        EventLoop eventLoop = new EventLoop("test-loop");
+        eventLoop.start();
+        CountDownLatch parked = new CountDownLatch(1);
+        // a barrier whose owner is never going to run it
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.offer(null, Sink.callback(command -> {
+            parked.countDown();
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, e -> {}));
+        assertTrue(parked.await(1, TimeUnit.SECONDS));
+
+        Thread closing = Thread.ofPlatform().start(eventLoop::close);
+        closing.join(5000);
+
+        assertFalse(closing.isAlive());
+    }
+
+}
@@ -0,0 +1,81 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Command.Batch;
+import dev.dstruct.command.Command.VSet;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.fromBytesToInt;
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayerTest {
+
+    private static final int SHARDS = 4;
+
+    @Test
+    void testCommandsOfAShardAreAppliedInOrder() throws Exception {
+        List<List<String>> applied = newShards();
+        try (Replayer replayer = newReplayer(applied)) {
+            for (int i = 0; i < 10_000; i++) {
+                replayer.accept(new VSet(String.valueOf(i % SHARDS), toBytes(i)));
+            }
+        }
+
+        for (int shard = 0; shard < SHARDS; shard++) {
+            List<String> values = applied.get(shard);
+            assertEquals(10_000 / SHARDS, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(shard + "@" + (i * SHARDS + shard), values.get(i));
+            }
+        }
+    }
+
+    @Test
+    void testCrossShardBatchIsABarrier() throws Exception {
+        List<List<String>> applied = newShards();
+        List<Integer> sizesAtBatch = new ArrayList<>();
+        try (Replayer replayer = new Replayer(SHARDS, 1024, WaitStrategy.PARK, ReplayerTest::shardOf, (command, shard) -> {
+            if (command.name().equals("0") && fromValue(command) == -1) {
+                applied.forEach(values -> sizesAtBatch.add(values.size()));
+            }
+            applied.get(shard).add(command.name() + "@" + fromValue(command));
+        })) {
+            for (int i = 0; i < 1_000; i++) {
+                replayer.accept(new VSet(String.valueOf(i % SHARDS), toBytes(i)));
+            }
+            replayer.accept(new Batch(List.of(new VSet("0", toBytes(-1)), new VSet("1", toBytes(-1)))));
+            replayer.accept(new VSet("2", toBytes(1_000)));
+        }
+
+        assertEquals(List.of(250, 250, 250, 250), sizesAtBatch);
+        assertEquals("0@-1", applied.get(0).getLast());
+        assertEquals("1@-1", applied.get(1).getLast());
+        assertEquals("2@1000", applied.get(2).getLast());
+    }
+
+    private static Replayer newReplayer(List<List<String>> applied) {
+        return new Replayer(SHARDS, 1024, WaitStrategy.PARK, ReplayerTest::shardOf, (command, shard) ->
+            applied.get(shard).add(command.name() + "@" + fromValue(command))
+        );
+    }
+
+    private static List<List<String>> newShards() {
+        List<List<String>> shards = new ArrayList<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            shards.add(new ArrayList<>());
+        }
+        return shards;
+    }
+
+    private static int shardOf(Command command) {
+        return Integer.parseInt(command.name()) % SHARDS;
+    }
+
+    private static int fromValue(Command command) {
+        return fromBytesToInt(((VSet) command).value());
+    }
+
+}
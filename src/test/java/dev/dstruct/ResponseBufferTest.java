@@ -0,0 +1,123 @@
+package dev.dstruct;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseBufferTest {
+
+    @Test
+    void testSmallPiecesAndLargeValuesKeepTheirOrder() throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer(16);
+        byte[] large = new byte[ResponseBuffer.LARGE_VALUE];
+        Arrays.fill(large, (byte) 'x');
+
+        buffer.put("OK\r\n".getBytes());
+        buffer.put(large);
+        buffer.put("\r\n".getBytes());
+        buffer.putInt(42);
+
+        LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+        assertTrue(buffer.writeTo(channel));
+        assertTrue(buffer.isEmpty());
+
+        ByteBuffer written = ByteBuffer.wrap(channel.written.toByteArray());
+        assertEquals(4 + large.length + 2 + 4, written.remaining());
+        byte[] head = new byte[4];
+        written.get(head);
+        assertArrayEquals("OK\r\n".getBytes(), head);
+        written.position(written.position() + large.length + 2);
+        assertEquals(42, written.getInt());
+    }
+
+    @Test
+    void testPartialWritesAreResumed() throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer(8);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            byte[] value = ("value" + i + "\r\n").getBytes();
+            buffer.put(value);
+            expected.write(value);
+        }
+        byte[] large = new byte[ResponseBuffer.LARGE_VALUE * 4];
+        Arrays.fill(large, (byte) 'y');
+        buffer.put(large);
+        expected.write(large);
+
+        LimitedChannel channel = new LimitedChannel(100);
+        int writes = 0;
+        while (!buffer.writeTo(channel)) {
+            writes++;
+        }
+
+        assertTrue(writes > 1);
+        assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+    }
+
+    @Test
+    void testPooledBufferIsReusedAfterFlush() throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer(8);
+        LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+
+        for (int i = 0; i < 10; i++) {
+            buffer.put(("r" + i).getBytes());
+            assertTrue(buffer.writeTo(channel));
+        }
+
+        assertEquals("r0r1r2r3r4r5r6r7r8r9", channel.written.toString());
+    }
+
+    /**
+     * Channel that accepts at most limit bytes per write, like a socket with a full send buffer.
+     */
+    private static final class LimitedChannel implements GatheringByteChannel {
+
+        private final int limit;
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        private LimitedChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length && total < limit; i++) {
+                total += write(srcs[i], (int) (limit - total));
+            }
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return write(src, limit);
+        }
+
+        private int write(ByteBuffer src, int max) {
+            int size = Math.min(src.remaining(), max);
+            for (int i = 0; i < size; i++) {
+                written.write(src.get());
+            }
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+}
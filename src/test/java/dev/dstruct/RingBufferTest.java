@@ -0,0 +1,173 @@
+package dev.dstruct;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Command.Ping;
+import dev.dstruct.util.Sink;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+
+    @Test
+    void testCapacityMustBePowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer(0, WaitStrategy.PARK));
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer(100, WaitStrategy.PARK));
+        assertEquals(128, new RingBuffer(128, WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    void testEventsAreDrainedInOrder() {
+        RingBuffer ring = new RingBuffer(4, WaitStrategy.BUSY_SPIN);
+        Command[] commands = new Command[4];
+        Sink<Command>[] callbacks = newCallbacks(4);
+        List<String> drained = new ArrayList<>();
+
+        // Wraps the ring several times
+        for (int i = 0; i < 10; i += 2) {
+            assertTrue(ring.offer(new Ping("m" + i), null));
+            assertTrue(ring.offer(new Ping("m" + (i + 1)), null));
+            assertEquals(2, ring.drain(commands, callbacks, 4));
+            drained.add(((Ping) commands[0]).message());
+            drained.add(((Ping) commands[1]).message());
+        }
+
+        assertEquals(10, drained.size());
+        assertEquals("m0", drained.getFirst());
+        assertEquals("m9", drained.getLast());
+    }
+
+    @Test
+    void testDrainLimit() {
+        RingBuffer ring = new RingBuffer(8, WaitStrategy.BUSY_SPIN);
+        Command[] commands = new Command[8];
+        Sink<Command>[] callbacks = newCallbacks(8);
+        for (int i = 0; i < 5; i++) {
+            ring.offer(new Ping("m" + i), null);
+        }
+
+        assertEquals(3, ring.drain(commands, callbacks, 3));
+        assertEquals("m2", ((Ping) commands[2]).message());
+        assertEquals(2, ring.drain(commands, callbacks, 3));
+        assertEquals("m4", ((Ping) commands[1]).message());
+    }
+
+    @Test
+    void testFullRingBlocksProducer() throws InterruptedException {
+        RingBuffer ring = new RingBuffer(2, WaitStrategy.PARK);
+        assertTrue(ring.offer(new Ping("a"), null));
+        assertTrue(ring.offer(new Ping("b"), null));
+
+        AtomicBoolean offered = new AtomicBoolean(false);
+        Thread producer = Thread.ofPlatform().start(() -> offered.set(ring.offer(new Ping("c"), null)));
+
+        Thread.sleep(100);
+        assertFalse(offered.get());
+
+        ring.drain(new Command[1], newCallbacks(1), 1);
+        producer.join(1000);
+        assertTrue(offered.get());
+    }
+
+    @Test
+    void testMultipleProducers() throws InterruptedException {
+        RingBuffer ring = new RingBuffer(16, WaitStrategy.YIELD);
+        int producers = 4;
+        int perProducer = 10_000;
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        int[] last = new int[producers];
+
+        Thread consumer = Thread.ofPlatform().start(() -> {
+            Command[] commands = new Command[8];
+            Sink<Command>[] callbacks = newCallbacks(8);
+            while (done.getCount() > 0) {
+                int size = ring.drain(commands, callbacks, 8);
+                for (int i = 0; i < size; i++) {
+                    callbacks[i].next(commands[i]);
+                }
+            }
+        });
+
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            last[producer] = -1;
+            Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    int expected = i;
+                    ring.offer(new Ping(Integer.toString(i)), Sink.callback((Command command) -> {
+                        // Consumer thread only, no synchronization needed
+                        assertEquals(expected - 1, last[producer]);
+                        last[producer] = expected;
+                        done.countDown();
+                    }));
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        consumer.join(1000);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer - 1, last[p]);
+        }
+    }
+
+    @Test
+    void testCloseWakesParkedConsumer() throws InterruptedException {
+        RingBuffer ring = new RingBuffer(8, WaitStrategy.PARK);
+        AtomicInteger result = new AtomicInteger(-1);
+        Thread consumer = Thread.ofPlatform().start(() -> result.set(ring.drain(new Command[1], newCallbacks(1), 1)));
+
+        Thread.sleep(100);
+        ring.close();
+        consumer.join(1000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals(0, result.get());
+        assertFalse(ring.offer(new Ping(null), null));
+    }
+
+    @Test
+    void testEveryEventOfferedBeforeCloseIsDrained() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            RingBuffer ring = new RingBuffer(16, WaitStrategy.YIELD);
+            AtomicInteger offered = new AtomicInteger();
+            List<Thread> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++) {
+                producers.add(Thread.ofPlatform().start(() -> {
+                    while (ring.offer(new Ping(null), null)) {
+                        offered.incrementAndGet();
+                    }
+                }));
+            }
+
+            Command[] commands = new Command[16];
+            Sink<Command>[] callbacks = newCallbacks(16);
+            int drained = 0;
+            for (int i = 0; i < 100; i++) {
+                drained += ring.drain(commands, callbacks, 16);
+            }
+            ring.close();
+            int size;
+            while ((size = ring.drainClosed(commands, callbacks, 16)) > 0) {
+                drained += size;
+            }
+            for (Thread producer : producers) {
+                producer.join(1000);
+            }
+
+            assertEquals(offered.get(), drained);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Sink<Command>[] newCallbacks(int size) {
+        return new Sink[size];
+    }
+
+}
@@ -0,0 +1,116 @@
+package dev.dstruct.command;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SerdeTest {
+
+    @Test
+    void testNonAsciiNamesAreSizedInBytes() {
+        for (String name : List.of("key", "clé", "キー", "key-🔑", "")) {
+            Command.MPut command = new Command.MPut(name, toBytes(1L), toBytes("value"));
+            int nameBytes = name.getBytes(StandardCharsets.UTF_8).length;
+            assertEquals(Short.BYTES + 3 * Integer.BYTES + nameBytes + Long.BYTES + 5, Serde.size(command));
+
+            ByteBuffer record = Serde.serialize(command);
+            assertEquals(Serde.size(command), record.remaining());
+            Command.MPut decoded = (Command.MPut) Serde.deserialize(record);
+            assertEquals(name.isEmpty() ? null : name, decoded.name());
+            assertArrayEquals(command.key(), decoded.key());
+            assertArrayEquals(command.value(), decoded.value());
+        }
+    }
+
+    @Test
+    void testUnpairedSurrogateIsEncodedAsGetBytesDoes() {
+        String name = "a\uD83Db\uDD11";
+        ByteBuffer record = Serde.serialize(new Command.VGet(name));
+        assertEquals(new String(name.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+            Serde.deserialize(record).name());
+    }
+
+    @Test
+    void testBatchIsASingleRecord() {
+        Command.Batch batch = new Command.Batch(List.of(
+            new Command.VSet("key", toBytes("value")),
+            new Command.VGet("key"),
+            new Command.Batch(List.of(new Command.SAdd("set", toBytes(1L)))),
+            new Command.Del("key")
+        ));
+        ByteBuffer record = Serde.serialize(batch);
+        assertEquals(Serde.size(batch), record.remaining());
+        assertEquals(13, record.getShort(0));
+        assertEquals(3, record.getInt(Short.BYTES));
+        assertEquals(record.remaining() - Short.BYTES - 2 * Integer.BYTES, record.getInt(Short.BYTES + Integer.BYTES));
+
+        Command.Batch decoded = (Command.Batch) Serde.deserialize(record.duplicate());
+        assertEquals(3, decoded.commands().size());
+        assertEquals("key", decoded.commands().get(0).name());
+        assertInstanceOf(Command.Batch.class, decoded.commands().get(1));
+        assertInstanceOf(Command.Del.class, decoded.commands().get(2));
+
+        assertNull(Serde.deserialize(record.limit(record.limit() - 1)));
+    }
+
+    @Test
+    void testLengthOutOfTheBufferIsRejectedBeforeAllocating() {
+        ByteBuffer record = ByteBuffer.allocate(Short.BYTES + 2 * Integer.BYTES)
+            .putShort((short) 1)
+            .putInt(Integer.MAX_VALUE - 8)
+            .putInt(0)
+            .flip();
+        assertNull(Serde.deserialize(record));
+
+        record = ByteBuffer.allocate(Short.BYTES + Integer.BYTES).putShort((short) 14).putInt(-2).flip();
+        assertNull(Serde.deserialize(record));
+    }
+
+    @Test
+    void testBatchesNestedTooDeeplyAreRejected() {
+        Command command = new Command.VGet("key");
+        for (int depth = 0; depth < Serde.MAX_BATCH_DEPTH; depth++) {
+            command = new Command.Batch(List.of(command));
+        }
+        assertInstanceOf(Command.Batch.class, Serde.deserialize(Serde.serialize(command)));
+
+        command = new Command.Batch(List.of(command));
+        assertNull(Serde.deserialize(Serde.serialize(command)));
+    }
+
+    @Test
+    void testSerializeIntoBufferAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<Command> commands = List.of(
+            new Command.VSet("clé", toBytes("value")),
+            new Command.MPut("map", toBytes(1L), toBytes("one")),
+            new Command.VSetEx("key-🔑", toBytes("value"), toBytes(Long.MAX_VALUE)),
+            new Command.Del("list")
+        );
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        long thread = Thread.currentThread().threadId();
+        // the fewest bytes of a few rounds: the first ones run before the code is compiled
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            serialize(commands, buffer);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+        }
+        assertEquals(0, allocated);
+    }
+
+    private static void serialize(List<Command> commands, ByteBuffer buffer) {
+        for (int i = 0; i < 10_000; i++) {
+            for (int c = 0; c < commands.size(); c++) {
+                buffer.clear();
+                Serde.serialize(commands.get(c), buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package dev.dstruct.inmemory;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyTableTest {
+
+    @Test
+    void testKeysOfDifferentWidthsAreDistinct() {
+        KeyTable map = KeyTable.newMap();
+        map.put(new byte[] {1}, toBytes("byte"));
+        map.put(new byte[] {0, 1}, toBytes("short"));
+        map.put(new byte[] {0, 0, 0, 1}, toBytes("int"));
+        map.put(toBytes(1L), toBytes("long"));
+
+        assertEquals(4, map.size());
+        assertArrayEquals(toBytes("byte"), map.get(new byte[] {1}));
+        assertArrayEquals(toBytes("short"), map.get(new byte[] {0, 1}));
+        assertArrayEquals(toBytes("int"), map.get(new byte[] {0, 0, 0, 1}));
+        assertArrayEquals(toBytes("long"), map.get(toBytes(1L)));
+        // a 3 bytes key is its 4 bytes zero extension
+        assertArrayEquals(toBytes("int"), map.get(new byte[] {0, 0, 1}));
+    }
+
+    @Test
+    void testWideKeys() {
+        KeyTable map = KeyTable.newMap();
+        byte[] key = toBytes("a key longer than 8 bytes");
+        assertNull(map.put(key, toBytes("one")));
+        assertArrayEquals(toBytes("one"), map.put(toBytes("a key longer than 8 bytes"), toBytes("two")));
+        assertArrayEquals(toBytes("two"), map.get(toBytes("a key longer than 8 bytes")));
+        assertArrayEquals(toBytes("two"), map.remove(key));
+        assertNull(map.get(key));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void testMatchesHashMapUnderRandomOperations() {
+        SplittableRandom random = new SplittableRandom(42);
+        KeyTable table = KeyTable.newMap();
+        Map<ByteBuffer, byte[]> reference = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            byte[] key = randomKey(random);
+            ByteBuffer wrapped = ByteBuffer.wrap(normalized(key));
+            switch (random.nextInt(3)) {
+                case 0 -> {
+                    byte[] value = toBytes(i);
+                    assertArrayEquals(reference.put(wrapped, value), table.put(key, value));
+                }
+                case 1 -> assertArrayEquals(reference.remove(wrapped), table.remove(key));
+                default -> assertArrayEquals(reference.get(wrapped), table.get(key));
+            }
+            assertEquals(reference.size(), table.size());
+        }
+
+        Map<ByteBuffer, byte[]> entries = new HashMap<>();
+        table.forEach((key, value) -> assertNull(entries.put(ByteBuffer.wrap(key), value)));
+        assertEquals(reference.keySet(), entries.keySet());
+        reference.forEach((key, value) -> assertArrayEquals(value, entries.get(key)));
+    }
+
+    @Test
+    void testSet() {
+        KeyTable set = KeyTable.newSet();
+        assertTrue(set.add(toBytes(1L)));
+        assertFalse(set.add(toBytes(1L)));
+        assertTrue(set.add(toBytes("a member longer than 8 bytes")));
+        assertFalse(set.add(toBytes("a member longer than 8 bytes")));
+        assertTrue(set.contains(toBytes(1L)));
+        assertFalse(set.contains(toBytes(2L)));
+
+        Set<ByteBuffer> members = new HashSet<>();
+        set.forEach((member, ignore) -> members.add(ByteBuffer.wrap(member)));
+        assertEquals(Set.of(ByteBuffer.wrap(toBytes(1L)), ByteBuffer.wrap(toBytes("a member longer than 8 bytes"))), members);
+
+        assertNotNull(set.remove(toBytes(1L)));
+        assertNull(set.remove(toBytes(1L)));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    void testCopyIsIndependent() {
+        KeyTable map = KeyTable.newMap();
+        for (long i = 0; i < 100; i++) {
+            map.put(toBytes(i), toBytes("v" + i));
+            map.put(toBytes("long key " + i), toBytes("v" + i));
+        }
+        KeyTable copy = map.copy();
+        for (long i = 0; i < 100; i++) {
+            map.remove(toBytes(i));
+            map.put(toBytes("long key " + i), toBytes("changed"));
+        }
+
+        assertEquals(200, copy.size());
+        for (long i = 0; i < 100; i++) {
+            assertArrayEquals(toBytes("v" + i), copy.get(toBytes(i)));
+            assertArrayEquals(toBytes("v" + i), copy.get(toBytes("long key " + i)));
+        }
+    }
+
+    /**
+     * Keys from small ranges of every width, so that removals hit long probe sequences.
+     */
+    private static byte[] randomKey(SplittableRandom random) {
+        int length = 1 + random.nextInt(12);
+        byte[] key = new byte[length];
+        key[length - 1] = (byte) random.nextInt(64);
+        return key;
+    }
+
+    /**
+     * The key a table gives back: 3 bytes keys are widened to 4, 5 to 7 bytes ones to 8.
+     */
+    private static byte[] normalized(byte[] key) {
+        int width = KeyTable.widthOf(key);
+        if (width == 0 || width == key.length) return key;
+        byte[] widened = new byte[width];
+        System.arraycopy(key, 0, widened, width - key.length, key.length);
+        return widened;
+    }
+
+}
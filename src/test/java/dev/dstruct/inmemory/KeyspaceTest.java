@@ -0,0 +1,76 @@
+package dev.dstruct.inmemory;
+
+import dev.dstruct.inmemory.DataStructureVisitor.KeyType;
+import dev.dstruct.inmemory.Keyspace.Entry;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyspaceTest {
+
+    @Test
+    void testGetOrCreateReturnsTheExistingEntry() {
+        Keyspace keyspace = new Keyspace();
+        Entry created = keyspace.getOrCreate("name", KeyType.MAP);
+        assertNull(created.structure);
+        assertFalse(created.hasDeadline());
+
+        Entry existing = keyspace.getOrCreate("name", KeyType.VALUE);
+        assertSame(created, existing);
+        assertEquals(KeyType.MAP, existing.type);
+        assertSame(created, keyspace.get("name"));
+        assertEquals(1, keyspace.size());
+
+        assertSame(created, keyspace.remove("name"));
+        assertNull(keyspace.get("name"));
+        assertNull(keyspace.remove("name"));
+        assertEquals(0, keyspace.size());
+    }
+
+    @Test
+    void testGrowsIncrementally() {
+        Keyspace keyspace = new Keyspace();
+        for (int i = 0; i < Keyspace.INITIAL_CAPACITY; i++) {
+            keyspace.getOrCreate("name-" + i, KeyType.VALUE);
+        }
+        assertFalse(keyspace.isRehashing());
+
+        keyspace.getOrCreate("name-" + Keyspace.INITIAL_CAPACITY, KeyType.VALUE);
+        assertTrue(keyspace.isRehashing());
+        // every lookup moves a bucket, the names are found in either table meanwhile
+        for (int i = 0; i <= Keyspace.INITIAL_CAPACITY; i++) {
+            assertEquals("name-" + i, keyspace.get("name-" + i).name);
+        }
+        assertFalse(keyspace.isRehashing());
+    }
+
+    @Test
+    void testRemovesWhileRehashing() {
+        Keyspace keyspace = new Keyspace();
+        int names = 100_000;
+        for (int i = 0; i < names; i++) {
+            keyspace.getOrCreate("name-" + i, KeyType.SET);
+            if (i % 3 == 0) {
+                assertNotNull(keyspace.remove("name-" + (i / 2)));
+            }
+        }
+
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < names; i++) {
+            expected.add("name-" + i);
+        }
+        for (int i = 0; i < names; i += 3) {
+            expected.remove("name-" + (i / 2));
+        }
+        Set<String> visited = new HashSet<>();
+        keyspace.forEach(entry -> assertTrue(visited.add(entry.name)));
+        assertEquals(expected, visited);
+        assertEquals(expected.size(), keyspace.size());
+        for (String name : expected) {
+            assertNotNull(keyspace.get(name));
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package dev.dstruct.inmemory;
+
+import dev.dstruct.command.Command;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryTrackerTest {
+
+    @Test
+    void testDeletesGiveBackWhatWritesTook() {
+        InMemoryStore store = new InMemoryStore(EvictionPolicy.ALLKEYS_LRU, 5);
+
+        store.manageCommand(new Command.VSet("value", toBytes("first")));
+        store.manageCommand(new Command.VSet("value", toBytes("a longer second value")));
+        store.manageCommand(new Command.MPut("map", toBytes("key"), toBytes("value")));
+        store.manageCommand(new Command.MPut("map", toBytes("a long key of bytes"), toBytes("value")));
+        store.manageCommand(new Command.SAdd("set", toBytes(42L)));
+        store.manageCommand(new Command.SAdd("set", toBytes(42L)));
+        store.manageCommand(new Command.LPush("list", toBytes("head")));
+        store.manageCommand(new Command.RPush("list", toBytes("tail")));
+        long used = store.usedMemory();
+        assertTrue(used > 0);
+
+        store.manageCommand(new Command.MDelete("map", toBytes("key")));
+        store.manageCommand(new Command.SRem("set", toBytes(42L)));
+        store.manageCommand(new Command.LPop("list"));
+        store.manageCommand(new Command.RPop("list"));
+        assertTrue(store.usedMemory() < used);
+
+        for (String name : List.of("value", "map", "set", "list")) {
+            store.manageCommand(new Command.Del(name));
+        }
+        assertEquals(0, store.usedMemory());
+    }
+
+    @Test
+    void testGrowthIsAnUpperBound() {
+        InMemoryStore store = new InMemoryStore(EvictionPolicy.ALLKEYS_LRU, 5);
+        Command.Batch batch = new Command.Batch(List.of(
+            new Command.MPut("map", toBytes("key"), toBytes("value")),
+            new Command.SAdd("set", toBytes("member")),
+            new Command.RPush("list", toBytes("element"))
+        ));
+
+        long growth = store.estimateGrowth(batch);
+        store.manageCommand(batch);
+
+        assertTrue(store.usedMemory() <= growth);
+    }
+
+    @Test
+    void testVolatileCandidatesHaveADeadline() {
+        InMemoryStore store = new InMemoryStore(EvictionPolicy.VOLATILE_RANDOM, 5);
+        store.manageCommand(new Command.VSet("persistent", toBytes("value")));
+        store.manageCommand(new Command.VSetEx("volatile", toBytes("value"), toBytes(Long.MAX_VALUE)));
+        store.manageCommand(new Command.VSetEx("persisted", toBytes("value"), toBytes(Long.MAX_VALUE)));
+        store.manageCommand(new Command.Persist("persisted"));
+
+        assertEquals(List.of("volatile"), store.evictionCandidates(Long.MAX_VALUE));
+        assertEquals(List.of(), store.evictionCandidates(Long.MAX_VALUE));
+        assertEquals(1, store.evictedKeys());
+    }
+
+    @Test
+    void testNoEvictionHasNoCandidates() {
+        InMemoryStore store = new InMemoryStore(EvictionPolicy.NO_EVICTION, 5);
+        store.manageCommand(new Command.VSet("value", toBytes("value")));
+
+        assertEquals(List.of(), store.evictionCandidates(1));
+    }
+
+}
@@ -0,0 +1,77 @@
+package dev.dstruct.inmemory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlabAllocatorTest {
+
+    @Test
+    void testValuesRoundTrip() {
+        try (SlabAllocator slabs = new SlabAllocator()) {
+            SplittableRandom random = new SplittableRandom(42);
+            List<byte[]> values = new ArrayList<>();
+            List<Long> handles = new ArrayList<>();
+            for (int i = 0; i < 1_000; i++) {
+                byte[] value = new byte[random.nextInt(5_000)];
+                random.nextBytes(value);
+                values.add(value);
+                handles.add(slabs.allocate(value));
+            }
+
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(values.get(i).length, SlabAllocator.length(handles.get(i)));
+                assertArrayEquals(values.get(i), slabs.read(handles.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void testFreedChunksAreReused() {
+        try (SlabAllocator slabs = new SlabAllocator()) {
+            for (int i = 0; i < 100_000; i++) {
+                long handle = slabs.allocate(toBytes("value-" + i));
+                assertArrayEquals(toBytes("value-" + i), slabs.read(handle));
+                slabs.free(handle);
+            }
+            assertEquals(SlabAllocator.SLAB_BYTES, slabs.reservedBytes());
+        }
+    }
+
+    @Test
+    void testRetainedAllocatorKeepsFreedValues() {
+        try (SlabAllocator slabs = new SlabAllocator()) {
+            long handle = slabs.allocate(toBytes("before"));
+            slabs.retain();
+            slabs.free(handle);
+            long other = slabs.allocate(toBytes("after!"));
+
+            assertArrayEquals(toBytes("before"), slabs.read(handle));
+            assertArrayEquals(toBytes("after!"), slabs.read(other));
+
+            slabs.release();
+            // the chunk is free again
+            assertEquals(handle, slabs.allocate(toBytes("reused")));
+        }
+    }
+
+    @Test
+    void testValuesLargerThanASlab() {
+        try (SlabAllocator slabs = new SlabAllocator()) {
+            byte[] value = new byte[SlabAllocator.SLAB_BYTES * 3 + 7];
+            new SplittableRandom(42).nextBytes(value);
+            long handle = slabs.allocate(value);
+            assertArrayEquals(value, slabs.read(handle));
+            assertEquals(value.length, slabs.reservedBytes());
+
+            slabs.free(handle);
+            assertEquals(0, slabs.reservedBytes());
+            assertArrayEquals(new byte[0], slabs.read(slabs.allocate(new byte[0])));
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package dev.dstruct.inmemory;
+
+import dev.dstruct.Result;
+import dev.dstruct.command.Command;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotViewTest {
+
+    @Test
+    void testViewIgnoresLaterWrites() {
+        InMemoryStore store = new InMemoryStore();
+        store.manageCommand(new Command.VSetEx("value", toBytes("before"), toBytes(Long.MAX_VALUE)));
+        store.manageCommand(new Command.MPut("map", toBytes(1L), toBytes("one")));
+        store.manageCommand(new Command.SAdd("set", toBytes(1L)));
+        store.manageCommand(new Command.RPush("list", toBytes("first")));
+        store.manageCommand(new Command.RPush("list", toBytes("second")));
+
+        Consumer<Consumer<Command>> view = store.beginSnapshot();
+        store.manageCommand(new Command.VSet("value", toBytes("after")));
+        store.manageCommand(new Command.MPut("map", toBytes(1L), toBytes("changed")));
+        store.manageCommand(new Command.MPut("map", toBytes(2L), toBytes("two")));
+        store.manageCommand(new Command.SRem("set", toBytes(1L)));
+        store.manageCommand(new Command.LPop("list"));
+        store.manageCommand(new Command.Del("list"));
+        store.manageCommand(new Command.RPush("list", toBytes("new")));
+        store.manageCommand(new Command.VSet("created", toBytes("after")));
+
+        InMemoryStore restored = restore(view);
+        assertEquals(new Result.Ok("before"), restored.manageCommand(new Command.VGet("value")));
+        assertEquals(Result.EmptyResult.OK, restored.manageCommand(new Command.Persist("value")));
+        assertEquals(new Result.Ok("one"), restored.manageCommand(new Command.MGet("map", toBytes(1L))));
+        assertEquals(Result.EmptyResult.NOTHING, restored.manageCommand(new Command.MGet("map", toBytes(2L))));
+        assertEquals(Result.EmptyResult.OK, restored.manageCommand(new Command.SRem("set", toBytes(1L))));
+        assertEquals(new Result.Ok("first"), restored.manageCommand(new Command.LPop("list")));
+        assertEquals(new Result.Ok("second"), restored.manageCommand(new Command.LPop("list")));
+        assertEquals(Result.EmptyResult.NOTHING, restored.manageCommand(new Command.VGet("created")));
+    }
+
+    @Test
+    void testOffHeapViewKeepsFreedValues() {
+        try (InMemoryStore store = new InMemoryStore(true)) {
+            store.manageCommand(new Command.VSet("value", toBytes("before")));
+            store.manageCommand(new Command.MPut("map", toBytes(1L), toBytes("one")));
+            store.manageCommand(new Command.RPush("list", toBytes("first")));
+
+            Consumer<Consumer<Command>> view = store.beginSnapshot();
+            // the chunks freed here must not be reused while the view is read
+            store.manageCommand(new Command.VSet("value", toBytes("after!")));
+            store.manageCommand(new Command.MPut("map", toBytes(1L), toBytes("two")));
+            store.manageCommand(new Command.LPop("list"));
+            store.manageCommand(new Command.RPush("list", toBytes("other")));
+
+            InMemoryStore restored = restore(view);
+            assertEquals(new Result.Ok("before"), restored.manageCommand(new Command.VGet("value")));
+            assertEquals(new Result.Ok("one"), restored.manageCommand(new Command.MGet("map", toBytes(1L))));
+            assertEquals(new Result.Ok("first"), restored.manageCommand(new Command.LPop("list")));
+
+            assertEquals(new Result.Ok("after!"), store.manageCommand(new Command.VGet("value")));
+            assertEquals(new Result.Ok("two"), store.manageCommand(new Command.MGet("map", toBytes(1L))));
+            assertEquals(new Result.Ok("other"), store.manageCommand(new Command.LIndex("list", toBytes(0))));
+        }
+    }
+
+    @Test
+    void testViewIsConsistentWhileWritesRace() throws Exception {
+        InMemoryStore store = new InMemoryStore();
+        for (long i = 0; i < 100; i++) {
+            for (long j = 0; j < 100; j++) {
+                store.manageCommand(new Command.RPush("list-" + i, toBytes(j)));
+            }
+        }
+
+        Consumer<Consumer<Command>> view = store.beginSnapshot();
+        CompletableFuture<InMemoryStore> restored = CompletableFuture.supplyAsync(() -> restore(view));
+        for (long i = 0; i < 100; i++) {
+            for (long j = 0; j < 100; j++) {
+                store.manageCommand(new Command.RPush("list-" + i, toBytes(j)));
+            }
+        }
+
+        InMemoryStore snapshot = restored.get(10, TimeUnit.SECONDS);
+        for (long i = 0; i < 100; i++) {
+            assertEquals(new Result.Ok(toBytes(100)), snapshot.manageCommand(new Command.LLen("list-" + i)));
+        }
+    }
+
+    private static InMemoryStore restore(Consumer<Consumer<Command>> view) {
+        List<Command> commands = new ArrayList<>();
+        view.accept(commands::add);
+        InMemoryStore restored = new InMemoryStore();
+        commands.forEach(restored::manageCommand);
+        return restored;
+    }
+
+}
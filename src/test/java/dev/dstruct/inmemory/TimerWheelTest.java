@@ -0,0 +1,82 @@
+package dev.dstruct.inmemory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    private final Map<String, Long> deadlines = new HashMap<>();
+
+    private void schedule(TimerWheel wheel, String name, long deadline) {
+        deadlines.put(name, deadline);
+        wheel.schedule(name, deadline);
+    }
+
+    private List<String> advance(TimerWheel wheel, long now, int limit) {
+        List<String> expired = new ArrayList<>();
+        wheel.advance(now, limit, deadlines::get, name -> {
+            expired.add(name);
+            deadlines.remove(name);
+        });
+        return expired;
+    }
+
+    @Test
+    void testExpiresOnlyDueNames() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        schedule(wheel, "a", 15);
+        schedule(wheel, "b", 35);
+
+        assertEquals(List.of(), advance(wheel, 10, 100));
+        assertEquals(List.of("a"), advance(wheel, 20, 100));
+        assertEquals(List.of("b"), advance(wheel, 40, 100));
+    }
+
+    @Test
+    void testKeepsNamesOfLaterRounds() {
+        // 8 slots of 10ms, a rotation is 80ms
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        schedule(wheel, "later", 95);
+
+        assertEquals(List.of(), advance(wheel, 80, 100));
+        assertEquals(List.of("later"), advance(wheel, 100, 100));
+    }
+
+    @Test
+    void testDropsStaleEntries() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        schedule(wheel, "moved", 15);
+        schedule(wheel, "moved", 55);
+        schedule(wheel, "persisted", 15);
+        deadlines.remove("persisted");
+
+        assertEquals(List.of(), advance(wheel, 20, 100));
+        assertEquals(List.of("moved"), advance(wheel, 60, 100));
+    }
+
+    @Test
+    void testLimitResumesInTheSameSlot() {
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        for (int i = 0; i < 5; i++) {
+            schedule(wheel, "n" + i, 12);
+        }
+
+        assertEquals(List.of("n0", "n1"), advance(wheel, 20, 2));
+        assertEquals(List.of("n2", "n3"), advance(wheel, 20, 2));
+        assertEquals(List.of("n4"), advance(wheel, 20, 2));
+    }
+
+    @Test
+    void testPastDeadlinesAreDueAtTheNextAdvance() {
+        TimerWheel wheel = new TimerWheel(10, 8, 1000);
+        schedule(wheel, "replayed", 5);
+
+        assertEquals(List.of("replayed"), advance(wheel, 1000, 100));
+    }
+
+}
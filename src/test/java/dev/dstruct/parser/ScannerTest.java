@@ -0,0 +1,88 @@
+package dev.dstruct.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScannerTest {
+
+    @Test
+    void testBufferShrinksAfterALongLine() throws IOException {
+        Scanner scanner = new Scanner(16, 1024);
+        String value = "v".repeat(200);
+
+        List<Token> tokens = scan(scanner, "VSET key " + value);
+        assertTrue(tokens.isEmpty());
+        assertTrue(scanner.capacity() >= 200);
+
+        tokens = scan(scanner, "\r\n");
+        assertEquals(List.of(
+            new Token(TokenType.TEXT, "VSET"),
+            new Token(TokenType.TEXT, "key"),
+            new Token(TokenType.TEXT, value),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.ENDLINE, null)
+        ), tokens);
+        assertEquals(16, scanner.capacity());
+    }
+
+    @Test
+    void testLineLongerThanTheMaxIsAnError() throws IOException {
+        Scanner scanner = new Scanner(16, 64);
+
+        List<Token> tokens = scan(scanner, "VSET key " + "v".repeat(100));
+        assertTrue(scanner.capacity() <= 64);
+        tokens.addAll(scan(scanner, "\nVGET key\n"));
+
+        assertEquals(List.of(
+            new Token(TokenType.ERROR, "line too long"),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.TEXT, "VGET"),
+            new Token(TokenType.TEXT, "key"),
+            new Token(TokenType.ENDLINE, null)
+        ), tokens);
+        assertEquals(16, scanner.capacity());
+    }
+
+    @Test
+    void testUnterminatedQuoteEndsAtTheEndOfLine() throws IOException {
+        Scanner scanner = new Scanner();
+
+        List<Token> tokens = scan(scanner, "VSET key 'abc\r\nVGET key\r\nPING\r\n");
+
+        assertEquals(List.of(
+            new Token(TokenType.ERROR, "missing closing quote"),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.TEXT, "VGET"),
+            new Token(TokenType.TEXT, "key"),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.TEXT, "PING"),
+            new Token(TokenType.ENDLINE, null),
+            new Token(TokenType.ENDLINE, null)
+        ), tokens);
+    }
+
+    /**
+     * Reads text until the channel is drained, parsing after every read like a connection does.
+     */
+    private static List<Token> scan(Scanner scanner, String text) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        List<Token> tokens = new ArrayList<>();
+        while (scanner.read(channel) > 0) {
+            scanner.parse();
+            tokens.addAll(scanner.getTokens());
+        }
+        return tokens;
+    }
+
+}
@@ -0,0 +1,112 @@
+package dev.dstruct.wal;
+
+import dev.dstruct.command.Command;
+import dev.dstruct.command.Serde;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.CleanupMode;
+import org.junit.jupiter.api.io.TempDir;
+
+import static dev.dstruct.util.Binaries.toBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+class WalRecordTest {
+
+    private static final int SALT = WalRecord.salt(7);
+
+    @TempDir(cleanup = CleanupMode.ALWAYS)
+    Path tempDir;
+
+    @Test
+    void testMappedReaderReadsUpToTheEndMarker() throws IOException {
+        ByteBuffer records = records("one", "two", "three");
+        WalRecord.putEnd(records, SALT);
+        Path file = write(records.flip());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WalRecord.Reader reader = new WalRecord.Reader(channel, SALT)) {
+            assertEquals(List.of("one", "two", "three"), names(reader));
+            assertTrue(reader.sealed());
+            assertFalse(reader.atEnd());
+        }
+    }
+
+    @Test
+    void testMappedReaderStopsAtATornTail() throws IOException {
+        ByteBuffer records = records("one", "two", "three").flip();
+        int twoEnd = records.limit() - recordLength("three");
+        Path file = write(records.limit(records.limit() - 3));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WalRecord.Reader reader = new WalRecord.Reader(channel, SALT)) {
+            assertEquals(List.of("one", "two"), names(reader));
+            assertEquals(twoEnd, reader.position());
+            assertFalse(reader.atEnd());
+            assertFalse(reader.sealed());
+        }
+    }
+
+    @Test
+    void testMappedReaderStopsAtAChecksumMismatch() throws IOException {
+        ByteBuffer records = records("one", "two", "three").flip();
+        int twoStart = recordLength("one");
+        // the last byte of the name of the second record
+        int corrupted = twoStart + recordLength("two") - 1;
+        records.put(corrupted, (byte) (records.get(corrupted) ^ 1));
+        Path file = write(records);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WalRecord.Reader reader = new WalRecord.Reader(channel, SALT)) {
+            assertEquals(List.of("one"), names(reader));
+            assertEquals(twoStart, reader.position());
+            assertFalse(reader.atEnd());
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WalRecord.Reader reader = new WalRecord.Reader(channel, WalRecord.salt(8))) {
+            // the records of another segment
+            assertNull(reader.next());
+            assertEquals(0, reader.position());
+        }
+    }
+
+    private static ByteBuffer records(String... names) {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        CRC32C crc = new CRC32C();
+        for (String name : names) {
+            Command command = new Command.VSet(name, toBytes(1L));
+            WalRecord.put(buffer, command, Serde.size(command), crc, SALT);
+        }
+        return buffer;
+    }
+
+    private static int recordLength(String name) {
+        return WalRecord.HEADER_LENGTH + Serde.size(new Command.VSet(name, toBytes(1L)));
+    }
+
+    private static List<String> names(WalRecord.Reader reader) {
+        List<String> names = new ArrayList<>();
+        Command command;
+        while ((command = reader.next()) != null) {
+            names.add(command.name());
+        }
+        return names;
+    }
+
+    private Path write(ByteBuffer records) throws IOException {
+        Path file = tempDir.resolve("records");
+        byte[] bytes = new byte[records.remaining()];
+        records.get(bytes);
+        Files.write(file, bytes);
+        return file;
+    }
+
+}